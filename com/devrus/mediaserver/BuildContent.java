@@ -14,6 +14,7 @@ import org.teleal.common.util.MimeType;
 import org.teleal.cling.support.model.container.*;
 import com.devrus.mediaserver.ota.*;
 import com.devrus.mediaserver.hdpvr.*;
+import com.devrus.mediaserver.clean.KeptRegions;
 
 public class BuildContent {
   public static final String NESTED = "_NESTED";
@@ -27,6 +28,13 @@ public class BuildContent {
   // Constants used in this class
   private static final long  MAX_FILES_IN_DIRECTORY = 1000;
   private static final String WATCHED_TAG = "[watched]";
+  private static final String CLEAN_TAG = "[clean]";
+  private static final String CLEAN_ID_SUFFIX = ".clean";
+  private static final String CLEANED_TRAILER = ".clean.ts";
+  
+  // set from the server configuration, when true recordings which comskip has been run on
+  // are also listed without their commercials, served from the original file
+  public static boolean virtualClean = true;
   
   public enum RootTypes {
     FILE_SYSTEM,
@@ -268,6 +276,17 @@ public class BuildContent {
               VideoItem newItem = new VideoItem(id + "/" + itemName,parent,itemDisplayName,null,res);
               didl.addItem(newItem);
               count++;
+              
+              // once comskip has run the recording can be watched without the commercials
+              // before the cleaned file has been written.  The index is only built when the
+              // clean version is played, so the size is only given if it is already known
+              if (virtualClean && ContentTypes.getExtension(contents[i].getName()).equals("ts") && (!contents[i].getName().endsWith(CLEANED_TRAILER))){
+                if (KeptRegions.hasCommercials(contents[i])){
+                  Res cleanRes = new Res(mimeType,KeptRegions.cachedLength(contents[i]),"http://" + serverAddress +":" + serverPort + "/" + URLEncoder.encode(filePath.replace(File.separator,"/") + "/" + KeptRegions.virtualFileName(contents[i].getName())));
+                  didl.addItem(new VideoItem(id + "/" + itemName + CLEAN_ID_SUFFIX,parent,itemDisplayName + CLEAN_TAG,null,cleanRes));
+                  count++;
+                }
+              }
             }
           } catch (Exception e){
             e.printStackTrace();
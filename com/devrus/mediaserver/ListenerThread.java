@@ -5,23 +5,44 @@
 package com.devrus.mediaserver;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class ListenerThread extends Thread {
+  // constants
+  private static final long IDLE_THREAD_TIMEOUT_SECONDS = 60;
+  
   private String root;
   private int port;
   private boolean isRunning = false;
   private ServerSocket sock;
+  private ThreadPoolExecutor requestExecutor;
+  private Semaphore streamPermits;
   
   /**
    * Constructor
    * @param port  the port on which the listener will wait for connections
    * @param root  the file system location where the files to be served are rooted
+   * @param maxStreams the maximum number of requests that will be handled concurrently
    */
-  private ListenerThread(int port, String root) {
+  private ListenerThread(int port, String root, int maxStreams) {
     this.root = root;
     this.port = port;
+    
+    // threads are only created as connections arrive and go away when they have been idle for a 
+    // while so the number of threads follows the number of open connections. A connection waiting 
+    // for its next request does not count as a stream, only requests being answered take one of 
+    // the maxStreams permits and new requests are rejected once they have all been taken
+    requestExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 
+                                             IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS, 
+                                             new SynchronousQueue<Runnable>());
+    streamPermits = new Semaphore(maxStreams);
   }
   
   /**
@@ -29,10 +50,11 @@ public class ListenerThread extends Thread {
    * 
    * @param port  the port on which the listener will wait for connections
    * @param root  the file system location where the files to be served are rooted
+   * @param maxStreams the maximum number of requests that will be handled concurrently
    * @return the thread started
    */
-  public static ListenerThread startListener(int port, String root) {
-    ListenerThread listener = new ListenerThread(port, root);
+  public static ListenerThread startListener(int port, String root, int maxStreams) {
+    ListenerThread listener = new ListenerThread(port, root, maxStreams);
     synchronized(listener){
       try {
         listener.start();
@@ -49,7 +71,11 @@ public class ListenerThread extends Thread {
   public void run() {
     synchronized(this){
       try{
-        sock = new ServerSocket(port);
+        // create the server socket through a channel so that the sockets accepted have
+        // channels which can be used to send files with transferTo
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        sock = serverChannel.socket();
         isRunning = true;
       } catch (IOException e){
         System.out.println("Failed to create server on port:" + port);
@@ -60,8 +86,7 @@ public class ListenerThread extends Thread {
     while(true){
       try {
         Socket requestSock = sock.accept();
-        RequestThread requestThread = new RequestThread(root, requestSock);
-        requestThread.start();
+        requestExecutor.execute(new RequestThread(root, requestSock, streamPermits));
       } catch (IOException e) {
         System.out.println("Server socket accept failed, stopping:" + e);
         synchronized(this){
@@ -34,12 +34,17 @@ public class MichaelsMediaServer extends AbstractContentDirectoryService {
   public static final String VIEWING_THRESHHOLD = "viewing_threshhold";
   public static final String FILE_SERVER_ROOT = "file_server_root";
   public static final String WATCHED_EXTENTION_KEY = "watched_extension";
+  public static final String ZERO_COPY_KEY = "zero_copy";
+  public static final String MAX_STREAMS_KEY = "max_streams";
+  public static final String KEEP_ALIVE_TIMEOUT_KEY = "keep_alive_timeout";
+  public static final String VIRTUAL_CLEAN_KEY = "virtual_clean";
   
   // defaults
   public static final String DEFAULT_SERVER_NAME = "MichaelsMediaServer";
   public static final String DEFAULT_UNIQUE_ID = "284FDFA0-3FEA-11E1-BD89-A82C4924019B";
   public static final long DEVAULT_VIEWING_THRESHOLD_IN_SECONDS = 120;
   public static final int DEFAULT_SERVER_PORT = 25000;
+  public static final int DEFAULT_MAX_STREAMS = 10;
   public static final String DEFAULT_SERVER_NET_MASK = "10.";
   public static final String DEFAULT_FILE_SERVER_ROOT = "t:";
   public static final String DEFAULT_ROOTS = "New Video New(auto)" + BuildContent.CABLE_ROOT + " " + BuildContent.OTA_ROOT;
@@ -84,6 +89,7 @@ public class MichaelsMediaServer extends AbstractContentDirectoryService {
     String serverName = DEFAULT_SERVER_NAME;
     String uniqueId =   DEFAULT_UNIQUE_ID;
     long viewingThreshhold = DEVAULT_VIEWING_THRESHOLD_IN_SECONDS;
+    int maxStreams = DEFAULT_MAX_STREAMS;
     
     // read in the configuration for the server
     final Properties configuration = new Properties();
@@ -119,6 +125,22 @@ public class MichaelsMediaServer extends AbstractContentDirectoryService {
       }
     }
     
+    if (configuration.getProperty(MAX_STREAMS_KEY) != null){
+      try {
+        maxStreams = Integer.parseInt(configuration.getProperty(MAX_STREAMS_KEY));
+      } catch (NumberFormatException e){
+        System.out.println("Invalid " + MAX_STREAMS_KEY + " in configuration file");
+      }
+    }
+    
+    if (configuration.getProperty(KEEP_ALIVE_TIMEOUT_KEY) != null){
+      try {
+        RequestThread.keepAliveTimeout = Integer.parseInt(configuration.getProperty(KEEP_ALIVE_TIMEOUT_KEY));
+      } catch (NumberFormatException e){
+        System.out.println("Invalid " + KEEP_ALIVE_TIMEOUT_KEY + " in configuration file");
+      }
+    }
+    
     if (configuration.getProperty(FILE_SERVER_ROOT) != null){
       fileServerRoot = configuration.getProperty(FILE_SERVER_ROOT);
     }
@@ -127,6 +149,18 @@ public class MichaelsMediaServer extends AbstractContentDirectoryService {
       watchedExtension = configuration.getProperty(WATCHED_EXTENTION_KEY);
     }
     
+    if (configuration.getProperty(ZERO_COPY_KEY) != null){
+      if (configuration.getProperty(ZERO_COPY_KEY).equals("no")){
+        RequestThread.zeroCopy = false;
+      }
+    }
+    
+    if (configuration.getProperty(VIRTUAL_CLEAN_KEY) != null){
+      if (configuration.getProperty(VIRTUAL_CLEAN_KEY).equals("no")){
+        BuildContent.virtualClean = false;
+      }
+    }
+    
     try {
       final MichaelsMediaServer myserver = new MichaelsMediaServer(configuration);
       LocalService<AbstractContentDirectoryService> service =  new AnnotationLocalServiceBinder().read(AbstractContentDirectoryService.class);
@@ -158,7 +192,7 @@ public class MichaelsMediaServer extends AbstractContentDirectoryService {
   
       // ok start the threads which accept connection and server up video files
       WatchedHandler.setViewingThreshhold(viewingThreshhold);
-      ListenerThread listener = ListenerThread.startListener(serverPort, fileServerRoot);
+      ListenerThread listener = ListenerThread.startListener(serverPort, fileServerRoot, maxStreams);
     } catch (Throwable t){
       System.out.println("Exception:" + t);
     } 
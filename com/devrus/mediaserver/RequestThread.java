@@ -7,252 +7,818 @@ package com.devrus.mediaserver;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.concurrent.Semaphore;
 import org.teleal.common.util.MimeType;
 
+import com.devrus.mediaserver.clean.Cleaner;
+import com.devrus.mediaserver.clean.KeptRegions;
 import com.devrus.mediaserver.ota.OTASupport;
 import com.devrus.mediaserver.hdpvr.HDPVRSupport;
+import com.devrus.mediaserver.livecommon.LiveBase;
+import com.devrus.mediaserver.livecommon.LiveRingBuffer;
+import com.devrus.mediaserver.livecommon.LiveSession;
+import com.devrus.mediaserver.livecommon.TimeShiftBuffer;
 
 /**
  * This class implements the thread run to handle each request for a portion of a file
  */
-public class RequestThread extends Thread {
+public class RequestThread implements Runnable {
   //constants
   private static final String GET_LINE                    = "GET ";
   private static final String HEAD_LINE                   = "HEAD ";
   private static final String HTTP_VERSION_PREFIX         = "HTTP";
-  private static final String CONTENT_FEATURES_DLNA_ORG   = "getcontentFeatures.dlna.org: 1";
-  private static final String WDTV_USER_AGENT             = "User-Agent: INTEL_NMPR";
+  private static final String HTTP_1_0                    = "HTTP/1.0";
+  // header names are matched without regard to case so these are in lower case
+  private static final String CONNECTION_HEADER           = "connection:";
+  private static final String RANGE_HEADER                = "range:";
+  private static final String BYTES_UNIT                  = "bytes=";
+  private static final String TIME_SEEK_HEADER            = "timeseekrange.dlna.org:";
+  private static final String NPT_PREFIX                  = "npt=";
+  private static final String CONTENT_FEATURES_DLNA_ORG   = "getcontentfeatures.dlna.org:";
+  private static final String USER_AGENT_HEADER           = "user-agent:";
+  private static final String WDTV_USER_AGENT             = "INTEL_NMPR";
+  private static final String STATUS_PATH                 = "/status";
   private static final int FILE_SERVE_INCREMENT           = 1024*1024;
   private static final int GROWING_FILE_RETRY_WAIT_MS     = 100;
+  private static final long LIVE_NO_DATA_TIMEOUT_MS       = 30*1000;
+  public static final int DEFAULT_KEEP_ALIVE_TIMEOUT      = 15; /* in seconds */
+  private static final int RETRY_AFTER_SECONDS            = 5;
+  private static final long NO_POSITION                   = -1;
+  private static final double NO_TIME_SEEK                = -1;
+  private static final long LIVE_FILE_LENGTH              = ((long)Integer.MAX_VALUE)*64;
+  
+  // set from the server configuration, when true files which are not growing are sent
+  // using FileChannel.transferTo instead of being copied through a buffer
+  public static boolean zeroCopy = true;
+  
+  // set from the server configuration, how long in seconds an idle persistent connection is 
+  // kept open waiting for the next request
+  public static int keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
   
   String root = null;
   Socket requestSock = null;
+  Semaphore streamPermits = null;
   long startPosition = 0;
   long requestedStartPosition = 0;
-  long endPosition = 0;
+  long endPosition = NO_POSITION;
+  long suffixLength = NO_POSITION;
+  boolean rangeRequested = false;
+  double timeSeekStart = NO_TIME_SEEK;
+  boolean headRequest = false;
   boolean samsung = false;
+  boolean keepAlive = false;
+  boolean statusRequest = false;
+  LiveRingBuffer.Cursor cursor = null;
 
   /**
    * Constructor
    * @param root  filesystem root where files to serve are located
    * @param sock  socket from which to read the contents of the request
+   * @param streamPermits permits for the requests which can be answered at the same time
    */
-  public RequestThread(String root, Socket sock){
+  public RequestThread(String root, Socket sock, Semaphore streamPermits){
     this.root = root;
     requestSock = sock;
+    this.streamPermits = streamPermits;
   }
   
   /**
-   * There run method that does the actual work
+   * The run method that does the actual work, called by the request executor in the ListenerThread.
+   * Requests on the connection are handled one after the other until the client asks for the 
+   * connection to be closed, a response is sent after which the connection cannot be re-used, or 
+   * the connection has been idle for longer than the keep alive timeout. The connection only holds
+   * one of the stream permits while a request is being answered, not while it waits for the next one
    */
   public void run() {
+    try {
+      BufferedReader in = new BufferedReader(new InputStreamReader(requestSock.getInputStream()));
+      OutputStream fileOut = requestSock.getOutputStream();
+      requestSock.setSoTimeout(keepAliveTimeout*1000);
+      String requestLine = waitForRequest(in);
+      while(requestLine != null){
+        if (!streamPermits.tryAcquire()){
+          rejectRequest(in, fileOut);
+          break;
+        }
+        boolean reuse = false;
+        try {
+          reuse = handleRequest(requestLine, in, fileOut);
+        } finally {
+          streamPermits.release();
+          // let the live buffer release its storage once no one is reading it
+          if (cursor != null){
+            cursor.close();
+            cursor = null;
+          }
+        }
+        if (!reuse){
+          break;
+        }
+        System.out.println("Waiting for next request on connection");
+        requestLine = waitForRequest(in);
+      }
+    } catch (SocketTimeoutException e) {
+      System.out.println("Connection idle, closing");
+    } catch (Exception e) {
+      // this occurs every time the client aborts watching something
+      System.out.println("Exception occured while handling request:" + e);
+      e.printStackTrace();
+    } finally {
+      try {requestSock.close();} catch (IOException e){/* just ignore*/ }
+    }
+  }
+  
+  /**
+   * Waits for the next request on the connection
+   * 
+   * @param in reader for the input from the connection
+   * @return the first line of the request or null if the client closed the connection
+   * @throws IOException if the connection fails or is idle for longer than the keep alive timeout
+   */
+  private String waitForRequest(BufferedReader in) throws IOException {
+    // skip over any blank lines left between requests
+    String nextLine = in.readLine();
+    while((nextLine != null)&&(nextLine.equals(""))){
+      nextLine = in.readLine();
+    }
+    return nextLine;
+  }
+  
+  /**
+   * Sends a 503 response to the client when we are already handling the maximum number of 
+   * streams so that it knows to try again later instead of waiting on a request that will
+   * never be served. The connection is closed afterwards
+   * 
+   * @param in reader for the input from the connection, the rest of the request is read from it
+   * @param fileOut OutputStream for the connection
+   * @throws IOException if the response cannot be sent
+   */
+  private void rejectRequest(BufferedReader in, OutputStream fileOut) throws IOException {
+    System.out.println("Maximum concurrent streams reached, rejecting request");
+    String nextLine = in.readLine();
+    while((nextLine != null)&&(!(nextLine.equals("")))){
+      nextLine = in.readLine();
+    }
+    PrintStream out = new PrintStream(fileOut);
+    out.print("HTTP/1.1 503 Service Unavailable\r\n");
+    out.print("Retry-After: " + RETRY_AFTER_SECONDS + "\r\n");
+    out.print("Content-Length: 0\r\n");
+    out.print("Connection: close\r\n");
+    out.print("\r\n");
+    out.flush();
+  }
+  
+  /**
+   * Reads the rest of a request on the connection and sends the response for it
+   * 
+   * @param requestLine the first line of the request
+   * @param in reader for the input from the connection, shared by all requests on the connection
+   * @param fileOut OutputStream for the connection
+   * @return true if the connection can be used for another request, false if it should be closed
+   * @throws Exception if there is a problem handling the request
+   */
+  private boolean handleRequest(String requestLine, BufferedReader in, OutputStream fileOut) throws Exception {
     boolean growingFile = false;
     String fileName = null;
     FileInputStream filein = null;
     File theFile = null;
-    String otaChannel = null;
-    String cableChannel = null;
-    long tuneSeq = OTASupport.NO_SEQ;
-    try {
-      
-      // parse the headers coming in, we need to know the file requested and if a range of bytes was requested
-      BufferedReader in = new BufferedReader(new InputStreamReader(requestSock.getInputStream()));
-      String nextLine = in.readLine();
-      while((nextLine != null)&&(!(nextLine.equals("")))){
-        System.out.println(nextLine);
-        if (nextLine.startsWith(GET_LINE)||nextLine.startsWith(HEAD_LINE)){
-          try {
-            if (nextLine.startsWith(GET_LINE)){
-              fileName = URLDecoder.decode(nextLine.substring(GET_LINE.length(), nextLine.indexOf(HTTP_VERSION_PREFIX)));
-            } else {
-              fileName = URLDecoder.decode(nextLine.substring(HEAD_LINE.length() + 1, nextLine.indexOf(HTTP_VERSION_PREFIX)));
+    LiveSession liveSession = null;
+    long tuneSeq = LiveBase.NO_SEQ;
+    KeptRegions keptRegions = null;
+    
+    // reset the per request state left over from the last request on the connection
+    startPosition = 0;
+    requestedStartPosition = 0;
+    endPosition = NO_POSITION;
+    suffixLength = NO_POSITION;
+    rangeRequested = false;
+    timeSeekStart = NO_TIME_SEEK;
+    headRequest = false;
+    samsung = false;
+    keepAlive = false;
+    statusRequest = false;
+    
+    // parse the headers coming in, we need to know the file requested and if a range of bytes was requested
+    String nextLine = requestLine;
+    while((nextLine != null)&&(!(nextLine.equals("")))){
+      System.out.println(nextLine);
+      String header = nextLine.toLowerCase();
+      if (nextLine.startsWith(GET_LINE)||nextLine.startsWith(HEAD_LINE)){
+        // HTTP/1.1 connections are persistent unless the client says otherwise, HTTP/1.0
+        // connections are only persistent if the client asks for it
+        keepAlive = !nextLine.substring(nextLine.indexOf(HTTP_VERSION_PREFIX)).trim().equals(HTTP_1_0);
+        try {
+          if (nextLine.startsWith(GET_LINE)){
+            fileName = URLDecoder.decode(nextLine.substring(GET_LINE.length(), nextLine.indexOf(HTTP_VERSION_PREFIX)));
+          } else {
+            fileName = URLDecoder.decode(nextLine.substring(HEAD_LINE.length(), nextLine.indexOf(HTTP_VERSION_PREFIX)));
+            headRequest = true;
+          }
+          System.out.println("Request for:" + fileName);
+          
+          if (fileName.trim().equals(STATUS_PATH)){
+            statusRequest = true;
+          } else if ((fileName.startsWith("/" + BuildContent.OTA_ROOT))||(fileName.startsWith(BuildContent.OTA_ROOT))){
+            fileName = fileName.trim();
+            // remove front / if is was there
+            if (fileName.startsWith("/")){
+              fileName = fileName.substring(1);
             }
-            System.out.println("Request for:" + fileName);
-            
-            if ((fileName.startsWith("/" + BuildContent.OTA_ROOT))||(fileName.startsWith(BuildContent.OTA_ROOT))){
-              fileName = fileName.trim();
-              // remove front / if is was there
-              if (fileName.startsWith("/")){
-                fileName = fileName.substring(1);
-              }
-              otaChannel = fileName.substring(BuildContent.OTA_ROOT.length() + 1);
-              tuneSeq = OTASupport.getInstance().watchChannel(otaChannel,tuneSeq);
-              fileName = OTASupport.getInstance().getFileName(otaChannel,tuneSeq);
-              theFile = new File(fileName);
-              growingFile = true;
-            } else if ((fileName.startsWith("/" + BuildContent.CABLE_ROOT))||(fileName.startsWith(BuildContent.CABLE_ROOT))){
-              fileName = fileName.trim();
-              // remove front / if is was there
-              if (fileName.startsWith("/")){
-                fileName = fileName.substring(1);
+            liveSession = OTASupport.getInstance().watchChannel(fileName.substring(BuildContent.OTA_ROOT.length() + 1));
+            tuneSeq = liveSession.getTuneSeq();
+            fileName = liveSession.getFileName(tuneSeq);
+            theFile = new File(fileName);
+            growingFile = true;
+          } else if ((fileName.startsWith("/" + BuildContent.CABLE_ROOT))||(fileName.startsWith(BuildContent.CABLE_ROOT))){
+            fileName = fileName.trim();
+            // remove front / if is was there
+            if (fileName.startsWith("/")){
+              fileName = fileName.substring(1);
+            }
+            liveSession = HDPVRSupport.getInstance().watchChannel(fileName.substring(BuildContent.CABLE_ROOT.length() + 1));
+            tuneSeq = liveSession.getTuneSeq();
+            fileName = liveSession.getFileName(tuneSeq);
+            theFile = new File(fileName);
+            growingFile = true;
+          
+          } else {
+            theFile = new File(root + File.separator + fileName.trim());
+            if ((!theFile.exists())&&(KeptRegions.isVirtualFileName(theFile.getName()))){
+              // the recording without its commercials is served from the original recording, 
+              // unless it has since been cleaned in which case the cleaned file is served
+              theFile = new File(KeptRegions.recordingFileName(theFile.getPath()));
+              keptRegions = KeptRegions.forRecording(theFile);
+              if (keptRegions == null){
+                theFile = new File(Cleaner.newFileName(theFile.getPath()));
               }
-              cableChannel = fileName.substring(BuildContent.CABLE_ROOT.length() + 1);
-              tuneSeq = HDPVRSupport.getInstance().watchChannel(cableChannel,tuneSeq);
-              fileName = HDPVRSupport.getInstance().getFileName(cableChannel,tuneSeq);
-              theFile = new File(fileName);
-              growingFile = true;
-            
-            } else {
-              theFile = new File(root + File.separator + fileName.trim());
             }
-          } catch (Exception e ){
-            e.printStackTrace();
-            System.out.println("Failed to open file for request:" + theFile.getPath());
           }
-          
-        } else if (nextLine.startsWith("Range: bytes=")){
-          startPosition = Long.parseLong(nextLine.substring(nextLine.indexOf("=")+1,nextLine.indexOf("-")));
-          requestedStartPosition = startPosition;
-          
-          // if we are asked for data which is beyond the end of the file just start sending from the beginning
-          // some clients seem to poll multiple places into the file, possibly to validate it. For live tv we 
-          // lie about the length so just return the start of the file if we are being asked for something past
-          // the current end.
-          if (startPosition > theFile.length()){
-            startPosition = 0;
+        } catch (Exception e ){
+          e.printStackTrace();
+          System.out.println("Failed to open file for request:" + theFile.getPath());
+        }
+        
+      } else if (header.startsWith(RANGE_HEADER)){
+        // ranges can be in the form start-end, start- or -suffixLength
+        String range = nextLine.substring(RANGE_HEADER.length()).trim();
+        try {
+          if (!range.toLowerCase().startsWith(BYTES_UNIT)){
+            throw new IllegalArgumentException("not a byte range");
           }
-          
-          if (nextLine.indexOf("-")!= -1){
-            try{
-              endPosition = Long.parseLong(nextLine.substring(nextLine.indexOf("-")+1));
-            } catch (NumberFormatException e){
-              // just ignore, request likely was just in form of xxxx- as opposed to specifying an end 
+          range = range.substring(BYTES_UNIT.length()).trim();
+          String start = range.substring(0,range.indexOf("-")).trim();
+          String end = range.substring(range.indexOf("-")+1).trim();
+          if (start.equals("")){
+            suffixLength = Long.parseLong(end);
+          } else {
+            requestedStartPosition = Long.parseLong(start);
+            if (!end.equals("")){
+              endPosition = Long.parseLong(end);
             }
           }
-        } else if (nextLine.startsWith(CONTENT_FEATURES_DLNA_ORG)){
-          samsung = true;
-          System.out.println("Samsung TV");
-        } else if (nextLine.startsWith(WDTV_USER_AGENT)){
-          // we need the same headers as for samsung otherwise ts etc. does not work properly
-          samsung = true;
-          System.out.println("WDTV Live");
+          rangeRequested = true;
+        } catch (Exception e){
+          // we don't support multiple ranges, just ignore the range and send the whole file
+          System.out.println("Ignoring unsupported range:" + range);
+        }
+      } else if (header.startsWith(TIME_SEEK_HEADER)){
+        // time seeks are in the form npt=start- or npt=start-end where the times are either seconds 
+        // or hh:mm:ss, only the start is used and only for live channels
+        String timeRange = nextLine.substring(TIME_SEEK_HEADER.length()).trim();
+        try {
+          if (!timeRange.toLowerCase().startsWith(NPT_PREFIX)){
+            throw new IllegalArgumentException("not a npt range");
+          }
+          timeRange = timeRange.substring(NPT_PREFIX.length()).trim();
+          timeSeekStart = parseNpt(timeRange.substring(0, timeRange.indexOf("-")));
+        } catch (Exception e){
+          System.out.println("Ignoring unsupported time seek:" + timeRange);
         }
-        nextLine = in.readLine();
-      }  
-      System.out.println("Finished processing input headers");
-      System.out.flush();
+      } else if (header.startsWith(CONNECTION_HEADER)){
+        String connection = nextLine.substring(CONNECTION_HEADER.length()).trim().toLowerCase();
+        if (connection.equals("close")){
+          keepAlive = false;
+        } else if (connection.equals("keep-alive")){
+          keepAlive = true;
+        }
+      } else if (header.startsWith(CONTENT_FEATURES_DLNA_ORG)&&(nextLine.substring(CONTENT_FEATURES_DLNA_ORG.length()).trim().equals("1"))){
+        samsung = true;
+        System.out.println("Samsung TV");
+      } else if (header.startsWith(USER_AGENT_HEADER)&&(nextLine.substring(USER_AGENT_HEADER.length()).trim().startsWith(WDTV_USER_AGENT))){
+        // we need the same headers as for samsung otherwise ts etc. does not work properly
+        samsung = true;
+        System.out.println("WDTV Live");
+      }
+      nextLine = in.readLine();
+    }  
+    System.out.println("Finished processing input headers");
+    System.out.flush();
+    
+    if (statusRequest){
+      return sendStatus(fileOut);
+    }
+
+    /////////////////////////////////
+    // ok now send the response 
+    //////////////////////////////////
+    PrintStream out = new PrintStream(fileOut);
+    
+    // the body for a growing file never ends so the connection cannot be used for another request
+    if (growingFile){
+      keepAlive = false;
+    }
+    
+    // Output the HTTP OK header along with the headers related to the data we are returning 
+    long fileLength = 0;
   
-      /////////////////////////////////
-      // ok now send the response 
-      //////////////////////////////////
-      OutputStream fileOut = requestSock.getOutputStream();
-      PrintStream out = new PrintStream(fileOut);
-      
-      
-      // Output the HTTP OK header along with the headers related to the data we are returning 
-      long fileLength = 0;
+    if (keptRegions != null){
+      fileLength = keptRegions.getLength();
+    } else if (!growingFile){
+      fileLength = theFile.length();
+    }  else {
+      fileLength = LIVE_FILE_LENGTH;
+    }
     
-      if (!growingFile){
-        fileLength = theFile.length();
-      }  else {
-        fileLength = ((long)Integer.MAX_VALUE)*64;
-      }
-      
-      if (startPosition != 0){
-        out.print("HTTP/1.0 206 Partial Content\r\n");
-        out.print("Content-Length: " + (fileLength - requestedStartPosition) + "\r\n");
-        out.print("CONTENT-RANGE: bytes " + requestedStartPosition + "-" + fileLength + "/" + fileLength + "\r\n");
+    // live data held in a buffer is read through a cursor rather than from the live file
+    LiveRingBuffer ringBuffer = null;
+    if (growingFile){
+      ringBuffer = liveSession.getRingBuffer();
+    }
+    
+    // work out the slice of the file to be sent
+    long lastPosition = fileLength - 1;
+    boolean unsatisfiable = false;
+    if (rangeRequested){
+      if (suffixLength != NO_POSITION){
+        startPosition = Math.max(0, fileLength - suffixLength);
+        unsatisfiable = (suffixLength == 0);
       } else {
-        out.print("HTTP/1.0 200 OK\r\n");
-        out.print("Content-Length: " + fileLength + "\r\n");
+        startPosition = requestedStartPosition;
+        if (endPosition != NO_POSITION){
+          lastPosition = Math.min(endPosition, fileLength - 1);
+        }
       }
       
-      System.out.println("Sent HTTP response");
-
-      // output the content type
-      if (!samsung){
-        MimeType mimeType = ContentTypes.getMimeType(ContentTypes.getExtension(fileName));
-        out.print("Content-Type: " + mimeType.toString() + "\r\n");
+      if (growingFile){
+        // some clients seem to poll multiple places into the file, possibly to validate it. For live tv we 
+        // lie about the length so just return the start of the file if we are being asked for something past
+        // the current end.
+        if ((ringBuffer == null)&&(startPosition > theFile.length())){
+          startPosition = 0;
+        }
+      } else if ((startPosition >= fileLength)||(lastPosition < startPosition)){
+        unsatisfiable = true;
+      }
+    }
+    
+    // for live data in a buffer, start from the offset or time requested as long as it is still held
+    // in the buffer. Otherwise start close to live 
+    if ((ringBuffer != null)&&(!unsatisfiable)){
+      if ((timeSeekStart != NO_TIME_SEEK)&&(ringBuffer instanceof TimeShiftBuffer)){
+        TimeShiftBuffer timeShift = (TimeShiftBuffer) ringBuffer;
+        cursor = ringBuffer.newCursor(timeShift.streamOffsetForTime(timeShift.getSessionStartTime() + (long) (timeSeekStart*1000)));
+        startPosition = cursor.getStreamOffset();
+      } else if (rangeRequested){
+        cursor = ringBuffer.newCursor(startPosition);
+        startPosition = cursor.getStreamOffset();
       } else {
-        out.print("Content-Type: video/mpeg\r\n");
+        cursor = ringBuffer.newCursor();
       }
-      
-      // standard static headers
-      out.print("Accept-Ranges: bytes\r\n");
-      out.print("Pragma: no-cache\r\n");
-      out.print("Expires:0\r\n");
-      out.print("Cache-Control: no-cache, no-store, must-revalidate, max-age=0, proxy-revalidate, no-transform, private\r\n");
-      out.print("Server: Michaels Media Sever 0.1\r\n");
+      if (lastPosition < startPosition){
+        unsatisfiable = true;
+      }
+    }
+    long contentLength = lastPosition - startPosition + 1;
+    
+    if (unsatisfiable){
+      System.out.println("Unsatisfiable range requested, file length:" + fileLength);
+      out.print("HTTP/1.1 416 Requested Range Not Satisfiable\r\n");
+      out.print("Content-Length: 0\r\n");
+      out.print("Content-Range: bytes */" + fileLength + "\r\n");
+    } else if (rangeRequested||(contentLength != fileLength)){
+      // clients asking for a range, even the whole file, need the Content-Range to know they can seek
+      out.print("HTTP/1.1 206 Partial Content\r\n");
+      out.print("Content-Length: " + contentLength + "\r\n");
+      out.print("Content-Range: bytes " + startPosition + "-" + lastPosition + "/" + fileLength + "\r\n");
+    } else {
+      out.print("HTTP/1.1 200 OK\r\n");
+      out.print("Content-Length: " + fileLength + "\r\n");
+    }
+    
+    System.out.println("Sent HTTP response");
+
+    // output the content type
+    if (!samsung){
+      MimeType mimeType = ContentTypes.getMimeType(ContentTypes.getExtension(fileName));
+      out.print("Content-Type: " + mimeType.toString() + "\r\n");
+    } else {
+      out.print("Content-Type: video/mpeg\r\n");
+    }
+    
+    // standard static headers
+    out.print("Accept-Ranges: bytes\r\n");
+    out.print("Pragma: no-cache\r\n");
+    out.print("Expires:0\r\n");
+    out.print("Cache-Control: no-cache, no-store, must-revalidate, max-age=0, proxy-revalidate, no-transform, private\r\n");
+    out.print("Server: Michaels Media Sever 0.1\r\n");
+    if (keepAlive){
       out.print("Connection: keep-alive\r\n");
-      
-      // Date headers
-      Calendar now = Calendar.getInstance();
-      String dateString = (new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z")).format(now.getTime());
-      out.print("Date: "+ dateString + "\r\n");
-      out.print("LAST-MODIFIED: " + dateString + "\r\n");
-      System.out.println("Date: "+ dateString);
-      System.out.println("LAST-MODIFIED: " + dateString);
-            
-      // extra headers needed by samsung tvs
-      if (samsung) {
-        out.print("contentFeatures.dlna.org: DLNA.ORG_OP=01;DLNA.ORG_CI=0;DLNA.ORG_FLAGS=01700000000000000000000000000000\r\n");
-        out.print("transferMode.dlna.org: Streaming\r\n");
+      out.print("Keep-Alive: timeout=" + keepAliveTimeout + "\r\n");
+    } else {
+      out.print("Connection: close\r\n");
+    }
+    
+    // Date headers
+    Calendar now = Calendar.getInstance();
+    String dateString = (new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z")).format(now.getTime());
+    out.print("Date: "+ dateString + "\r\n");
+    out.print("LAST-MODIFIED: " + dateString + "\r\n");
+    System.out.println("Date: "+ dateString);
+    System.out.println("LAST-MODIFIED: " + dateString);
+          
+    // let the client know we honored the time seek
+    if (cursor != null && timeSeekStart != NO_TIME_SEEK){
+      out.print("TimeSeekRange.dlna.org: npt=" + timeSeekStart + "-\r\n");
+    }
+          
+    // extra headers needed by samsung tvs
+    if (samsung) {
+      out.print("contentFeatures.dlna.org: DLNA.ORG_OP=01;DLNA.ORG_CI=0;DLNA.ORG_FLAGS=01700000000000000000000000000000\r\n");
+      out.print("transferMode.dlna.org: Streaming\r\n");
+    }
+
+    // add blank line and make sure everything is flushed out
+    out.print("\r\n");
+    out.flush();
+    
+    System.out.println("Finished sending headers");
+    
+    // HEAD requests and requests for ranges we can't provide don't have a body 
+    if (unsatisfiable || headRequest){
+      return keepAlive;
+    }
+    System.out.println("Start Position:" + startPosition + " Content Length:" + contentLength);
+    
+    // live data is either read from the shared in memory buffer or tailed from the file 
+    // as the capture thread writes it
+    if (cursor != null){
+      sendFromRingBuffer(cursor, contentLength, fileOut, liveSession, tuneSeq);
+      System.out.println("Finished sending live data");
+      return keepAlive;
+    } else if (growingFile){
+      sendGrowingFile(theFile, startPosition, contentLength, fileOut, liveSession, tuneSeq);
+      System.out.println("Finished sending file");
+      return keepAlive;
+    }
+    
+    // the recording without its commercials is sent region by region from the original recording
+    if (keptRegions != null){
+      if (sendKeptRegions(theFile, keptRegions, startPosition, contentLength, fileOut) != contentLength){
+        // we did not send the length promised so the connection cannot be re-used
+        keepAlive = false;
+      }
+      System.out.println("Finished sending file");
+      return keepAlive;
+    }
+    
+    // files that are complete can be sent straight from the page cache to the socket
+    if (zeroCopy){
+      if (sendFileZeroCopy(theFile, startPosition, contentLength, fileOut) != contentLength){
+        // we did not send the length promised so the connection cannot be re-used
+        keepAlive = false;
       }
+      System.out.println("Finished sending file");
+      return keepAlive;
+    }
+    
+    // now actually open the file 
+    filein = new FileInputStream(theFile);
+    System.out.println("Opened file:" + theFile.getPath());
 
-      // add blank line and make sure everything is flushed out
-      out.print("\r\n");
-      out.flush();
-      
-      System.out.println("Finished sending headers");
-      System.out.println("Start Position:" + startPosition);
-      
-      // now actually open the file 
-      filein = new FileInputStream(theFile);
-      System.out.println("Opened file:" + theFile.getPath());
+    // now send the requested bytes themselves.
+    boolean markedViewed = false;
+    byte[] buf = new byte[FILE_SERVE_INCREMENT];
+    long totalBytesRead = 0;
+    long remaining = contentLength;
+    if (startPosition != 0){
+      totalBytesRead = filein.skip(startPosition);
+    }
 
-      // now send the requested bytes themselves.
-      boolean markedViewed = false;
-      byte[] buf = new byte[FILE_SERVE_INCREMENT];
-      long totalBytesRead = 0;
-      if (startPosition != 0){
-        totalBytesRead = filein.skip(startPosition);
+    while((filein.available() >0)&&(remaining > 0)){
+      int amountToRead = (int) Math.min(buf.length, remaining);
+      int amountRead = filein.read(buf,0,amountToRead);
+      if (amountRead >0){
+        totalBytesRead = totalBytesRead + amountRead;
+        remaining = remaining - amountRead;
+        fileOut.write(buf,0,amountRead);
       }
 
-      while(true){
-        while(filein.available() >0 ){
-          int amountToRead = buf.length;
-          if (otaChannel != null){
-            tuneSeq = OTASupport.getInstance().watchChannel(otaChannel,tuneSeq);
-          }
-          if (cableChannel != null){
-            tuneSeq = HDPVRSupport.getInstance().watchChannel(cableChannel,tuneSeq);
-          }
-          int amountRead = filein.read(buf,0,amountToRead);
-          if (amountRead >0){
-            totalBytesRead = totalBytesRead + amountRead;
-            fileOut.write(buf,0,amountRead);
-          }
+      // now check if we should mark this file as viewed.
+      if (!markedViewed){
+        markedViewed = WatchedHandler.watching(theFile);
+      }
+      fileOut.flush();
+    }
+    System.out.println("Finished sending file");
+    filein.close();
+    if (remaining > 0){
+      // file was shorter than expected, so we did not send the length promised
+      keepAlive = false;
+    }
+    return keepAlive;
+  }
   
-          // now check if we should mark this file as viewed.
-          if ((!markedViewed)&&(!growingFile)){
-            markedViewed = WatchedHandler.watching(theFile);
-          }
-          fileOut.flush();
+  /**
+   * Sends the status page, which shows what each of the live tuners is doing along with
+   * the statistics for the data they are receiving
+   * 
+   * @param fileOut OutputStream for the connection
+   * @return true if the connection can be used for another request, false if it should be closed
+   * @throws Exception if there is a problem sending the page
+   */
+  private boolean sendStatus(OutputStream fileOut) throws Exception {
+    StringBuffer status = new StringBuffer();
+    try {
+      status.append(OTASupport.getInstance().getStatus());
+    } catch (Exception e){
+      // OTA support is not set up
+    }
+    try {
+      status.append(HDPVRSupport.getInstance().getStatus());
+    } catch (Exception e){
+      // HDPVR support is not set up
+    }
+    byte[] body = status.toString().getBytes("UTF-8");
+    
+    PrintStream out = new PrintStream(fileOut);
+    out.print("HTTP/1.1 200 OK\r\n");
+    out.print("Content-Length: " + body.length + "\r\n");
+    out.print("Content-Type: text/plain; charset=utf-8\r\n");
+    out.print("Cache-Control: no-cache\r\n");
+    out.print("Server: Michaels Media Sever 0.1\r\n");
+    if (keepAlive){
+      out.print("Connection: keep-alive\r\n");
+      out.print("Keep-Alive: timeout=" + keepAliveTimeout + "\r\n");
+    } else {
+      out.print("Connection: close\r\n");
+    }
+    out.print("\r\n");
+    if (!headRequest){
+      out.write(body, 0, body.length);
+    }
+    out.flush();
+    return keepAlive;
+  }
+  
+  /**
+   * Sends the requested portion of a file using FileChannel.transferTo so that the data does not 
+   * have to be copied through a buffer in the jvm.  The transfer is done in FILE_SERVE_INCREMENT 
+   * sized pieces so that we can still track how long the file has been watched
+   * 
+   * @param theFile the file to be sent
+   * @param position the position in the file from which to start sending
+   * @param length the number of bytes to send
+   * @param fileOut the OutputStream for the socket, used if the socket does not have a channel
+   * @return the number of bytes sent, less than length if the file was shorter than expected
+   * @throws Exception if there is a problem sending the file
+   */
+  private long sendFileZeroCopy(File theFile, long position, long length, OutputStream fileOut) throws Exception {
+    FileInputStream filein = new FileInputStream(theFile);
+    System.out.println("Opened file:" + theFile.getPath());
+    try {
+      FileChannel fileChannel = filein.getChannel();
+      WritableByteChannel socketChannel = getSocketChannel(fileOut);
+      boolean markedViewed = false;
+      long totalSent = 0;
+      while(totalSent < length){
+        long amountSent = fileChannel.transferTo(position + totalSent, Math.min(FILE_SERVE_INCREMENT, length - totalSent), socketChannel);
+        if (amountSent <= 0){
+          // file was truncated underneath us
+          break;
+        }
+        totalSent = totalSent + amountSent;
+        
+        // now check if we should mark this file as viewed.
+        if (!markedViewed){
+          markedViewed = WatchedHandler.watching(theFile);
         }
-        if (!growingFile){
+      }
+      return totalSent;
+    } finally {
+      filein.close();
+    }
+  }
+  
+  /**
+   * Sends the requested portion of a recording with its commercials cut out.  The position and
+   * length are in terms of the recording without the commercials and are mapped onto the regions
+   * of the original recording which are kept, so the cleaned file does not have to be written first
+   * 
+   * @param theFile the original recording
+   * @param keptRegions the regions of the recording which are kept
+   * @param position the position in the recording without commercials from which to start sending
+   * @param length the number of bytes to send
+   * @param fileOut the OutputStream for the socket, used if the socket does not have a channel
+   * @return the number of bytes sent, less than length if the recording was shorter than expected
+   * @throws Exception if there is a problem sending the file
+   */
+  private long sendKeptRegions(File theFile, KeptRegions keptRegions, long position, long length, OutputStream fileOut) throws Exception {
+    FileInputStream filein = new FileInputStream(theFile);
+    System.out.println("Opened file:" + theFile.getPath());
+    try {
+      FileChannel fileChannel = filein.getChannel();
+      WritableByteChannel socketChannel = getSocketChannel(fileOut);
+      boolean markedViewed = false;
+      long totalSent = 0;
+      while(totalSent < length){
+        long amountSent = keptRegions.transferTo(fileChannel, position + totalSent, Math.min(FILE_SERVE_INCREMENT, length - totalSent), socketChannel);
+        if (amountSent <= 0){
+          // file was truncated underneath us
           break;
         }
-        Thread.sleep(GROWING_FILE_RETRY_WAIT_MS);
-        filein.close();
-        // now reopen the file so that we can get what more is now available
-        filein = new FileInputStream(theFile);
-        filein.skip(totalBytesRead);
+        totalSent = totalSent + amountSent;
+        
+        // now check if we should mark this file as viewed.
+        if (!markedViewed){
+          markedViewed = WatchedHandler.watching(theFile);
+        }
       }
-      System.out.println("Finished sending file");
+      return totalSent;
+    } finally {
+      filein.close();
+    }
+  }
+  
+  /**
+   * Sends a live file that is still being written by the capture thread.  A single channel is kept 
+   * open on the file and whatever has been written is sent as soon as the capture thread tells us 
+   * that more data has been appended, instead of polling by re-opening the file
+   * 
+   * @param theFile the file to be sent
+   * @param position the position in the file from which to start sending
+   * @param length the number of bytes to send
+   * @param fileOut the OutputStream for the socket, used if the socket does not have a channel
+   * @param liveSession the live session doing the capture into the file
+   * @param tuneSeq the sequence number associated with the watch session
+   * @throws Exception if there is a problem sending the file or the channel is changed
+   */
+  private void sendGrowingFile(File theFile, long position, long length, OutputStream fileOut, 
+                               LiveSession liveSession, long tuneSeq) throws Exception {
+    FileInputStream filein = new FileInputStream(theFile);
+    System.out.println("Opened file:" + theFile.getPath());
+    try {
+      FileChannel fileChannel = filein.getChannel();
+      WritableByteChannel socketChannel = getSocketChannel(fileOut);
+      ByteBuffer buffer = null;
+      if (!zeroCopy){
+        buffer = ByteBuffer.allocate(FILE_SERVE_INCREMENT);
+      }
+      
+      long totalSent = 0;
+      long lastData = System.currentTimeMillis();
+      while(totalSent < length){
+        // get the capture sequence before checking the size so that we don't miss being woken
+        // up for data written after the check
+        long captureSeq = liveSession.getCaptureSeq();
+        long available = fileChannel.size() - (position + totalSent);
+        if (available <= 0){
+          checkLiveSession(liveSession, tuneSeq, lastData);
+          liveSession.waitForCapture(captureSeq, GROWING_FILE_RETRY_WAIT_MS);
+          continue;
+        }
+        
+        liveSession.heartbeat(tuneSeq);
+        lastData = System.currentTimeMillis();
+        long amountToSend = Math.min(Math.min(available, FILE_SERVE_INCREMENT), length - totalSent);
+        if (zeroCopy){
+          totalSent = totalSent + fileChannel.transferTo(position + totalSent, amountToSend, socketChannel);
+        } else {
+          buffer.clear();
+          buffer.limit((int) amountToSend);
+          int amountRead = fileChannel.read(buffer, position + totalSent);
+          buffer.flip();
+          while(buffer.hasRemaining()){
+            socketChannel.write(buffer);
+          }
+          totalSent = totalSent + amountRead;
+        }
+      }
+    } finally {
       filein.close();
-      requestSock.close();
-    } catch (Exception e) {
-      // this occurs every time the client aborts watching something
-      System.out.println("Exception occured while handling request:" + e);
-      e.printStackTrace();
     }
   }
+  
+  /**
+   * Sends live data from the buffer shared by all viewers of the channel. Each request gets 
+   * its own cursor into the buffer
+   * 
+   * @param cursor the cursor for this request 
+   * @param length the number of bytes to send
+   * @param fileOut the OutputStream for the socket, used if the socket does not have a channel
+   * @param liveSession the live session doing the capture into the buffer
+   * @param tuneSeq the sequence number associated with the watch session
+   * @throws Exception if there is a problem sending the data or the channel is changed
+   */
+  private void sendFromRingBuffer(LiveRingBuffer.Cursor cursor, long length, OutputStream fileOut, 
+                                  LiveSession liveSession, long tuneSeq) throws Exception {
+    WritableByteChannel socketChannel = getSocketChannel(fileOut);
+    try {
+      long totalSent = 0;
+      long lastData = System.currentTimeMillis();
+      while(totalSent < length){
+        // get the capture sequence before checking what is available so that we don't miss 
+        // being woken up for data written after the check
+        long captureSeq = liveSession.getCaptureSeq();
+        long available = cursor.available();
+        if (available < 0){
+          // capture has stopped and the buffer has been closed, this is the end of the stream
+          System.out.println("Live buffer closed, ending stream");
+          break;
+        }
+        if (available == 0){
+          checkLiveSession(liveSession, tuneSeq, lastData);
+          liveSession.waitForCapture(captureSeq, GROWING_FILE_RETRY_WAIT_MS);
+          continue;
+        }
+        
+        liveSession.heartbeat(tuneSeq);
+        lastData = System.currentTimeMillis();
+        long amountSent = cursor.read(socketChannel, Math.min(FILE_SERVE_INCREMENT, length - totalSent));
+        if (amountSent < 0){
+          System.out.println("Live buffer closed, ending stream");
+          break;
+        }
+        totalSent = totalSent + amountSent;
+      }
+    } finally {
+      if (cursor.getOverruns() > 0){
+        System.out.println("Viewer fell behind live buffer " + cursor.getOverruns() + " times, bytes skipped:" + cursor.getDroppedBytes());
+      }
+    }
+  }
+  
+  /**
+   * Called while a viewer is waiting for more live data to check that there is still live data
+   * coming for it.  The session may have been re-tuned to another channel or stopped, or the tuner 
+   * may have stopped delivering data, in which case waiting any longer would tie up the thread
+   * 
+   * @param liveSession the live session doing the capture
+   * @param tuneSeq the sequence number associated with the watch session
+   * @param lastData the time live data was last sent to the viewer
+   * @throws Exception if the viewer should stop waiting for live data
+   */
+  private void checkLiveSession(LiveSession liveSession, long tuneSeq, long lastData) throws Exception {
+    if ((liveSession.getTuneSeq() != tuneSeq)||(liveSession.getChannel() == null)){
+      throw new Exception("Channel Changed");
+    }
+    if ((System.currentTimeMillis() - lastData) > LIVE_NO_DATA_TIMEOUT_MS){
+      throw new Exception("No live data received for " + (LIVE_NO_DATA_TIMEOUT_MS/1000) + " seconds");
+    }
+  }
+  
+  /**
+   * Parses a DLNA normal play time which is either a number of seconds or in the form hh:mm:ss
+   * where the seconds can have a fractional part
+   * 
+   * @param npt the normal play time
+   * @return the number of seconds
+   * @throws NumberFormatException if the time is not in a format we understand
+   */
+  static double parseNpt(String npt){
+    String[] parts = npt.trim().split(":");
+    double seconds = 0;
+    for (int i=0;i<parts.length;i++){
+      seconds = seconds*60 + Double.parseDouble(parts[i]);
+    }
+    return seconds;
+  }
+  
+  /**
+   * Returns the channel to be used to write to the socket. Sockets accepted through a 
+   * ServerSocketChannel have a channel that transferTo can use to do the copy in the kernel, 
+   * otherwise fall back to wrapping the stream
+   * 
+   * @param fileOut the OutputStream for the socket
+   * @return the channel to be used to write to the socket
+   */
+  private WritableByteChannel getSocketChannel(OutputStream fileOut){
+    WritableByteChannel socketChannel = requestSock.getChannel();
+    if (socketChannel == null){
+      socketChannel = Channels.newChannel(fileOut);
+    }
+    return socketChannel;
+  }
 }
-
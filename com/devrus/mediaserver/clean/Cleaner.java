@@ -5,10 +5,13 @@
 package com.devrus.mediaserver.clean;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
+import com.devrus.mediaserver.ts.TSAnalyzer;
+
 public class Cleaner {
-  final static int BUFFER_SIZE = 1024*1024*4;
   final static String LINE_START  = "<region start=\"";
   final static String LINE_MIDDLE = "\" end=\"";
 
@@ -22,59 +25,25 @@ public class Cleaner {
     
     // First read in the comskip markers
     try {
-      ArrayList<Commercial> commercials = new ArrayList<Commercial>();
-      File theFile = new File(baseFileName + ".edlx");
-      FileInputStream input = new FileInputStream(theFile);
-      InputStreamReader theInput = new InputStreamReader(input);
-      BufferedReader theReader = new BufferedReader(theInput);
-      
-      String nextLine = theReader.readLine();
-      while(nextLine != null){
-        if (nextLine.startsWith(LINE_START)){
-          nextLine = nextLine.substring(LINE_START.length());
-          Long start = Long.parseLong(nextLine.substring(0,nextLine.indexOf("\"")));
-          nextLine = nextLine.substring(nextLine.indexOf("\"")+ LINE_MIDDLE.length());
-          Long end = Long.parseLong(nextLine.substring(0,nextLine.indexOf("\"")));
-          // we need to check end > start as comskip has a bug where the last commercial ends having
-          // 0 for the end
-          if (end > start) {
-            commercials.add(new Commercial(start,end));
-          }
-        }
-        nextLine = theReader.readLine();
-      }
-      theReader.close();
-
+      ArrayList<Commercial> commercials = readCommercials(new File(edlxFileName(args[0])));
       
-      // ok now create file without commercials
+      // ok now create file without commercials, the parts of the file we keep are passed from
+      // the input to the output by the OS without being read into the JVM
       File inputFile = new File(baseFileName + ".ts");
       File outputFile = new File(baseFileName + ".clean.ts");
       System.out.println("Output file name:" + outputFile.getAbsolutePath());
       
-      commercials.add(new Commercial(inputFile.length(),inputFile.length()));
-      
-      FileInputStream inputStream = new FileInputStream(inputFile);
-      FileOutputStream outputStream = new FileOutputStream(outputFile);
-      
-      byte[] buffer = new byte[BUFFER_SIZE];
-      long totalBytesRead = 0;
-      int currentCommercialIndex = 0;
-      Commercial currentCommercial = commercials.get(currentCommercialIndex);
-      while (inputStream.available() !=  0){
-        int bytesRead = inputStream.read(buffer,0,(int)(Math.min(currentCommercial.start-totalBytesRead,BUFFER_SIZE)));
-        outputStream.write(buffer,0,bytesRead);
-        totalBytesRead = totalBytesRead + bytesRead;
-        if (inputStream.available() != 0){
-          if (totalBytesRead == currentCommercial.start){
-            long skipped = inputStream.skip(currentCommercial.end-currentCommercial.start);
-            totalBytesRead = totalBytesRead + (currentCommercial.end-currentCommercial.start);
-            currentCommercialIndex++;
-            currentCommercial = commercials.get(currentCommercialIndex);
-          }
+      FileChannel inputChannel = new FileInputStream(inputFile).getChannel();
+      FileChannel outputChannel = new FileOutputStream(outputFile).getChannel();
+      try {
+        KeptRegions regions = new KeptRegions(commercials, inputChannel.size(), findPacketStart(inputChannel));
+        for (int i=0;i<regions.getRegionCount();i++) {
+          transferRegion(inputChannel, outputChannel, regions.getRegionStart(i), regions.getRegionEnd(i));
         }
+      } finally {
+        inputChannel.close();
+        outputChannel.close();
       }
-      inputStream.close();
-      outputStream.close();
       inputFile.delete();
     } catch (Exception e) {
       try {
@@ -91,6 +60,90 @@ public class Cleaner {
   }
   
   
+  /**
+   * Reads the commercials found by comskip
+   * @param edlxFile the .edlx file written by comskip
+   * @return the commercials
+   * @throws IOException if the file cannot be read
+   */
+  static ArrayList<Commercial> readCommercials(File edlxFile) throws IOException {
+    ArrayList<Commercial> commercials = new ArrayList<Commercial>();
+    BufferedReader theReader = new BufferedReader(new InputStreamReader(new FileInputStream(edlxFile)));
+    try {
+      String nextLine = theReader.readLine();
+      while(nextLine != null){
+        if (nextLine.startsWith(LINE_START)){
+          nextLine = nextLine.substring(LINE_START.length());
+          Long start = Long.parseLong(nextLine.substring(0,nextLine.indexOf("\"")));
+          nextLine = nextLine.substring(nextLine.indexOf("\"")+ LINE_MIDDLE.length());
+          Long end = Long.parseLong(nextLine.substring(0,nextLine.indexOf("\"")));
+          // we need to check end > start as comskip has a bug where the last commercial ends having
+          // 0 for the end
+          if (end > start) {
+            commercials.add(new Commercial(start,end));
+          }
+        }
+        nextLine = theReader.readLine();
+      }
+    } finally {
+      theReader.close();
+    }
+    return commercials;
+  }
+  
+  /**
+   * Copies a region of the input file to the end of the output file
+   * @param input the channel for the input file
+   * @param output the channel for the output file
+   * @param start offset in the input of the start of the region
+   * @param end offset in the input of the end of the region
+   * @throws IOException if the region cannot be copied
+   */
+  static void transferRegion(FileChannel input, FileChannel output, long start, long end) throws IOException {
+    long position = start;
+    while (position < end) {
+      long transferred = input.transferTo(position, end - position, output);
+      if (transferred <= 0) {
+        throw new IOException("Failed to copy from offset " + position);
+      }
+      position = position + transferred;
+    }
+  }
+  
+  /**
+   * Moves an offset back to the start of the packet it is in so that we only cut between
+   * packets
+   * @param offset the offset in the file
+   * @param packetStart offset of the first packet in the file
+   * @return the offset of the start of the packet
+   */
+  static long alignToPacket(long offset, long packetStart) {
+    if (offset <= packetStart) {
+      return offset;
+    }
+    return packetStart + ((offset - packetStart)/TSAnalyzer.TS_PACKET_SIZE)*TSAnalyzer.TS_PACKET_SIZE;
+  }
+  
+  /**
+   * Finds the offset of the first packet in the file, which is normally 0 but may not be if
+   * the recording did not start on a packet boundary
+   * @param input the channel for the file
+   * @return the offset of the first packet, 0 if one could not be found
+   * @throws IOException if the file cannot be read
+   */
+  static long findPacketStart(FileChannel input) throws IOException {
+    ByteBuffer start = ByteBuffer.allocate(TSAnalyzer.TS_PACKET_SIZE*3);
+    while ((start.hasRemaining())&&(input.read(start, start.position()) > 0));
+    for (int i=0;(i + TSAnalyzer.TS_PACKET_SIZE*2) < start.position();i++) {
+      if ((start.get(i) == TSAnalyzer.SYNC_BYTE)&&
+          (start.get(i + TSAnalyzer.TS_PACKET_SIZE) == TSAnalyzer.SYNC_BYTE)&&
+          (start.get(i + TSAnalyzer.TS_PACKET_SIZE*2) == TSAnalyzer.SYNC_BYTE)) {
+        return i;
+      }
+    }
+    return 0;
+  }
+  
   /**
    * Helper function to get the extension from a filename
    * @param filename the file name to get the extension from
@@ -107,5 +160,9 @@ public class Cleaner {
   public static String newFileName(String filename){
     return removeExtension(filename) + ".clean.ts";
   }
+  
+  public static String edlxFileName(String filename){
+    return removeExtension(filename) + ".edlx";
+  }
 
 }
@@ -4,8 +4,11 @@
 
 package com.devrus.mediaserver.clean;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.util.Date;
 
@@ -53,12 +56,7 @@ public class DetectAndClean {
       System.out.println(command);
       
       Process theProcess = Runtime.getRuntime().exec(command);
-      InputStream theInput = theProcess.getInputStream();
-      theProcess.getErrorStream().close();
-      OutputStream theOutput = theProcess.getOutputStream();
-      
-      theOutput.close();
-      theInput.close();
+      OutputDrainer.drain(theProcess);
 
       theProcess.waitFor();
       System.out.println("commercial detection done");
@@ -112,15 +110,12 @@ public class DetectAndClean {
     System.out.println(command);
     try {
       Process theProcess = Runtime.getRuntime().exec(command);
-      final InputStream theInput = theProcess.getInputStream();
-      final InputStream theError = theProcess.getErrorStream();
-      OutputStream theOutput = theProcess.getOutputStream();
-      
-      theOutput.close();
-      theInput.close();
-      theError.close();
+      OutputDrainer error = OutputDrainer.drain(theProcess);
 
-      theProcess.waitFor();
+      if (theProcess.waitFor() != 0) {
+        System.out.println("Compression failed, last error output:" + error.getLastLine());
+        return;
+      }
       System.out.println("compression done:(" + new Date() + ")");
       theFile.renameTo(new File(theFile.getAbsolutePath() + ".compressed"));
     } catch (Exception e){
@@ -129,4 +124,63 @@ public class DetectAndClean {
     }
   }
   
+  /**
+   * Thread which reads the output of a process so that the process is not blocked writing 
+   * to it, or killed for writing to a pipe that has been closed.  Only the last line is kept 
+   * so that it can be reported if the process fails
+   */
+  public static class OutputDrainer extends Thread {
+    private InputStream stream;
+    private volatile String lastLine = null;
+    
+    public OutputDrainer(InputStream stream){
+      this.stream = stream;
+      setDaemon(true);
+    }
+    
+    /**
+     * Closes the input of a process which is not given any and starts threads reading 
+     * its standard output and error
+     * @param theProcess the process
+     * @return the thread reading the error output
+     * @throws IOException if the input of the process cannot be closed
+     */
+    public static OutputDrainer drain(Process theProcess) throws IOException {
+      OutputStream theOutput = theProcess.getOutputStream();
+      theOutput.close();
+      (new OutputDrainer(theProcess.getInputStream())).start();
+      OutputDrainer error = new OutputDrainer(theProcess.getErrorStream());
+      error.start();
+      return error;
+    }
+    
+    /**
+     * Reads the output until the process closes it
+     */
+    public void run(){
+      try {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+        String nextLine = reader.readLine();
+        while (nextLine != null){
+          if (nextLine.trim().length() > 0){
+            lastLine = nextLine;
+          }
+          nextLine = reader.readLine();
+        }
+      } catch (IOException e){
+        // the process has gone away
+      } finally {
+        try {stream.close();} catch (IOException e){/* just ignore*/ }
+      }
+    }
+    
+    /**
+     * Returns the last line which was not blank read from the process
+     * @return the line or null if there was none
+     */
+    public String getLastLine(){
+      return lastLine;
+    }
+  }
+  
 }
@@ -0,0 +1,269 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.clean;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The parts of a recording which are left once the commercials found by comskip are cut
+ * out.  This is used both by the Cleaner to write the file without commercials and to serve
+ * a "virtual" clean version of a recording straight from the original file, mapping offsets
+ * in the clean version onto the regions which are kept.
+ *
+ * The offset in the clean version of the start of each region is kept in a sorted array so
+ * that the region holding any offset is found with a binary search.
+ */
+public class KeptRegions {
+  // constants
+  public static final String VIRTUAL_CLEAN_TRAILER = ".virtual.clean.ts";
+  private static final int MAX_CACHED = 32;
+
+  // indexes recently used to serve recordings, so that each range request does not need to
+  // read the .edlx file again
+  private static LinkedHashMap<String,KeptRegions> cache = new LinkedHashMap<String,KeptRegions>(MAX_CACHED, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<String,KeptRegions> eldest) {
+      return size() > MAX_CACHED;
+    }
+  };
+
+  // start and end of each region in the recording, and the offset of its start in the clean version
+  private long[] physicalStarts;
+  private long[] physicalEnds;
+  private long[] logicalStarts;
+  private long length;
+
+  // used to tell if the index is out of date
+  private long edlxModified;
+  private long recordingLength;
+
+  /**
+   * Constructor
+   *
+   * @param commercials the commercials to cut out, in any order and possibly overlapping
+   * @param fileLength the length of the recording
+   * @param packetStart offset of the first packet in the recording, cuts are made between packets
+   */
+  public KeptRegions(ArrayList<Commercial> commercials, long fileLength, long packetStart) {
+    ArrayList<Commercial> sorted = new ArrayList<Commercial>(commercials);
+    Collections.sort(sorted, new Comparator<Commercial>() {
+      public int compare(Commercial first, Commercial second) {
+        return Long.compare(first.start, second.start);
+      }
+    });
+
+    physicalStarts = new long[sorted.size() + 1];
+    physicalEnds = new long[sorted.size() + 1];
+    logicalStarts = new long[sorted.size() + 1];
+    int count = 0;
+    long position = 0;
+    for (int i=0;i<=sorted.size();i++) {
+      long cutStart = fileLength;
+      long cutEnd = fileLength;
+      if (i < sorted.size()) {
+        cutStart = Math.min(Cleaner.alignToPacket(sorted.get(i).start, packetStart), fileLength);
+        cutEnd = Math.min(Cleaner.alignToPacket(sorted.get(i).end, packetStart), fileLength);
+      }
+      if (cutStart > position) {
+        physicalStarts[count] = position;
+        physicalEnds[count] = cutStart;
+        logicalStarts[count] = length;
+        length = length + (cutStart - position);
+        count++;
+      }
+      position = Math.max(position, cutEnd);
+    }
+    physicalStarts = Arrays.copyOf(physicalStarts, count);
+    physicalEnds = Arrays.copyOf(physicalEnds, count);
+    logicalStarts = Arrays.copyOf(logicalStarts, count);
+  }
+
+  /**
+   * Returns the index for a recording, using the one already built if the recording and
+   * its .edlx file have not changed since
+   *
+   * @param recording the recording
+   * @return the index or null if comskip has not been run on the recording
+   * @throws IOException if the recording or the .edlx file cannot be read
+   */
+  public static KeptRegions forRecording(File recording) throws IOException {
+    File edlxFile = new File(Cleaner.edlxFileName(recording.getPath()));
+    if ((!edlxFile.exists())||(!recording.exists())) {
+      return null;
+    }
+
+    String key = recording.getAbsolutePath();
+    synchronized(cache) {
+      KeptRegions regions = cache.get(key);
+      if ((regions != null)&&(regions.edlxModified == edlxFile.lastModified())&&(regions.recordingLength == recording.length())) {
+        return regions;
+      }
+    }
+
+    KeptRegions regions = null;
+    long edlxModified = edlxFile.lastModified();
+    FileChannel input = new FileInputStream(recording).getChannel();
+    try {
+      regions = new KeptRegions(Cleaner.readCommercials(edlxFile), input.size(), Cleaner.findPacketStart(input));
+      regions.recordingLength = input.size();
+    } finally {
+      input.close();
+    }
+    regions.edlxModified = edlxModified;
+    synchronized(cache) {
+      cache.put(key, regions);
+    }
+    return regions;
+  }
+
+  /**
+   * Returns whether comskip has been run on a recording, so that its clean version can be
+   * served.  Only checks that the .edlx file is there, the index is built when the clean
+   * version is requested
+   *
+   * @param recording the recording
+   * @return true if the clean version can be served
+   */
+  public static boolean hasCommercials(File recording) {
+    return new File(Cleaner.edlxFileName(recording.getPath())).exists();
+  }
+
+  /**
+   * Returns the length of the clean version of a recording if its index has already been
+   * built and is still up to date.  Nothing is read so this is cheap enough to use when
+   * listing a directory of recordings
+   *
+   * @param recording the recording
+   * @return the length or null if the index has not been built
+   */
+  public static Long cachedLength(File recording) {
+    File edlxFile = new File(Cleaner.edlxFileName(recording.getPath()));
+    synchronized(cache) {
+      KeptRegions regions = cache.get(recording.getAbsolutePath());
+      if ((regions != null)&&(regions.edlxModified == edlxFile.lastModified())&&(regions.recordingLength == recording.length())) {
+        return regions.length;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the name used to serve the clean version of a recording
+   *
+   * @param recording the name of the recording
+   * @return the name for the clean version
+   */
+  public static String virtualFileName(String recording) {
+    return Cleaner.removeExtension(recording) + VIRTUAL_CLEAN_TRAILER;
+  }
+
+  /**
+   * Returns whether a name is one used to serve the clean version of a recording
+   *
+   * @param fileName the name
+   * @return true if the name is for a clean version
+   */
+  public static boolean isVirtualFileName(String fileName) {
+    return fileName.endsWith(VIRTUAL_CLEAN_TRAILER);
+  }
+
+  /**
+   * Returns the name of the recording for the name used to serve its clean version
+   *
+   * @param fileName the name used to serve the clean version
+   * @return the name of the recording
+   */
+  public static String recordingFileName(String fileName) {
+    return fileName.substring(0, fileName.length() - VIRTUAL_CLEAN_TRAILER.length()) + ".ts";
+  }
+
+  /**
+   * Returns the length of the recording without the commercials
+   *
+   * @return the length
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Returns the number of regions which are kept
+   *
+   * @return the number of regions
+   */
+  public int getRegionCount() {
+    return physicalStarts.length;
+  }
+
+  /**
+   * Returns the offset in the recording of the start of a region
+   *
+   * @param region the index of the region
+   * @return the offset
+   */
+  public long getRegionStart(int region) {
+    return physicalStarts[region];
+  }
+
+  /**
+   * Returns the offset in the recording of the end of a region
+   *
+   * @param region the index of the region
+   * @return the offset
+   */
+  public long getRegionEnd(int region) {
+    return physicalEnds[region];
+  }
+
+  /**
+   * Finds the region holding an offset in the clean version
+   *
+   * @param position the offset in the clean version
+   * @return the index of the region or -1 if the offset is past the end
+   */
+  int findRegion(long position) {
+    if ((position < 0)||(position >= length)) {
+      return -1;
+    }
+    int region = Arrays.binarySearch(logicalStarts, position);
+    if (region < 0) {
+      // not the start of a region so it is in the one before the insertion point
+      region = -region - 2;
+    }
+    return region;
+  }
+
+  /**
+   * Transfers bytes of the clean version from the recording to a channel.  Like
+   * FileChannel.transferTo fewer bytes than requested may be transferred, at most up
+   * to the end of the region holding the position
+   *
+   * @param input the channel for the recording
+   * @param position the offset in the clean version from which to start
+   * @param count the maximum number of bytes to transfer
+   * @param target the channel to transfer to
+   * @return the number of bytes transferred, 0 if the position is past the end
+   * @throws IOException if the bytes cannot be transferred
+   */
+  public long transferTo(FileChannel input, long position, long count, WritableByteChannel target) throws IOException {
+    int region = findRegion(position);
+    if (region == -1) {
+      return 0;
+    }
+    long offset = position - logicalStarts[region];
+    long physical = physicalStarts[region] + offset;
+    long amount = Math.min(count, physicalEnds[region] - physical);
+    return input.transferTo(physical, amount, target);
+  }
+}
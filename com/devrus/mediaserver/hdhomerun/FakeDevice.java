@@ -0,0 +1,268 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.hdhomerun;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+
+/**
+ * Fake HDHomeRun device which answers the control protocol on a local port, so that the
+ * HDHomeRunControl client and the recorder can be tried out without a real tuner.  Values
+ * which are set are remembered and returned by later gets, and getting a value which has
+ * never been set returns an error the way the real device does for unknown names.
+ *
+ * Run with a port to act as a device, pointing homerun_base_command at 127.0.0.1:port, or
+ * with "check" to run the client against a fake device and report whether it behaves
+ */
+public class FakeDevice extends Thread {
+  // constants
+  private static final int TYPE_GETSET_REQUEST = 0x0004;
+  private static final int TYPE_GETSET_REPLY = 0x0005;
+  private static final int TAG_GETSET_NAME = 0x03;
+  private static final int TAG_GETSET_VALUE = 0x04;
+  private static final int TAG_ERROR_MESSAGE = 0x05;
+  private static final String UNKNOWN_ERROR = "ERROR: unknown getset variable";
+  private static final String CHECK_OPTION = "check";
+
+  private ServerSocket serverSocket;
+  private HashMap<String,String> values = new HashMap<String,String>();
+  private volatile boolean dropAfterReply = false;
+  private volatile boolean truncateReply = false;
+
+  /**
+   * Constructor
+   *
+   * @param port the port to listen on, 0 to use any free port
+   * @throws IOException if the port cannot be listened on
+   */
+  public FakeDevice(int port) throws IOException {
+    serverSocket = new ServerSocket(port, 5, InetAddress.getByName("127.0.0.1"));
+    setDaemon(true);
+  }
+
+  /**
+   * @param args the port to listen on, or "check" to check the client against a fake device
+   */
+  public static void main(String[] args) throws Exception {
+    if ((args.length > 0)&&(args[0].equals(CHECK_OPTION))) {
+      boolean ok = check();
+      System.out.println(ok ? "HDHomeRun control check passed" : "HDHomeRun control check FAILED");
+      System.exit(ok ? 0 : 1);
+    }
+    int port = HDHomeRunControl.CONTROL_PORT;
+    if (args.length > 0) {
+      port = Integer.parseInt(args[0]);
+    }
+    FakeDevice device = new FakeDevice(port);
+    System.out.println("Fake HDHomeRun device listening on 127.0.0.1:" + device.getPort());
+    device.run();
+  }
+
+  /**
+   * Returns the port the device is listening on
+   *
+   * @return the port
+   */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Returns the value last set for a name
+   *
+   * @param name the name of the value
+   * @return the value or null if it was never set
+   */
+  public synchronized String getValue(String name) {
+    return values.get(name);
+  }
+
+  /**
+   * Makes the device close the connection after each reply, like a device which has been
+   * restarted between requests
+   *
+   * @param drop true to close the connection after each reply
+   */
+  public void setDropAfterReply(boolean drop) {
+    dropAfterReply = drop;
+  }
+
+  /**
+   * Makes the device send replies whose payload ends part way through a tag
+   *
+   * @param truncate true to send truncated replies
+   */
+  public void setTruncateReply(boolean truncate) {
+    truncateReply = truncate;
+  }
+
+  /**
+   * Accepts connections and answers the requests on them, one connection at a time
+   */
+  public void run() {
+    while (true) {
+      Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        System.out.println("Fake device stopped:" + e);
+        return;
+      }
+      try {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        while (true) {
+          out.write(answer(HDHomeRunControl.readPacket(in, TYPE_GETSET_REQUEST)));
+          out.flush();
+          if (dropAfterReply) {
+            break;
+          }
+        }
+      } catch (IOException e) {
+        // client closed the connection
+      } finally {
+        try {socket.close();} catch (IOException e){/* just ignore*/ }
+      }
+    }
+  }
+
+  /**
+   * Builds the reply for a get/set request
+   *
+   * @param request the payload of the request
+   * @return the reply packet
+   */
+  private byte[] answer(byte[] request) {
+    String name = null;
+    String value = null;
+    int index = 0;
+    while ((index + 1) < request.length) {
+      int tag = request[index++] & 0xFF;
+      int length = request[index++] & 0xFF;
+      if (((length & 0x80) != 0)&&(index < request.length)) {
+        length = (length & 0x7F) | ((request[index++] & 0xFF) << 7);
+      }
+      length = Math.min(length, request.length - index);
+      // drop the null terminator
+      String string = new String(request, index, Math.max(0, length - 1));
+      if (tag == TAG_GETSET_NAME) {
+        name = string;
+      } else if (tag == TAG_GETSET_VALUE) {
+        value = string;
+      }
+      index = index + length;
+    }
+
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    synchronized(this) {
+      if (value != null) {
+        values.put(name, value);
+        System.out.println("Fake device set " + name + " " + value);
+      }
+      HDHomeRunControl.writeTag(payload, TAG_GETSET_NAME, name);
+      if (values.containsKey(name)) {
+        HDHomeRunControl.writeTag(payload, TAG_GETSET_VALUE, values.get(name));
+      } else {
+        HDHomeRunControl.writeTag(payload, TAG_ERROR_MESSAGE, UNKNOWN_ERROR);
+      }
+    }
+    byte[] reply = payload.toByteArray();
+    if (truncateReply) {
+      // end the payload on the first byte of a two byte length
+      ByteArrayOutputStream truncated = new ByteArrayOutputStream();
+      truncated.write(TAG_GETSET_VALUE);
+      truncated.write(0x80);
+      reply = truncated.toByteArray();
+    }
+    return HDHomeRunControl.buildPacket(TYPE_GETSET_REPLY, reply);
+  }
+
+  /**
+   * Runs the client against a fake device, tuning and releasing a tuner the way the recorder
+   * does and checking how errors, dropped connections and bad replies are handled
+   *
+   * @return true if the client behaved as expected
+   * @throws IOException if the fake device cannot be started
+   */
+  public static boolean check() throws IOException {
+    FakeDevice device = new FakeDevice(0);
+    device.start();
+    String baseCommand = "hdhomerun_config 127.0.0.1:" + device.getPort();
+    boolean ok = true;
+
+    try {
+      HDHomeRunControl.tune(baseCommand, "tuner1", "auto:25", "3", "udp://10.1.1.2:25001");
+      ok = expect(ok, "channel", "auto:25", device.getValue("/tuner1/channel"));
+      ok = expect(ok, "program", "3", device.getValue("/tuner1/program"));
+      ok = expect(ok, "target", "udp://10.1.1.2:25001", device.getValue("/tuner1/target"));
+      HDHomeRunControl.release(baseCommand, "tuner1");
+      ok = expect(ok, "released channel", "none", device.getValue("/tuner1/channel"));
+    } catch (Exception e) {
+      System.out.println("Tuning through the fake device failed:" + e);
+      ok = false;
+    }
+
+    HDHomeRunControl control = HDHomeRunControl.forBaseCommand(baseCommand);
+    try {
+      control.get("/tuner1/unknown");
+      System.out.println("Error from the device was not reported");
+      ok = false;
+    } catch (HDHomeRunControl.HDHomeRunException e) {
+      ok = expect(ok, "error", UNKNOWN_ERROR, e.getMessage());
+    }
+
+    // the client should reconnect when the device has dropped the connection
+    device.setDropAfterReply(true);
+    try {
+      control.set("/tuner1/channel", "auto:30");
+      ok = expect(ok, "value after reconnect", "auto:30", control.get("/tuner1/channel"));
+    } catch (IOException e) {
+      System.out.println("Request after the device dropped the connection failed:" + e);
+      ok = false;
+    }
+    device.setDropAfterReply(false);
+
+    // a reply which ends part way through a tag must fail cleanly
+    device.setTruncateReply(true);
+    try {
+      control.get("/tuner1/channel");
+      System.out.println("Truncated reply was accepted");
+      ok = false;
+    } catch (IOException e) {
+      ok = expect(ok, "truncated reply", "HDHomeRun reply is truncated", e.getMessage());
+    } catch (RuntimeException e) {
+      System.out.println("Truncated reply failed with:" + e);
+      ok = false;
+    }
+    device.setTruncateReply(false);
+
+    control.close();
+    try {device.serverSocket.close();} catch (IOException e){/* just ignore*/ }
+    return ok;
+  }
+
+  /**
+   * Reports a value which is not the one expected
+   *
+   * @param ok whether the check has passed so far
+   * @param what what the value is
+   * @param expected the value expected
+   * @param actual the value found
+   * @return true if the check has passed so far and the value is the one expected
+   */
+  private static boolean expect(boolean ok, String what, String expected, String actual) {
+    if (!expected.equals(actual)) {
+      System.out.println("Wrong " + what + ", expected:" + expected + " got:" + actual);
+      return false;
+    }
+    return ok;
+  }
+}
@@ -0,0 +1,422 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.hdhomerun;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Client for the control protocol used by HDHomeRun devices, so that tuners can be set up
+ * without starting an hdhomerun_config process for each change.  One connection is kept open
+ * to each device and re-used for all of the requests to that device.
+ *
+ * Each request and reply is a packet made up of a 2 byte type, a 2 byte payload length, the
+ * payload and a CRC32 of the rest of the packet (little endian).  The payload for get/set is
+ * a set of tag/length/value entries holding the name and, for sets, the value as null
+ * terminated strings.
+ */
+public class HDHomeRunControl {
+  // constants
+  public static final int CONTROL_PORT = 65001;
+  private static final int TYPE_GETSET_REQUEST = 0x0004;
+  private static final int TYPE_GETSET_REPLY = 0x0005;
+  private static final int TAG_GETSET_NAME = 0x03;
+  private static final int TAG_GETSET_VALUE = 0x04;
+  private static final int TAG_ERROR_MESSAGE = 0x05;
+  private static final int CONNECT_TIMEOUT = 2500;
+  private static final int REPLY_TIMEOUT = 5000;
+  private static final int MAX_PACKET_SIZE = 3074;
+  private static final long PROCESS_SETTLE_TIME = 1000;
+
+  // connections to the devices we have talked to, by address
+  private static HashMap<String,HDHomeRunControl> devices = new HashMap<String,HDHomeRunControl>();
+
+  private String host;
+  private int port;
+  private Socket socket = null;
+  private DataInputStream in = null;
+  private OutputStream out = null;
+
+  /**
+   * Constructor
+   *
+   * @param host the address of the device
+   * @param port the port for the control protocol on the device
+   */
+  public HDHomeRunControl(String host, int port) {
+    this.host = host;
+    this.port = port;
+  }
+
+  /**
+   * Returns the control connection for a device, creating it if necessary
+   *
+   * @param host the address of the device
+   * @return the control connection for the device
+   */
+  public static HDHomeRunControl getDevice(String host) {
+    return getDevice(host, CONTROL_PORT);
+  }
+
+  /**
+   * Returns the control connection for a device listening on a port other than the standard 
+   * one, such as a fake device used for testing, creating it if necessary
+   *
+   * @param host the address of the device
+   * @param port the port for the control protocol on the device
+   * @return the control connection for the device
+   */
+  public static synchronized HDHomeRunControl getDevice(String host, int port) {
+    String key = host + ":" + port;
+    HDHomeRunControl device = devices.get(key);
+    if (device == null) {
+      device = new HDHomeRunControl(host, port);
+      devices.put(key, device);
+    }
+    return device;
+  }
+
+  /**
+   * Returns the control connection for the device used by a hdhomerun_config base command,
+   * which ends with the device to talk to.  Devices can only be talked to directly when they
+   * are given by address, not by device id, as we don't do discovery.  The address can be 
+   * followed by :port for a device which does not use the standard control port
+   *
+   * @param baseCommand the hdhomerun_config command including the device
+   * @return the control connection or null if the device is not given by address
+   */
+  public static HDHomeRunControl forBaseCommand(String baseCommand) {
+    String device = baseCommand.trim();
+    device = device.substring(device.lastIndexOf(' ') + 1);
+    if (device.indexOf('.') == -1) {
+      return null;
+    }
+    int port = CONTROL_PORT;
+    int portIndex = device.lastIndexOf(':');
+    if (portIndex != -1) {
+      try {
+        port = Integer.parseInt(device.substring(portIndex + 1));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      device = device.substring(0, portIndex);
+    }
+    return getDevice(device, port);
+  }
+
+  /**
+   * Tunes a tuner and sends the stream to the target.  This is done through the control
+   * protocol if possible, otherwise using the hdhomerun_config base command
+   *
+   * @param baseCommand the hdhomerun_config command including the device
+   * @param tuner the tuner to use, for example tuner0
+   * @param channel the channel to tune to, for example auto:25
+   * @param program the program to select or null for the whole channel
+   * @param target where to send the stream, for example udp://10.1.1.2:25001
+   * @throws Exception if the tuner could not be set up
+   */
+  public static void tune(String baseCommand, String tuner, String channel, String program, String target) throws Exception {
+    HDHomeRunControl device = forBaseCommand(baseCommand);
+    if (device != null) {
+      device.set("/" + tuner + "/channel", channel);
+      if (program != null) {
+        device.set("/" + tuner + "/program", program);
+      }
+      device.set("/" + tuner + "/target", target);
+    } else {
+      runCommand(baseCommand + " set /" + tuner + "/channel " + channel);
+      if (program != null) {
+        runCommand(baseCommand + " set /" + tuner + "/program " + program);
+      }
+      Thread.sleep(PROCESS_SETTLE_TIME);
+      runCommand(baseCommand + " set /" + tuner + "/target " + target);
+    }
+  }
+
+  /**
+   * Stops a tuner so that it no longer sends a stream
+   *
+   * @param baseCommand the hdhomerun_config command including the device
+   * @param tuner the tuner to stop
+   * @throws Exception if the tuner could not be stopped
+   */
+  public static void release(String baseCommand, String tuner) throws Exception {
+    HDHomeRunControl device = forBaseCommand(baseCommand);
+    if (device != null) {
+      device.set("/" + tuner + "/channel", "none");
+    } else {
+      runCommand(baseCommand + " set /" + tuner + "/channel none");
+    }
+  }
+
+  /**
+   * Runs a hdhomerun_config command and waits for it to finish
+   *
+   * @param command the command to run
+   * @throws Exception if the command could not be run
+   */
+  private static void runCommand(String command) throws Exception {
+    System.out.println(command);
+    Process theProcess = Runtime.getRuntime().exec(command);
+    theProcess.waitFor();
+  }
+
+  /**
+   * Gets a value from the device
+   *
+   * @param name the name of the value, for example /tuner0/status
+   * @return the value
+   * @throws IOException if the request fails or the device returns an error
+   */
+  public String get(String name) throws IOException {
+    return request(name, null);
+  }
+
+  /**
+   * Sets a value on the device
+   *
+   * @param name the name of the value, for example /tuner0/channel
+   * @param value the new value
+   * @return the value returned by the device
+   * @throws IOException if the request fails or the device returns an error
+   */
+  public String set(String name, String value) throws IOException {
+    System.out.println(host + " set " + name + " " + value);
+    return request(name, value);
+  }
+
+  /**
+   * Sends a get/set request, retrying once on a new connection if the existing connection
+   * has been dropped by the device
+   *
+   * @param name the name of the value
+   * @param value the value to set or null for a get
+   * @return the value returned by the device
+   * @throws IOException if the request fails or the device returns an error
+   */
+  private synchronized String request(String name, String value) throws IOException {
+    byte[] request = buildRequest(name, value);
+    boolean newConnection = (socket == null);
+    try {
+      return exchange(request);
+    } catch (HDHomeRunException e) {
+      throw e;
+    } catch (IOException e) {
+      close();
+      if (newConnection) {
+        throw e;
+      }
+      return exchange(request);
+    }
+  }
+
+  /**
+   * Sends a request and reads the reply, connecting first if necessary
+   *
+   * @param request the request packet
+   * @return the value in the reply
+   * @throws IOException if the request fails or the device returns an error
+   */
+  private String exchange(byte[] request) throws IOException {
+    if (socket == null) {
+      socket = new Socket();
+      socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+      socket.setSoTimeout(REPLY_TIMEOUT);
+      socket.setTcpNoDelay(true);
+      in = new DataInputStream(socket.getInputStream());
+      out = socket.getOutputStream();
+    }
+    out.write(request);
+    out.flush();
+    return parseReply(readPacket(in, TYPE_GETSET_REPLY));
+  }
+
+  /**
+   * Closes the connection to the device, a new one is opened for the next request
+   */
+  public synchronized void close() {
+    if (socket != null) {
+      try {socket.close();} catch (Exception e){/* just ignore*/ }
+      socket = null;
+      in = null;
+      out = null;
+    }
+  }
+
+  /**
+   * Builds a get/set request packet
+   *
+   * @param name the name of the value
+   * @param value the value to set or null for a get
+   * @return the packet
+   */
+  static byte[] buildRequest(String name, String value) {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    writeTag(payload, TAG_GETSET_NAME, name);
+    if (value != null) {
+      writeTag(payload, TAG_GETSET_VALUE, value);
+    }
+    return buildPacket(TYPE_GETSET_REQUEST, payload.toByteArray());
+  }
+
+  /**
+   * Builds a packet around a payload
+   *
+   * @param type the type of the packet
+   * @param payload the payload
+   * @return the packet including the CRC
+   */
+  static byte[] buildPacket(int type, byte[] payload) {
+    byte[] packet = new byte[4 + payload.length + 4];
+    packet[0] = (byte) (type >> 8);
+    packet[1] = (byte) type;
+    packet[2] = (byte) (payload.length >> 8);
+    packet[3] = (byte) payload.length;
+    System.arraycopy(payload, 0, packet, 4, payload.length);
+    long crc = crc(packet, 4 + payload.length);
+    for (int i=0;i<4;i++) {
+      packet[4 + payload.length + i] = (byte) (crc >> (8*i));
+    }
+    return packet;
+  }
+
+  /**
+   * Adds a tag with a null terminated string value to a payload
+   *
+   * @param payload the payload to add to
+   * @param tag the tag
+   * @param value the value
+   */
+  static void writeTag(ByteArrayOutputStream payload, int tag, String value) {
+    byte[] bytes = value.getBytes();
+    int length = bytes.length + 1;
+    payload.write(tag);
+    if (length <= 127) {
+      payload.write(length);
+    } else {
+      payload.write((length & 0x7F) | 0x80);
+      payload.write(length >> 7);
+    }
+    payload.write(bytes, 0, bytes.length);
+    payload.write(0);
+  }
+
+  /**
+   * Reads a packet and checks its type and CRC
+   *
+   * @param in the stream to read from
+   * @param expectedType the type of packet expected
+   * @return the payload of the packet
+   * @throws IOException if the packet cannot be read or is not valid
+   */
+  static byte[] readPacket(InputStream in, int expectedType) throws IOException {
+    DataInputStream dataIn = new DataInputStream(in);
+    byte[] header = new byte[4];
+    dataIn.readFully(header);
+    int type = ((header[0] & 0xFF) << 8) | (header[1] & 0xFF);
+    int length = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+    if (length > MAX_PACKET_SIZE) {
+      throw new IOException("HDHomeRun packet too large:" + length);
+    }
+
+    byte[] packet = new byte[4 + length + 4];
+    System.arraycopy(header, 0, packet, 0, 4);
+    dataIn.readFully(packet, 4, length + 4);
+    long crc = 0;
+    for (int i=3;i>=0;i--) {
+      crc = (crc << 8) | (packet[4 + length + i] & 0xFF);
+    }
+    if (crc != crc(packet, 4 + length)) {
+      throw new IOException("HDHomeRun packet has bad CRC");
+    }
+    if (type != expectedType) {
+      throw new IOException("Unexpected HDHomeRun packet type:" + type);
+    }
+
+    byte[] payload = new byte[length];
+    System.arraycopy(packet, 4, payload, 0, length);
+    return payload;
+  }
+
+  /**
+   * Pulls the value out of a get/set reply
+   *
+   * @param payload the payload of the reply
+   * @return the value
+   * @throws HDHomeRunException if the device returned an error
+   * @throws IOException if the reply is not valid
+   */
+  static String parseReply(byte[] payload) throws IOException {
+    String value = null;
+    String error = null;
+    int index = 0;
+    while (index < payload.length) {
+      int tag = payload[index++] & 0xFF;
+      if (index >= payload.length) {
+        break;
+      }
+      int length = payload[index++] & 0xFF;
+      if ((length & 0x80) != 0) {
+        if (index >= payload.length) {
+          throw new IOException("HDHomeRun reply is truncated");
+        }
+        length = (length & 0x7F) | ((payload[index++] & 0xFF) << 7);
+      }
+      if ((index + length) > payload.length) {
+        throw new IOException("HDHomeRun reply is truncated");
+      }
+      if ((tag == TAG_GETSET_VALUE)||(tag == TAG_ERROR_MESSAGE)) {
+        // drop the null terminator
+        int stringLength = length;
+        if ((stringLength > 0)&&(payload[index + stringLength - 1] == 0)) {
+          stringLength--;
+        }
+        String string = new String(payload, index, stringLength);
+        if (tag == TAG_GETSET_VALUE) {
+          value = string;
+        } else {
+          error = string;
+        }
+      }
+      index = index + length;
+    }
+
+    if (error != null) {
+      throw new HDHomeRunException(error);
+    }
+    return value;
+  }
+
+  /**
+   * Calculates the CRC for a packet
+   *
+   * @param data array holding the packet
+   * @param length number of bytes to include
+   * @return the CRC
+   */
+  private static long crc(byte[] data, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, length);
+    return crc.getValue();
+  }
+
+  /**
+   * Thrown when the device returns an error for a request, as opposed to the request failing
+   */
+  public static class HDHomeRunException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public HDHomeRunException(String message) {
+      super(message);
+    }
+  }
+}
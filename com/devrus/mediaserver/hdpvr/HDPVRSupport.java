@@ -27,12 +27,6 @@ public class HDPVRSupport extends LiveBase {
   // values that can be set or overridden via the configuration properties
   private String videoDevice = VIDEO_DEVICE;
   
-  // locals
-  byte[] buffer = new byte[VIDEO_READ_BUFFER_SIZE];
-  File theInputDeviceFile = new File(videoDevice);
-  FileInputStream inputStream = null;
-  OutputStream outputStream = null;
-  
   // holds the instance of this class used by other components
   static HDPVRSupport instance;
   
@@ -109,62 +103,74 @@ public class HDPVRSupport extends LiveBase {
   /**
    * {@inheritDoc}
    */
-  public void stopCapture(){
-    if (inputStream != null){
-      try {inputStream.close();} catch (Exception e){/* just ignore*/ }
-      try {outputStream.close();} catch (Exception e){/* just ignore*/ }
-      try{theFile.delete();} catch (Exception e){/* just ignore*/ }
-      inputStream = null;
-      try {togglePower(false);} catch (Exception e){System.out.println("Failed to turn power off"); }
-      System.out.println("turned power off");
-    } 
+  protected LiveSession createSession(int tunerIndex) {
+    return new HDPVRSession(tunerIndex);
   }
   
   /**
-   * {@inheritDoc}
+   * Capture of a channel from the HDPVR, there is only one HDPVR so there is only ever one session
    */
-  public void startCapture() throws Exception {
-    togglePower(true);
-    System.out.println("turned power on");
-    if (inputStream != null){
-      inputStream.close();
-      outputStream.close();
-      try{theFile.delete();} catch (Exception e){/* just ignore*/ }
-    } 
+  class HDPVRSession extends LiveSession {
+    // locals
+    byte[] buffer = new byte[VIDEO_READ_BUFFER_SIZE];
+    File theInputDeviceFile = new File(videoDevice);
+    FileInputStream inputStream = null;
     
-    inputStream = new FileInputStream(theInputDeviceFile);
-
-    // delete any old files to keep total buffer size down. 
-    File directory = new File(fileNameBase);
-    File files[] = directory.listFiles();
-    for (int i=0;i<files.length;i++){
-      if (files[i].getName().endsWith(HDPVR_FILE_NAME_TRAILER)){
-        try{files[i].delete();} catch (Exception e){/* just ignore*/ }
-      }
+    /**
+     * Constructor
+     * 
+     * @param tunerIndex index of the tuner in the pool
+     */
+    HDPVRSession(int tunerIndex) {
+      super(HDPVRSupport.this, tunerIndex);
     }
     
-    setChannel(channels.get(lastChannel).number);
-    theFile = new File(getFileName(null,lastTuneSeq));
-    outputStream = new FileOutputStream(theFile);
-  }
-  
-  /**
-   * {@inheritDoc}
-   */
-  public  void doCapture(){
-    for(int i=0;i<2;i++){
-      try {
-        int numRead = inputStream.read(buffer);
-        outputStream.write(buffer, 0, numRead);
-        outputStream.flush();
-      } catch (Exception e){
-        System.out.println("Exception received in input stream receive");
-        e.printStackTrace();
+    /**
+     * {@inheritDoc}
+     */
+    public void stopCapture(){
+      if (inputStream != null){
+        try {inputStream.close();} catch (Exception e){/* just ignore*/ }
+        closeCapture();
+        inputStream = null;
+        try {togglePower(false);} catch (Exception e){System.out.println("Failed to turn power off"); }
+        System.out.println("turned power off");
+      } 
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void startCapture(String channel) throws Exception {
+      togglePower(true);
+      System.out.println("turned power on");
+      if (inputStream != null){
+        inputStream.close();
+        closeCapture();
+      } 
+      
+      inputStream = new FileInputStream(theInputDeviceFile);
+      
+      setChannel(channels.get(channel).number);
+      openCapture();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public  void doCapture(){
+      for(int i=0;i<2;i++){
+        try {
+          int numRead = inputStream.read(buffer);
+          captured(buffer, 0, numRead);
+        } catch (Exception e){
+          System.out.println("Exception received in input stream receive");
+          e.printStackTrace();
+        }
       }
     }
   }
   
-  
   /**
    * Tunes the the cable box to the requested channel using lirc 
    * 
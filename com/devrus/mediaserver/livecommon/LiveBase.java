@@ -5,10 +5,13 @@
 package com.devrus.mediaserver.livecommon;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import org.teleal.cling.support.contentdirectory.DIDLParser;
 import org.teleal.cling.support.model.BrowseFlag;
@@ -23,18 +26,31 @@ import org.teleal.common.util.MimeType;
 
 import com.devrus.mediaserver.BuildContent;
 
-public abstract class LiveBase extends Thread {
+/**
+ * Base for the sources of live channels.  Each source has a pool of tuners and each tuner
+ * is used by a LiveSession which captures one channel at a time
+ */
+public abstract class LiveBase {
   
   // externally configurable properties
   public static final String WATCH_TIMEOUT = "watch_timeout";
+  public static final String LIVE_MEMORY_BUFFER_MB = "live_memory_buffer_mb";
+  public static final String LIVE_OVERRUN_POLICY = "live_overrun_policy";
+  public static final String TIMESHIFT_BUFFER_MB = "timeshift_buffer_mb";
+  public static final String TUNE_TIMEOUT = "tune_timeout";
   
   // defaults
   private static final int DEFAULT_WATCH_TIMEOUT = 120; /* in seconds */
+  private static final int DEFAULT_LIVE_MEMORY_BUFFER_MB = 0; /* disabled, live data goes to a file */
+  private static final int DEFAULT_TIMESHIFT_BUFFER_MB = 0; /* disabled */
+  private static final int DEFAULT_TUNE_TIMEOUT = 15; /* in seconds */
   
   // other constants
+  public static final String TIMESHIFT_FILE_TRAILER = ".timeshift";
   public static final long NO_SEQ = -1;
 
   // values to be filled in by the subclass
+  protected int numberTuners = 1;
   protected HashMap<String,Channel> channels = new HashMap<String,Channel>();
   protected ArrayList<Channel> channelList = new ArrayList<Channel>();
   protected MimeType mimeType = null;
@@ -43,14 +59,13 @@ public abstract class LiveBase extends Thread {
   protected String fileNameBase;
   
   // local vars
-  protected File theFile = null;
-  protected String lastChannel = null;
-  protected long lastWatched = 0;
-  protected boolean capturehreadRunning = false;
-  protected long lastTuneSeq = 0;
-  private Object tunedSync = new Object();
-  protected long bufferTime = 0;
-  private int watchTimeout = DEFAULT_WATCH_TIMEOUT;
+  private ArrayList<LiveSession> sessions = new ArrayList<LiveSession>();
+  private int liveMemoryBufferMB = DEFAULT_LIVE_MEMORY_BUFFER_MB;
+  private LiveRingBuffer.OverrunPolicy overrunPolicy = LiveRingBuffer.OverrunPolicy.RESYNC;
+  private int timeShiftBufferMB = DEFAULT_TIMESHIFT_BUFFER_MB;
+  private long lastTuneSeq = 0;
+  private int tuneTimeout = DEFAULT_TUNE_TIMEOUT;
+  int watchTimeout = DEFAULT_WATCH_TIMEOUT;
   protected String serverAddress;
   protected int serverPort;
   
@@ -65,6 +80,37 @@ public abstract class LiveBase extends Thread {
         
       }
     }
+    
+    // if configured live data is kept in memory and shared by all viewers instead of going to a file
+    if (configuration.getProperty(LIVE_MEMORY_BUFFER_MB) != null) {
+      try {
+        liveMemoryBufferMB = Integer.parseInt(configuration.getProperty(LIVE_MEMORY_BUFFER_MB));
+      } catch (NumberFormatException e) {
+        System.out.println("Invalid " + LIVE_MEMORY_BUFFER_MB + " in configuration file");
+      }
+    }
+    if ("drop".equals(configuration.getProperty(LIVE_OVERRUN_POLICY))) {
+      overrunPolicy = LiveRingBuffer.OverrunPolicy.DROP;
+    }
+    
+    // if configured live data is kept in a fixed size file which viewers can go back through. 
+    // This takes precedence over the in memory buffer
+    if (configuration.getProperty(TIMESHIFT_BUFFER_MB) != null) {
+      try {
+        timeShiftBufferMB = Integer.parseInt(configuration.getProperty(TIMESHIFT_BUFFER_MB));
+      } catch (NumberFormatException e) {
+        System.out.println("Invalid " + TIMESHIFT_BUFFER_MB + " in configuration file");
+      }
+    }
+    
+    // how long a tuner has to deliver a playable stream before we give up on it
+    if (configuration.getProperty(TUNE_TIMEOUT) != null) {
+      try {
+        tuneTimeout = Integer.parseInt(configuration.getProperty(TUNE_TIMEOUT));
+      } catch (NumberFormatException e) {
+        System.out.println("Invalid " + TUNE_TIMEOUT + " in configuration file");
+      }
+    }
   }
   
   /**
@@ -137,17 +183,18 @@ public abstract class LiveBase extends Thread {
   }
   
   /**
-   * returns the name to be used for the growing file containing the live stream
-   * @param channel channel being watched
-   * @param tuneSeq sequence associated with the current watch session
-   * @return the filename for the file containing the streaming data 
+   * Returns a summary of what each of the tuners is doing, one line per tuner
+   * 
+   * @return the summary
    */
-  public synchronized String getFileName(String channel, long tuneSeq) {
-    if (channel != null) {
-      return fileNameBase + File.separator + channel + tuneSeq + fileNameTrailer;
-    } else {
-      return fileNameBase + File.separator + lastChannel + lastTuneSeq + fileNameTrailer;
+  public String getStatus() {
+    StringBuffer status = new StringBuffer();
+    synchronized(sessions) {
+      for (int i=0;i<sessions.size();i++) {
+        status.append(rootName + " " + sessions.get(i).getStatus() + "\r\n");
+      }
     }
+    return status.toString();
   }
   
   /**
@@ -160,145 +207,135 @@ public abstract class LiveBase extends Thread {
   }
   
   /**
-   * This method is called both the the RequestThread gets the initial request for 
-   * a channel and each time is sends a block of data.  This allows the OTASupport logic
-   * to know when a channel is no longer being watched
+   * This method is called when the RequestThread gets the initial request for a channel.  
+   * It waits until the stream for the channel can be played, see tuneChannel(). Once the 
+   * request has the session it calls heartbeat() on the session as it sends each block of 
+   * data so that the session knows when the channel is no longer being watched
    * 
    * @param name name of the channel being watched
-   * @param tuneSeq sequence number associated with the watch session, or NO_SEQ if this the initial request for the session
-   * @return the sequence number associated with the watch session
-   * @throws Exception if the channel has been changed and the sequence/channel passed in don't match the current values
+   * @return the session capturing the channel
+   * @throws Exception if capture of the channel could not be started, the tuner did not 
+   *         deliver a stream in time or the session was re-tuned before capture started
    */
-  public long watchChannel(String name,long tuneSeq) throws Exception {
-    long retVal = 0;
-    long mySeq = 0;
-    boolean newChannelTuned = false;
-    synchronized(this){
-      if (!capturehreadRunning){
-        this.start();
+  public LiveSession watchChannel(String name) throws Exception {
+    try {
+      return tuneChannel(name).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
       }
-      if((tuneSeq != NO_SEQ)&&(tuneSeq != lastTuneSeq)) {
-        throw new Exception("Channel Changed");
+      throw e;
+    }
+  }
+  
+  /**
+   * Starts watching a channel.  If a session is already tuned to the channel it is shared, 
+   * otherwise a tuner is taken from the pool.  If all of the tuners are in use the one watched 
+   * least recently is re-tuned and its viewers see the channel change.
+   * 
+   * @param name name of the channel being watched
+   * @return future which completes with the session once the first PAT, PMT and video for the 
+   *         channel have been captured.  It fails if capture could not be started, the tuner 
+   *         does not deliver a stream within the tune timeout or the session is re-tuned first
+   * @throws Exception if the channel cannot be watched
+   */
+  public CompletableFuture<LiveSession> tuneChannel(String name) throws Exception {
+    synchronized(sessions) {
+      if (sessions.isEmpty()) {
+        removeOldFiles();
       }
       
-      lastWatched = System.currentTimeMillis();
+      // share the session if one is already tuned to the channel
+      LiveSession session = null;
+      LiveSession idleSession = null;
+      LiveSession leastWatched = null;
+      for (int i=0;i<sessions.size();i++) {
+        LiveSession nextSession = sessions.get(i);
+        String nextChannel = nextSession.getChannel();
+        if (name.equals(nextChannel)) {
+          session = nextSession;
+          break;
+        } else if (nextChannel == null) {
+          idleSession = nextSession;
+        } else if ((leastWatched == null)||(nextSession.getLastWatched() < leastWatched.getLastWatched())) {
+          leastWatched = nextSession;
+        }
+      }
       
-      if ((lastChannel == null)||(!lastChannel.equals(name))) {
-        System.out.println("New channel tuned:" + name);
-        lastChannel = name;
+      if (session == null) {
+        // use an idle tuner, then a new one from the pool and only then take over one in use 
+        if (idleSession != null) {
+          session = idleSession;
+        } else if (sessions.size() < numberTuners) {
+          session = createSession(sessions.size());
+          sessions.add(session);
+          session.start();
+        } else {
+          System.out.println("All tuners in use, taking over tuner watching:" + leastWatched.getChannel());
+          session = leastWatched;
+        }
+        
         lastTuneSeq++;
         if (lastTuneSeq <0) {
           lastTuneSeq = 0;
         }
-        
-        this.notifyAll();
-        newChannelTuned = true;
-      }
-      retVal = lastTuneSeq;
-    }
-  
-    mySeq = lastTuneSeq;
-    if (newChannelTuned){
-      synchronized(tunedSync) { 
-        tunedSync.wait();
+        session.tune(name, lastTuneSeq, tuneTimeout*1000L);
       }
+      session.heartbeat(session.getTuneSeq());
+      return session.getTuned();
     }
-
-    synchronized(this) {
-      if (mySeq != lastTuneSeq) {
-        throw new Exception("Channel Changed");
-      }
-    }
-
-    return retVal;
   }
   
-  /** 
-   * The method handles capturing the live stream
+  /**
+   * Deletes any live files left over from a previous run to keep the total buffer size down 
    */
-  public void run() {
-    String myLastChannel = null;
-    synchronized(this) {
-      capturehreadRunning = true;
-    }
-
-    while(true) {
-      try { 
-        boolean newChannel = false;
-        boolean doCapture = true;
-        synchronized(this) {
-          if (lastChannel != null) {
-            if (!lastChannel.equals(myLastChannel)) {
-              newChannel = true;
-            }
-          } else {
-            // no channel to tune to simply stop capture
-            stopCapture();
-            myLastChannel = null;
-            this.wait();
-            newChannel = true;
-          }
-          
-          if (newChannel) {
-            try {
-              startCapture();
-              myLastChannel = lastChannel;
-            } catch (Exception e) {
-              // failed to start capture
-              doCapture = false;
-              newChannel = false;
-              lastChannel = null;
-              myLastChannel = null;
-              synchronized(tunedSync) {
-                tunedSync.notifyAll();
-              }
-            }
-          
-          } else {
-            if ((System.currentTimeMillis() - lastWatched) > (watchTimeout*1000)) {
-              lastChannel = null;
-              myLastChannel = null;
-              doCapture = false;
-            }
-          }
+  private void removeOldFiles() {
+    File directory = new File(fileNameBase);
+    File files[] = directory.listFiles();
+    if (files != null) {
+      for (int i=0;i<files.length;i++) {
+        if (files[i].getName().endsWith(fileNameTrailer)) {
+          try{files[i].delete();} catch (Exception e){/* just ignore*/ }
         }
-          
-        // do the next set of packets or until we time out
-        if (doCapture == true) {
-          doCapture();
-        }
-          
-        if (newChannel) {
-          // build up a bit of a buffer
-          try { Thread.sleep(bufferTime); } catch (Exception e) {};
-          
-          synchronized(tunedSync) {
-            tunedSync.notifyAll();
-          }
-        }
-
-      } catch (Exception e) {
-        lastChannel = null;
-        stopCapture();
       }
     }
   }
   
-  /** 
-   * called when capture for a channel should stop
+  /**
+   * Creates the in memory buffer used for the live data for a session
+   * 
+   * @return the buffer or null if live data is not kept in memory
    */
-  public abstract void stopCapture();
-
+  LiveRingBuffer newRingBuffer() {
+    if ((liveMemoryBufferMB > 0)&&(timeShiftBufferMB <= 0)) {
+      return new LiveRingBuffer(liveMemoryBufferMB*1024*1024, overrunPolicy);
+    }
+    return null;
+  }
+  
   /**
-   * called when the capture for a channel should start
-   * @throws Exception
+   * Creates the time shift buffer used for the live data for a session.  This is done when 
+   * capture first starts as the subclasses have not set the location for the live files 
+   * when the sessions are created
+   * 
+   * @param tunerIndex index of the tuner used by the session 
+   * @return the buffer or null if time shifting is not configured
+   * @throws IOException if the file for the buffer cannot be created
    */
-  public abstract void startCapture() throws Exception;
+  LiveRingBuffer newTimeShiftBuffer(int tunerIndex) throws IOException {
+    if (timeShiftBufferMB > 0) {
+      File timeShiftFile = new File(fileNameBase + File.separator + rootName + tunerIndex + TIMESHIFT_FILE_TRAILER);
+      return new TimeShiftBuffer(timeShiftFile, ((long) timeShiftBufferMB)*1024*1024, overrunPolicy);
+    }
+    return null;
+  }
   
   /** 
-   * called when more data for a channel should be captured
-   * @throws Exception
+   * called to create the session which will capture live data using one of the tuners
+   * 
+   * @param tunerIndex index of the tuner in the pool
+   * @return the new session
    */
-  public abstract void doCapture() throws Exception;
+  protected abstract LiveSession createSession(int tunerIndex);
 
 }
@@ -0,0 +1,464 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.livecommon;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * In memory buffer holding the most recent data captured for a live channel. The capture
+ * thread writes the data once and each viewer reads it through its own Cursor, so several
+ * viewers can watch the same channel without the data going to disk and back.
+ *
+ * There is a single writer (the capture thread) and any number of readers. Positions are
+ * absolute byte counts since the buffer was created, so a reader can tell when the writer
+ * has wrapped around and overwritten data it has not read yet.  When that happens the reader
+ * is moved forward according to the OverrunPolicy. Readers can also be started anywhere in
+ * the data still held by the buffer using stream offsets, which count from the start of
+ * capture for the current channel.
+ *
+ * Readers copy each slice of data out of the buffer before sending it, and only send it if the
+ * writer has not reached it during the copy, so a viewer on a slow connection never gets data
+ * which was overwritten while it was being sent.  For that check to hold the writer adds data
+ * in pieces no larger than the safety margin and publishes its position after each one, so it
+ * is never overwriting more than the safety margin beyond the position the readers can see.
+ *
+ * Once the buffer is closed readers see the end of the stream, and the storage is only released
+ * once every cursor has been closed so a reader is never left reading storage that has gone away.
+ *
+ * Subclasses can keep the data somewhere other than memory by overriding store(), load() and
+ * release().
+ */
+public class LiveRingBuffer {
+  // constants
+  public static final int TS_PACKET_SIZE = 188;
+
+  // fraction of the buffer kept between the writer and the oldest position a reader may read from,
+  // this leaves room for the writer to keep going while a reader is copying data out
+  private static final int SAFETY_MARGIN_DIVISOR = 8;
+
+  // maximum amount a reader copies out of the buffer at a time
+  private static final int STAGING_SIZE = 256*1024;
+
+  // fraction of the buffer behind the live point at which new readers start
+  private static final int START_LAG_DIVISOR = 2;
+  
+  // maximum distance behind the live point at which new readers start, so large buffers
+  // don't start viewers a long way in the past
+  private static final int MAX_START_LAG = 4*1024*1024;
+
+  /**
+   * What to do with a reader that has fallen so far behind that the data it has not read yet
+   * has been overwritten
+   */
+  public enum OverrunPolicy {
+    // skip only the data that was lost and carry on from the oldest data still available
+    DROP,
+    // jump forward to where a new reader would start so the viewer is close to live again
+    RESYNC
+  }
+
+  private ByteBuffer buffer;
+  private ByteBuffer writeView;
+  private long capacity;
+  private long safetyMargin;
+  private OverrunPolicy policy;
+  private volatile long writePosition = 0;
+  private volatile long sessionStart = 0;
+  private volatile boolean closed = false;
+  private int openCursors = 0;
+  private boolean released = false;
+
+  /**
+   * Constructor
+   *
+   * @param capacity size of the buffer in bytes
+   * @param policy what to do when a reader falls too far behind
+   */
+  public LiveRingBuffer(int capacity, OverrunPolicy policy) {
+    this((long) capacity, policy);
+    buffer = ByteBuffer.allocateDirect((int) this.capacity);
+    writeView = buffer.duplicate();
+  }
+  
+  /**
+   * Constructor for subclasses which provide their own storage
+   *
+   * @param capacity size of the buffer in bytes
+   * @param policy what to do when a reader falls too far behind
+   */
+  protected LiveRingBuffer(long capacity, OverrunPolicy policy) {
+    // keep the buffer a whole number of TS packets so that wrapping does not affect alignment
+    this.capacity = capacity - (capacity % TS_PACKET_SIZE);
+    this.policy = policy;
+    safetyMargin = this.capacity/SAFETY_MARGIN_DIVISOR;
+    if (safetyMargin < TS_PACKET_SIZE) {
+      throw new IllegalArgumentException("Live buffer of " + capacity + " bytes is too small");
+    }
+  }
+
+  /**
+   * Called by the capture thread when capture of a new channel starts so that new readers
+   * don't get data from the previous channel
+   */
+  public void startSession() {
+    sessionStart = writePosition;
+  }
+
+  /**
+   * Adds data to the buffer, only to be called from the capture thread
+   *
+   * @param data array containing the data to be added
+   * @param offset offset in the array of the first byte to add
+   * @param length number of bytes to add
+   * @throws IOException if the data cannot be stored
+   */
+  public void write(byte[] data, int offset, int length) throws IOException {
+    write(ByteBuffer.wrap(data, offset, length));
+  }
+  
+  /**
+   * Adds the data remaining in a ByteBuffer to the buffer, only to be called from the capture thread.
+   * The position of the ByteBuffer is moved to its limit
+   *
+   * @param data the data to be added
+   * @throws IOException if the data cannot be stored
+   */
+  public void write(ByteBuffer data) throws IOException {
+    long position = writePosition;
+    while (data.hasRemaining()) {
+      long index = position % capacity;
+      int amount = (int) Math.min(Math.min(data.remaining(), capacity - index), safetyMargin);
+      ByteBuffer source = data.duplicate();
+      source.limit(source.position() + amount);
+      store(index, source);
+      data.position(data.position() + amount);
+      position = position + amount;
+
+      // publish each piece to the readers once it has been copied in, and don't let the stores
+      // for the next piece move ahead of it, so readers can tell what the writer may be overwriting
+      writePosition = position;
+      VarHandle.storeStoreFence();
+    }
+  }
+  
+  /**
+   * Copies data into the storage for the buffer, the data will not wrap
+   * 
+   * @param index index in the storage at which to store the data
+   * @param source the data to store
+   * @throws IOException if the data cannot be stored
+   */
+  protected void store(long index, ByteBuffer source) throws IOException {
+    writeView.clear();
+    writeView.position((int) index);
+    writeView.put(source);
+  }
+  
+  /**
+   * Copies data from the storage for the buffer, the data will not wrap
+   * 
+   * @param readView the view of the storage belonging to the cursor doing the read, or null 
+   *                 if the subclass does not use views 
+   * @param index index in the storage of the first byte to copy
+   * @param target the buffer to copy the data into, it is filled up to its limit
+   * @throws IOException if the data cannot be read
+   */
+  protected void load(ByteBuffer readView, long index, ByteBuffer target) throws IOException {
+    readView.clear();
+    readView.position((int) index);
+    readView.limit((int) index + target.remaining());
+    target.put(readView);
+  }
+  
+  /**
+   * Releases the storage for the buffer once it has been closed and every cursor on it has
+   * been closed.  Subclasses holding resources for the storage override this to free them
+   */
+  protected void release() {
+  }
+
+  /**
+   * Closes the buffer.  Readers see the end of the stream and the storage is released as soon
+   * as the last cursor on the buffer is closed
+   */
+  public void close() {
+    synchronized(this) {
+      closed = true;
+    }
+    releaseIfDone();
+  }
+
+  /**
+   * Returns whether the buffer has been closed
+   *
+   * @return true if the buffer is closed
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Releases the storage if the buffer is closed and no cursors are left open on it
+   */
+  private void releaseIfDone() {
+    synchronized(this) {
+      if ((!closed)||(openCursors > 0)||released) {
+        return;
+      }
+      released = true;
+    }
+    release();
+  }
+
+  /**
+   * Returns a view of the storage for a new cursor to read from
+   * 
+   * @return the view or null if the subclass does not use views
+   */
+  protected ByteBuffer newReadView() {
+    return buffer.duplicate();
+  }
+
+  /**
+   * Returns the total number of bytes written to the buffer since it was created
+   *
+   * @return total number of bytes written
+   */
+  public long getWritePosition() {
+    return writePosition;
+  }
+
+  /**
+   * Returns the size of the buffer
+   *
+   * @return size of the buffer in bytes
+   */
+  public long getCapacity() {
+    return capacity;
+  }
+  
+  /**
+   * Returns the position at which capture of the current channel started
+   * 
+   * @return the position at which the current session started
+   */
+  public long getSessionStart() {
+    return sessionStart;
+  }
+
+  /**
+   * Creates a new cursor for a viewer, starting a little way back from the live point. The 
+   * cursor must be closed once the viewer is done with it
+   *
+   * @return the new cursor
+   */
+  public Cursor newCursor() {
+    return new Cursor(startPosition());
+  }
+  
+  /**
+   * Creates a new cursor for a viewer starting at the requested offset into the stream for the 
+   * current channel.  If the data at that offset is no longer in the buffer the cursor starts at 
+   * the oldest data still available, if the offset has not been captured yet it starts where
+   * newCursor() would have. The cursor must be closed once the viewer is done with it
+   * 
+   * @param streamOffset offset from the start of capture for the current channel
+   * @return the new cursor
+   */
+  public Cursor newCursor(long streamOffset) {
+    long position = sessionStart + streamOffset;
+    if (position > writePosition) {
+      return newCursor();
+    }
+    return new Cursor(alignToPacket(Math.max(position, oldestSafePosition())));
+  }
+
+  /**
+   * Returns the position at which a new reader should start
+   *
+   * @return the position to start from
+   */
+  long startPosition() {
+    long lag = Math.min(capacity/START_LAG_DIVISOR, MAX_START_LAG);
+    return alignToPacket(Math.max(sessionStart, writePosition - lag));
+  }
+  
+  /**
+   * Returns the oldest position which a reader can safely read from
+   * 
+   * @return the oldest position that can be read 
+   */
+  long oldestSafePosition() {
+    return writePosition - capacity + safetyMargin;
+  }
+
+  /**
+   * Rounds a position up so that it is on a TS packet boundary relative to the start of the session
+   *
+   * @param position the position to align
+   * @return the aligned position
+   */
+  long alignToPacket(long position) {
+    long start = sessionStart;
+    if (position <= start) {
+      return start;
+    }
+    long intoSession = position - start;
+    long remainder = intoSession % TS_PACKET_SIZE;
+    if (remainder != 0) {
+      intoSession = intoSession + (TS_PACKET_SIZE - remainder);
+    }
+    return start + intoSession;
+  }
+
+  /**
+   * The read position of one viewer in the buffer
+   */
+  public class Cursor {
+    private long position;
+    private ByteBuffer readView;
+    private ByteBuffer staging;
+    private long droppedBytes = 0;
+    private int overruns = 0;
+    private boolean cursorClosed = false;
+
+    /**
+     * Constructor
+     *
+     * @param position the position at which the cursor starts
+     */
+    Cursor(long position) {
+      synchronized(LiveRingBuffer.this) {
+        openCursors++;
+      }
+      this.position = position;
+      readView = newReadView();
+      staging = ByteBuffer.allocate((int) Math.max(TS_PACKET_SIZE, Math.min(STAGING_SIZE, safetyMargin)));
+    }
+    
+    /**
+     * Returns the position of the cursor as an offset from the start of capture for the current channel
+     * 
+     * @return the offset into the stream
+     */
+    public long getStreamOffset() {
+      return position - sessionStart;
+    }
+
+    /**
+     * Returns the number of bytes that can be read without waiting for the capture thread
+     *
+     * @return the number of bytes available, or -1 if the buffer has been closed
+     */
+    public long available() {
+      if (closed) {
+        return -1;
+      }
+      checkOverrun();
+      return writePosition - position;
+    }
+
+    /**
+     * Writes the next available data to a channel.  The data is copied out of the buffer first
+     * and only written once we know the writer did not overwrite it while it was being copied, 
+     * so that however long the write to the channel takes the data sent is intact
+     *
+     * @param out the channel to write the data to
+     * @param maxLength the maximum number of bytes to write
+     * @return the number of bytes written, or -1 if the buffer has been closed
+     * @throws IOException if there is a problem writing to the channel
+     */
+    public long read(WritableByteChannel out, long maxLength) throws IOException {
+      while (true) {
+        if (closed) {
+          return -1;
+        }
+        checkOverrun();
+        long available = writePosition - position;
+        long index = position % capacity;
+        int amount = (int) Math.min(Math.min(Math.min(available, maxLength), capacity - index), staging.capacity());
+        if (amount <= 0) {
+          return 0;
+        }
+
+        staging.clear();
+        staging.limit(amount);
+        load(readView, index, staging);
+        // the copy must be complete before we look at how far the writer has got
+        VarHandle.acquireFence();
+        if (closed) {
+          // the storage may already be holding data for the next session
+          return -1;
+        }
+        if (position < oldestSafePosition()) {
+          // the writer caught up with us during the copy so the copy may be torn, throw it
+          // away and apply the overrun policy
+          continue;
+        }
+
+        staging.flip();
+        while (staging.hasRemaining()) {
+          out.write(staging);
+        }
+        position = position + amount;
+        return amount;
+      }
+    }
+
+    /**
+     * Closes the cursor, the storage for a closed buffer is released once all its cursors are closed
+     */
+    public void close() {
+      synchronized(LiveRingBuffer.this) {
+        if (cursorClosed) {
+          return;
+        }
+        cursorClosed = true;
+        openCursors--;
+      }
+      releaseIfDone();
+    }
+
+    /**
+     * Returns the number of bytes this cursor has skipped because it fell too far behind
+     *
+     * @return the number of bytes skipped
+     */
+    public long getDroppedBytes() {
+      return droppedBytes;
+    }
+
+    /**
+     * Returns the number of times this cursor has fallen too far behind
+     *
+     * @return the number of overruns
+     */
+    public int getOverruns() {
+      return overruns;
+    }
+
+    /**
+     * Moves the cursor forward if the writer has overwritten, or is about to overwrite, the data
+     * at the cursor position
+     */
+    private void checkOverrun() {
+      long oldestSafe = oldestSafePosition();
+      if (position < oldestSafe) {
+        long newPosition;
+        if (policy == OverrunPolicy.RESYNC) {
+          newPosition = startPosition();
+        } else {
+          newPosition = alignToPacket(oldestSafe);
+        }
+        droppedBytes = droppedBytes + (newPosition - position);
+        overruns++;
+        position = newPosition;
+      }
+    }
+  }
+}
@@ -0,0 +1,432 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.livecommon;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.devrus.mediaserver.ts.StreamReadyDetector;
+
+/**
+ * Capture of a live channel on one tuner.  Each session has its own capture thread and
+ * its own file or buffer for the live data, and is shared by all of the viewers watching
+ * the channel it is tuned to.  Sessions are handed out by LiveBase which re-tunes them
+ * to other channels as needed.
+ *
+ * Each time the session is tuned it hands out a future which completes once the stream for
+ * the new channel can be played, or fails if capture could not be started, the tuner does
+ * not deliver a stream in time or the session is re-tuned first
+ */
+public abstract class LiveSession extends Thread {
+
+  // used to fail the tunes which take too long, shared by all sessions
+  private static ScheduledThreadPoolExecutor tuneTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+    public Thread newThread(Runnable task) {
+      Thread thread = new Thread(task, "LiveTuneTimer");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  // values set when the session is created
+  protected LiveBase liveSupport;
+  protected int tunerIndex;
+
+  // the channel currently tuned, along with the sequence number for the watch session.
+  // These are only changed while holding the lock for the session but can be read at any time
+  private volatile String channel = null;
+  private volatile long tuneSeq = LiveBase.NO_SEQ;
+  private volatile long lastWatched = 0;
+  private volatile CompletableFuture<LiveSession> tuned = null;
+
+  // the channel and sequence number being captured, only used by the capture thread
+  private String captureChannel = null;
+  private long captureTuneSeq = LiveBase.NO_SEQ;
+  private CompletableFuture<LiveSession> captureTuned = null;
+  private StreamReadyDetector readyDetector = null;
+
+  // local vars
+  protected File theFile = null;
+  protected FileOutputStream outputStream = null;
+  protected FileChannel outputChannel = null;
+  protected volatile LiveRingBuffer ringBuffer = null;
+  private Object captureSync = new Object();
+  private volatile long captureSeq = 0;
+  private volatile int captureWaiters = 0;
+
+  /**
+   * Constructor
+   *
+   * @param liveSupport the live support object which owns the session
+   * @param tunerIndex index of the tuner used by the session in the pool of tuners
+   */
+  public LiveSession(LiveBase liveSupport, int tunerIndex) {
+    this.liveSupport = liveSupport;
+    this.tunerIndex = tunerIndex;
+    ringBuffer = liveSupport.newRingBuffer();
+    setDaemon(true);
+  }
+
+  /**
+   * Returns the channel the session is tuned to
+   *
+   * @return the channel or null if the session is idle
+   */
+  public String getChannel() {
+    return channel;
+  }
+
+  /**
+   * Returns the sequence number associated with the current watch session
+   *
+   * @return the sequence number
+   */
+  public long getTuneSeq() {
+    return tuneSeq;
+  }
+
+  /**
+   * Returns a one line summary of what the session is doing, shown on the status page.
+   * Subclasses add their own statistics
+   *
+   * @return the summary
+   */
+  public String getStatus() {
+    return "tuner " + tunerIndex + " channel:" + channel;
+  }
+
+  /**
+   * Returns the last time a viewer of the session sent a heartbeat
+   *
+   * @return the time in milliseconds
+   */
+  public long getLastWatched() {
+    return lastWatched;
+  }
+
+  /**
+   * returns the name to be used for the growing file containing the live stream
+   *
+   * @param tuneSeq sequence associated with the watch session
+   * @return the filename for the file containing the streaming data
+   */
+  public String getFileName(long tuneSeq) {
+    return getFileName(channel, tuneSeq);
+  }
+
+  /**
+   * returns the name to be used for the growing file containing the live stream
+   *
+   * @param channel the channel being captured
+   * @param tuneSeq sequence associated with the watch session
+   * @return the filename for the file containing the streaming data
+   */
+  private String getFileName(String channel, long tuneSeq) {
+    return liveSupport.fileNameBase + File.separator + channel + tuneSeq + liveSupport.fileNameTrailer;
+  }
+
+  /**
+   * Called by each viewer as it sends a block of data so that the session knows the channel
+   * is still being watched.  This is called very often so it does not take any locks
+   *
+   * @param tuneSeq sequence number associated with the watch session
+   * @throws Exception if the session has been re-tuned to another channel
+   */
+  public void heartbeat(long tuneSeq) throws Exception {
+    if (tuneSeq != this.tuneSeq) {
+      throw new Exception("Channel Changed");
+    }
+    lastWatched = System.currentTimeMillis();
+  }
+
+  /**
+   * Tunes the session to a new channel, viewers of the previous channel will see the channel
+   * change on their next heartbeat. Only called by LiveBase
+   *
+   * @param name the channel to tune to
+   * @param seq the sequence number for the new watch session
+   * @param timeout how long the tuner has to deliver a stream in milliseconds
+   */
+  synchronized void tune(String name, long seq, long timeout) {
+    System.out.println("New channel tuned:" + name + " on tuner " + tunerIndex);
+    if (tuned != null) {
+      tuned.completeExceptionally(new Exception("Channel Changed"));
+    }
+    final CompletableFuture<LiveSession> newTuned = new CompletableFuture<LiveSession>();
+    final long newSeq = seq;
+    final String newChannel = name;
+    channel = name;
+    tuneSeq = seq;
+    tuned = newTuned;
+    lastWatched = System.currentTimeMillis();
+    this.notifyAll();
+
+    // give up on the channel if the tuner does not deliver a stream in time so that
+    // the viewers are not left waiting and the tuner can be used for something else
+    tuneTimer.schedule(new Runnable() {
+      public void run() {
+        if (newTuned.completeExceptionally(new TimeoutException("Timed out tuning:" + newChannel))) {
+          System.out.println("Timed out tuning:" + newChannel + " on tuner " + tunerIndex);
+          endWatch(newSeq);
+        }
+      }
+    }, timeout, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns the future for the current watch session which completes once the stream for
+   * the channel can be played
+   *
+   * @return the future
+   */
+  CompletableFuture<LiveSession> getTuned() {
+    return tuned;
+  }
+
+  /**
+   * Stops the watch session if it has not been re-tuned in the meantime
+   *
+   * @param seq the sequence number for the watch session to stop
+   */
+  private synchronized void endWatch(long seq) {
+    if (tuneSeq == seq) {
+      channel = null;
+      if (tuned != null) {
+        tuned.completeExceptionally(new Exception("Channel Changed"));
+      }
+      this.notifyAll();
+    }
+  }
+
+  /**
+   * The method handles capturing the live stream
+   */
+  public void run() {
+    while(true) {
+      try {
+        boolean newChannel = false;
+        boolean doCapture = true;
+        synchronized(this) {
+          while (channel == null) {
+            // no channel to tune to simply stop capture
+            if (captureTuneSeq != LiveBase.NO_SEQ) {
+              stopCapture();
+              closeTimeShift();
+              captureTuneSeq = LiveBase.NO_SEQ;
+            }
+            this.wait();
+          }
+
+          if (tuneSeq != captureTuneSeq) {
+            newChannel = true;
+            captureChannel = channel;
+            captureTuneSeq = tuneSeq;
+            captureTuned = tuned;
+          } else if ((System.currentTimeMillis() - lastWatched) > (liveSupport.watchTimeout*1000)) {
+            channel = null;
+            doCapture = false;
+          }
+        }
+
+        if (newChannel) {
+          // done outside of the lock as tuning can take a while and we don't want to
+          // hold up viewers of the other sessions
+          // the viewers are let in once the captured data shows the stream can be played
+          readyDetector = new StreamReadyDetector();
+          try {
+            startCapture(captureChannel);
+          } catch (Exception e) {
+            // failed to start capture
+            System.out.println("Failed to start capture of:" + captureChannel);
+            captureTuned.completeExceptionally(e);
+            endWatch(captureTuneSeq);
+            captureTuneSeq = LiveBase.NO_SEQ;
+            continue;
+          }
+        }
+
+        // do the next set of packets or until we time out
+        if (doCapture == true) {
+          doCapture();
+        }
+
+      } catch (Exception e) {
+        if (captureTuned != null) {
+          captureTuned.completeExceptionally(e);
+        }
+        endWatch(captureTuneSeq);
+        stopCapture();
+        closeTimeShift();
+        captureTuneSeq = LiveBase.NO_SEQ;
+      }
+    }
+  }
+
+  /**
+   * Closes the time shift buffer once the session stops capturing so that its file is not held
+   * open while no one is watching.  Viewers still reading from it see the end of the stream and 
+   * the file is closed once the last of them is done.  A new one is opened the next time capture starts
+   */
+  private void closeTimeShift() {
+    LiveRingBuffer timeShift = ringBuffer;
+    if (timeShift instanceof TimeShiftBuffer) {
+      ringBuffer = null;
+      timeShift.close();
+    }
+  }
+
+  /**
+   * Returns the buffer holding the live data
+   *
+   * @return the buffer or null if live data is written to a file instead
+   */
+  public LiveRingBuffer getRingBuffer() {
+    return ringBuffer;
+  }
+
+  /**
+   * Called by the subclasses when capture of a new channel starts to set up where the
+   * captured data will be written
+   *
+   * @throws IOException if the file for the live data cannot be created
+   */
+  protected void openCapture() throws IOException {
+    if (ringBuffer == null) {
+      ringBuffer = liveSupport.newTimeShiftBuffer(tunerIndex);
+    }
+
+    if (ringBuffer != null) {
+      ringBuffer.startSession();
+    } else {
+      theFile = new File(getFileName(captureChannel, captureTuneSeq));
+      outputStream = new FileOutputStream(theFile);
+      outputChannel = outputStream.getChannel();
+    }
+  }
+
+  /**
+   * Called by the subclasses when capture of a channel stops to clean up where the captured
+   * data was written
+   */
+  protected void closeCapture() {
+    if (outputStream != null) {
+      try {outputStream.close();} catch (Exception e){/* just ignore*/ }
+      try {theFile.delete();} catch (Exception e){/* just ignore*/ }
+      outputStream = null;
+      outputChannel = null;
+    }
+  }
+
+  /**
+   * Called by the subclasses with each block of data captured for the live channel
+   *
+   * @param data array containing the data captured
+   * @param offset offset in the array of the first byte captured
+   * @param length number of bytes captured
+   * @throws IOException if the data cannot be written
+   */
+  protected void captured(byte[] data, int offset, int length) throws IOException {
+    captured(ByteBuffer.wrap(data, offset, length));
+  }
+  
+  /**
+   * Called by the subclasses with each block of data captured for the live channel.  Subclasses
+   * should pass in as much data as they have at once as each call results in a write to the file
+   * and wakes up the viewers
+   * 
+   * @param data the data captured, the position is moved to the limit
+   * @throws IOException if the data cannot be written
+   */
+  protected void captured(ByteBuffer data) throws IOException {
+    if (readyDetector != null) {
+      readyDetector.check(data);
+      if (readyDetector.isReady()) {
+        System.out.println("Stream ready for:" + captureChannel + " after " + readyDetector.getReady().getNow(0L) + "ms");
+        readyDetector = null;
+        captureTuned.complete(this);
+      }
+    }
+
+    if (ringBuffer != null) {
+      ringBuffer.write(data);
+    } else {
+      // FileOutputStream is not buffered so there is nothing to flush
+      while (data.hasRemaining()) {
+        outputChannel.write(data);
+      }
+    }
+    dataCaptured();
+  }
+
+  /**
+   * Called each time more live data has been written so that any RequestThreads waiting for
+   * more data are woken up
+   */
+  protected void dataCaptured() {
+    captureSeq++;
+    if (captureWaiters > 0) {
+      synchronized(captureSync) {
+        captureSync.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Returns the sequence number which is incremented each time more data is written to the live file
+   *
+   * @return the current capture sequence number
+   */
+  public long getCaptureSeq() {
+    return captureSeq;
+  }
+
+  /**
+   * Waits until more data has been written to the live file
+   *
+   * @param lastSeq the capture sequence number returned by getCaptureSeq() when the caller last checked for data
+   * @param timeout the maximum time to wait in milliseconds
+   * @throws InterruptedException if the wait is interrupted
+   */
+  public void waitForCapture(long lastSeq, long timeout) throws InterruptedException {
+    synchronized(captureSync) {
+      captureWaiters++;
+      try {
+        // re-check after registering as a waiter so that we can't miss the notify
+        if (captureSeq == lastSeq) {
+          captureSync.wait(timeout);
+        }
+      } finally {
+        captureWaiters--;
+      }
+    }
+  }
+
+  /**
+   * called when capture for a channel should stop
+   */
+  public abstract void stopCapture();
+
+  /**
+   * called when the capture for a channel should start
+   *
+   * @param channel the channel to capture
+   * @throws Exception if capture could not be started
+   */
+  public abstract void startCapture(String channel) throws Exception;
+
+  /**
+   * called when more data for a channel should be captured
+   * @throws Exception
+   */
+  public abstract void doCapture() throws Exception;
+}
@@ -0,0 +1,170 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.livecommon;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Live buffer kept in a fixed size file on disk so that it can hold enough of the channel
+ * for viewers to pause and go back several minutes, without the live file growing forever.
+ * The file is re-used in a circular fashion and an index of the position reached every
+ * INDEX_INTERVAL_MS is kept so that a time in the stream can be mapped to a position.
+ */
+public class TimeShiftBuffer extends LiveRingBuffer {
+  // constants
+  private static final long INDEX_INTERVAL_MS = 1000;
+  private static final int MAX_INDEX_ENTRIES = 60*60*6; /* 6 hours at one entry a second */
+
+  private RandomAccessFile file;
+  private FileChannel fileChannel;
+
+  // circular index mapping capture time to position
+  private long[] indexTimes = new long[MAX_INDEX_ENTRIES];
+  private long[] indexPositions = new long[MAX_INDEX_ENTRIES];
+  private int indexStart = 0;
+  private int indexCount = 0;
+  private long lastIndexTime = 0;
+  private long sessionStartTime = 0;
+
+  /**
+   * Constructor
+   *
+   * @param theFile the file used to hold the buffer, it is created if it does not exist
+   * @param capacity size of the buffer in bytes
+   * @param policy what to do when a reader falls too far behind
+   * @throws IOException if the file cannot be created
+   */
+  public TimeShiftBuffer(File theFile, long capacity, OverrunPolicy policy) throws IOException {
+    super(capacity, policy);
+    file = new RandomAccessFile(theFile, "rw");
+    file.setLength(getCapacity());
+    fileChannel = file.getChannel();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public synchronized void startSession() {
+    super.startSession();
+    indexStart = 0;
+    indexCount = 0;
+    lastIndexTime = 0;
+    sessionStartTime = System.currentTimeMillis();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void write(ByteBuffer data) throws IOException {
+    long now = System.currentTimeMillis();
+    if ((now - lastIndexTime) >= INDEX_INTERVAL_MS) {
+      addIndexEntry(now, getWritePosition());
+      lastIndexTime = now;
+    }
+    super.write(data);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  protected void store(long index, ByteBuffer source) throws IOException {
+    int amount = source.remaining();
+    while (source.hasRemaining()) {
+      fileChannel.write(source, index + (amount - source.remaining()));
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  protected void load(ByteBuffer readView, long index, ByteBuffer target) throws IOException {
+    long position = index;
+    while (target.hasRemaining()) {
+      int amountRead = fileChannel.read(target, position);
+      if (amountRead <= 0) {
+        throw new IOException("Failed to read from time shift buffer at " + position);
+      }
+      position = position + amountRead;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  protected ByteBuffer newReadView() {
+    return null;
+  }
+
+  /**
+   * Returns the time at which capture of the current channel started
+   *
+   * @return the time in milliseconds
+   */
+  public long getSessionStartTime() {
+    return sessionStartTime;
+  }
+
+  /**
+   * Returns the offset into the stream for the current channel of the data captured at the
+   * time requested, based on the index entry at or just before that time
+   *
+   * @param time the time in milliseconds
+   * @return the offset into the stream for the current channel
+   */
+  public synchronized long streamOffsetForTime(long time) {
+    if (indexCount == 0) {
+      return 0;
+    }
+
+    // entries are in time order so do a binary search for the last one at or before the time
+    int low = 0;
+    int high = indexCount - 1;
+    int found = 0;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (indexTimes[(indexStart + middle) % MAX_INDEX_ENTRIES] <= time) {
+        found = middle;
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return indexPositions[(indexStart + found) % MAX_INDEX_ENTRIES] - getSessionStart();
+  }
+
+  /**
+   * Adds an entry to the time index, dropping the oldest entry if the index is full
+   *
+   * @param time the time for the entry
+   * @param position the position reached at that time
+   */
+  private synchronized void addIndexEntry(long time, long position) {
+    int entry;
+    if (indexCount < MAX_INDEX_ENTRIES) {
+      entry = (indexStart + indexCount) % MAX_INDEX_ENTRIES;
+      indexCount++;
+    } else {
+      entry = indexStart;
+      indexStart = (indexStart + 1) % MAX_INDEX_ENTRIES;
+    }
+    indexTimes[entry] = time;
+    indexPositions[entry] = position;
+  }
+
+  /**
+   * Closes the file used to hold the buffer, called once the buffer and all its cursors are closed
+   */
+  protected void release() {
+    try {
+      file.close();
+    } catch (IOException e) {
+      // nothing else we can do
+    }
+  }
+}
@@ -6,23 +6,32 @@ package com.devrus.mediaserver.ota;
 
 // includes
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Properties;
 import java.util.Iterator;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 
 import org.teleal.common.util.MimeType;
 
 import com.devrus.mediaserver.*;
+import com.devrus.mediaserver.hdhomerun.HDHomeRunControl;
 import com.devrus.mediaserver.livecommon.*;
+import com.devrus.mediaserver.ts.TSAnalyzer;
 
 
 public class OTASupport extends LiveBase {
   // externally configurable properties
   public static final String HOMERUN_BASE_COMMAND_KEY = "homerun_base_command";
   public static final String OTA_FILENAME_BASE_KEY = "ota_filename_base";
+  public static final String OTA_TUNER_KEY = "ota_tuner";
   
   // defaults 
   private static final int OTA_IN_PORT = 25001;
+  private static final String OTA_TUNER_DEFAULT = "tuner1";
   private static final String HOMERUN_BASE_COMMAND_DEFAULT = "C:\\Program Files\\Silicondust\\HDHomeRun\\hdhomerun_config 10.1.1.33";
   public static final String OTA_FILE_NAME_BASE_DEFAULT = "D:\\tv\\";
   
@@ -30,16 +39,13 @@ public class OTASupport extends LiveBase {
   public static final String OTA_FILE_NAME_TRAILER = ".ts";
   private static final int RECEIVE_BUFFER_SIZE = 1024*1024;
   private static final int MAX_PACKET_SIZE = 2000;
-  private static final int START_BUFFER_TIME = 2000;
+  private static final int BATCH_BUFFER_SIZE = 256*1024;
+  private static final long BATCH_INTERVAL = 50; /* in milliseconds */
+  private static final long STATS_INTERVAL = 60*1000; /* in milliseconds */
 
-  // local variables
-  DatagramSocket socket = null;
-  OutputStream outputStream = null;
-  byte buffer[] = new byte[MAX_PACKET_SIZE];
-  DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-  
   // values that can be overridden in the configuration file
   public String homerunBaseCommand =  HOMERUN_BASE_COMMAND_DEFAULT;
+  private ArrayList<String> tuners = new ArrayList<String>();
 
   // holds the instance of this class used by other components
   static OTASupport instance;
@@ -86,7 +92,6 @@ public class OTASupport extends LiveBase {
     rootName = BuildContent.OTA_ROOT;
     fileNameTrailer = OTA_FILE_NAME_TRAILER;
     fileNameBase = OTA_FILE_NAME_BASE_DEFAULT;
-    bufferTime = START_BUFFER_TIME;
     
     // Channels for OTA
     channels.put("CBOT", new Channel("CBOT","25"));
@@ -116,81 +121,242 @@ public class OTASupport extends LiveBase {
     if (configuration.getProperty(OTA_FILENAME_BASE_KEY) != null){
       fileNameBase = configuration.getProperty(OTA_FILENAME_BASE_KEY);
     }
+    
+    // get the tuners which can be used for live tv, each one gets its own port
+    int index = 0;
+    while(true){
+      String nextTuner = configuration.getProperty(OTA_TUNER_KEY + index);
+      if (nextTuner == null) {
+        break;
+      }
+      tuners.add(nextTuner);
+      index++;
+    }
+    if (tuners.isEmpty()) {
+      tuners.add(OTA_TUNER_DEFAULT);
+    }
+    numberTuners = tuners.size();
   }
   
   /**
    * {@inheritDoc}
    */
-  public void stopCapture(){
-    // no channel to tune to simply stop capture
-    if (socket != null){
-      try {
-        socket.close();
-        outputStream.close();
-        try{theFile.delete();} catch (Exception e){/* just ignore*/ }
-      } catch (Exception e) {};
-      socket = null;
-    }
+  protected LiveSession createSession(int tunerIndex) {
+    return new OTASession(tunerIndex);
   }
   
   /**
-   * {@inheritDoc}
+   * Capture of a channel using one of the HDHomeRun tuners.  Datagrams are drained from the 
+   * socket into a large buffer and written out once per batch interval, rather than doing 
+   * a write for each datagram, to keep the number of system calls down 
    */
-  public void startCapture() throws Exception {
-    if (socket != null) {
-      socket.close();
-      outputStream.close();
-      try{theFile.delete();} catch (Exception e) {/* just ignore*/ }
-    } 
-    
-    socket = new DatagramSocket(OTA_IN_PORT);
-    socket.setSoTimeout(100);
-    socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
-    System.out.println("Creating socket");
-
-    // delete any old files to keep total buffer size down. 
-    File directory = new File(fileNameBase);
-    File files[] = directory.listFiles();
-    for (int i=0;i<files.length;i++) {
-      if (files[i].getName().endsWith(OTA_FILE_NAME_TRAILER)) {
-        try{files[i].delete();} catch (Exception e){/* just ignore*/ }
+  class OTASession extends LiveSession {
+    // local variables
+    DatagramChannel channel = null;
+    Selector selector = null;
+    ByteBuffer batchBuffer = ByteBuffer.allocateDirect(BATCH_BUFFER_SIZE);
+    volatile TSAnalyzer analyzer = null;
+    String tuner;
+    int port;
+    
+    // statistics for the ingest, packets lost on channels captured before the current one
+    // are kept separately as each channel gets a new analyzer
+    volatile long packetsReceived = 0;
+    volatile long datagramsDiscarded = 0;
+    volatile long packetsPerSecond = 0;
+    volatile long packetsLostBefore = 0;
+    long statsStartTime = 0;
+    long statsStartPackets = 0;
+    
+    /**
+     * Constructor
+     * 
+     * @param tunerIndex index of the tuner in the pool
+     */
+    OTASession(int tunerIndex) {
+      super(OTASupport.this, tunerIndex);
+      tuner = tuners.get(tunerIndex);
+      port = OTA_IN_PORT + tunerIndex;
+    }
+    
+    /**
+     * Returns the analyzer checking the quality of the stream for the channel being captured
+     * 
+     * @return the analyzer or null if capture has not started
+     */
+    public TSAnalyzer getAnalyzer() {
+      return analyzer;
+    }
+    
+    /**
+     * Returns the total number of datagrams received by this tuner
+     * 
+     * @return the number of datagrams received
+     */
+    public long getPacketsReceived() {
+      return packetsReceived;
+    }
+    
+    /**
+     * Returns the number of TS packets lost before they reached us, for example dropped by the 
+     * kernel when the socket buffer overflowed, based on the gaps in the continuity counters
+     * 
+     * @return the number of TS packets lost
+     */
+    public long getPacketsDropped() {
+      TSAnalyzer current = analyzer;
+      if (current == null) {
+        return packetsLostBefore;
       }
+      return packetsLostBefore + current.getLostPackets();
     }
     
-    theFile = new File(getFileName(null,lastTuneSeq));
-    outputStream = new FileOutputStream(theFile);
+    /**
+     * Returns the number of datagrams thrown away because they did not contain whole TS packets
+     * 
+     * @return the number of datagrams discarded
+     */
+    public long getDatagramsDiscarded() {
+      return datagramsDiscarded;
+    }
     
-    String command = homerunBaseCommand + " set /tuner1/channel auto:" + channels.get(lastChannel).number;
-    System.out.println(command);
-    Process theProcess = Runtime.getRuntime().exec(command);
-    theProcess.waitFor();
-    Thread.sleep(1000);
+    /**
+     * {@inheritDoc}
+     */
+    public String getStatus() {
+      return super.getStatus() + " tuner:" + tuner + " datagrams/sec:" + getPacketsPerSecond() + 
+             " datagrams:" + getPacketsReceived() + " lost packets:" + getPacketsDropped() + 
+             " discarded datagrams:" + getDatagramsDiscarded();
+    }
     
-    command = homerunBaseCommand + " set /tuner1/target udp://" + serverAddress + ":" + OTA_IN_PORT;
-    System.out.println(command);
-    theProcess = Runtime.getRuntime().exec(command);
-    theProcess.waitFor();  
-  }
-  
-  /**
-   * {@inheritDoc}
-   */
-  public  void doCapture() {
-    for(int i=0;i<10;i++){
-      try {
-        for (int j=0;j<1000;j++) {
-          socket.receive(packet);
-          outputStream.write(packet.getData(), 0, packet.getLength());
-          outputStream.flush();
-        } 
-      } catch (SocketTimeoutException e) {
-        // this is fine just go to the top of the loop
-        break;
-      } catch (Exception e) {
-        System.out.println("Exception received in datagram socket receive");
-        e.printStackTrace();
+    /**
+     * Returns the rate at which datagrams were received over the last statistics interval
+     * 
+     * @return the number of datagrams received per second
+     */
+    public long getPacketsPerSecond() {
+      return packetsPerSecond;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void stopCapture(){
+      // no channel to tune to simply stop capture
+      if (channel != null){
+        closeChannel();
+        closeCapture();
+        try {
+          HDHomeRunControl.release(homerunBaseCommand, tuner);
+        } catch (Exception e) {
+          System.out.println(e);
+        }
+      }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void startCapture(String channelName) throws Exception {
+      if (channel != null) {
+        closeChannel();
+        closeCapture();
+      } 
+      
+      channel = DatagramChannel.open();
+      channel.socket().setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+      channel.socket().bind(new InetSocketAddress(port));
+      channel.configureBlocking(false);
+      selector = Selector.open();
+      channel.register(selector, SelectionKey.OP_READ);
+      System.out.println("Creating socket");
+      statsStartTime = System.currentTimeMillis();
+      statsStartPackets = packetsReceived;
+      if (analyzer != null) {
+        packetsLostBefore = packetsLostBefore + analyzer.getLostPackets();
+      }
+      analyzer = new TSAnalyzer(tuner, 0);
+      
+      openCapture();
+      
+      HDHomeRunControl.tune(homerunBaseCommand, tuner, "auto:" + channels.get(channelName).number, null,
+                            "udp://" + serverAddress + ":" + port);
+    }
+    
+    /**
+     * Closes the channel and selector used to receive the datagrams
+     */
+    private void closeChannel() {
+      try {selector.close();} catch (Exception e){/* just ignore*/ }
+      try {channel.close();} catch (Exception e){/* just ignore*/ }
+      selector = null;
+      channel = null;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * Only the loss of a single datagram is handled here, anything else such as the channel or 
+     * selector having been closed is passed on so that the session stops capture
+     */
+    public  void doCapture() throws Exception {
+      // drain as many datagrams as arrive during the batch interval, or until the buffer is full
+      batchBuffer.clear();
+      long batchEnd = System.currentTimeMillis() + BATCH_INTERVAL;
+      while (batchBuffer.remaining() >= MAX_PACKET_SIZE) {
+        long wait = batchEnd - System.currentTimeMillis();
+        if (wait <= 0) {
+          break;
+        }
+        if (selector.select(wait) == 0) {
+          continue;
+        }
+        selector.selectedKeys().clear();
+        
+        while (batchBuffer.remaining() >= MAX_PACKET_SIZE) {
+          int start = batchBuffer.position();
+          try {
+            if (channel.receive(batchBuffer) == null) {
+              break;
+            }
+          } catch (PortUnreachableException e) {
+            // an ICMP error reported in place of a datagram, only that datagram is lost
+            datagramsDiscarded++;
+            batchBuffer.position(start);
+            break;
+          }
+          packetsReceived++;
+          
+          // only keep whole TS packets so the live data stays aligned
+          if (((batchBuffer.position() - start) % LiveRingBuffer.TS_PACKET_SIZE) != 0) {
+            datagramsDiscarded++;
+            batchBuffer.position(start);
+          }
+        }
+      }
+      
+      batchBuffer.flip();
+      if (batchBuffer.hasRemaining()) {
+        analyzer.analyze(batchBuffer);
+        captured(batchBuffer);
+      }
+      updateStats();
+    }
+    
+    /**
+     * Updates the receive rate once each statistics interval
+     */
+    private void updateStats() {
+      long now = System.currentTimeMillis();
+      long elapsed = now - statsStartTime;
+      if (elapsed >= STATS_INTERVAL) {
+        packetsPerSecond = ((packetsReceived - statsStartPackets) * 1000)/elapsed;
+        System.out.println("Tuner " + tuner + " datagrams/sec:" + packetsPerSecond + " received:" + packetsReceived + 
+                           " lost packets:" + getPacketsDropped() + " discarded datagrams:" + datagramsDiscarded);
+        System.out.println("Tuner " + tuner + " stream " + analyzer.getCounters());
+        statsStartTime = now;
+        statsStartPackets = packetsReceived;
       }
     }
   }
-  
 }
@@ -0,0 +1,415 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import com.devrus.mediaserver.ts.TSAnalyzer;
+
+/**
+ * Captures the stream for a channel into the files for one or more recordings.  When a
+ * program is scheduled on a channel which is still being recorded, which happens for back
+ * to back programs because each recording is padded at both ends, the new recording is
+ * added to the existing capture instead of starting a second capture of the same channel.
+ * The stream is then received once and each recording gets a Slice of it, cut at packet
+ * boundaries.  Only the padding where the slices overlap is written to both files.
+ *
+ * The data is received and written on threads belonging to the capture, the threads for
+ * the recordings just wait for their slices to be complete.
+ */
+public class ContinuousCapture extends Thread implements RecordOutput {
+  // constants
+  private static final int TS_PACKET_SIZE = TSAnalyzer.TS_PACKET_SIZE;
+  private static final long ANALYZER_REPORT_INTERVAL = 60*1000;
+
+  // captures which are running, by record target
+  private static HashMap<String,ContinuousCapture> captures = new HashMap<String,ContinuousCapture>();
+
+  private String recordTarget;
+  private RecordingController controller;
+  private ArrayList<Slice> slices = new ArrayList<Slice>();
+  private boolean finished = false;
+  private long endTime;
+
+  /**
+   * Records a program into a slice, adding it to the capture already running for the channel
+   * if there is one, otherwise starting a new capture.  Returns once the slice is complete
+   *
+   * @param task the task used to open the input if a new capture is needed
+   * @param recordTarget string with the information for what should be recorded
+   * @param startTime the time the program starts
+   * @param endTime the time the recording should stop
+   * @param programEndTime the time the program actually ends, before the extra time we add
+   * @param slice the slice for the recording
+   * @return true if any of the program was recorded
+   * @throws InterruptedException if interrupted while waiting for the slice
+   */
+  public static boolean record(GenericRecordTask task, String recordTarget, long startTime, long endTime,
+                               long programEndTime, Slice slice) throws InterruptedException {
+    synchronized(captures) {
+      ContinuousCapture capture = captures.get(recordTarget);
+      if ((capture == null)||(!capture.add(slice, endTime, programEndTime))) {
+        capture = new ContinuousCapture(task, recordTarget, startTime, endTime, programEndTime);
+        capture.slices.add(slice);
+        captures.put(recordTarget, capture);
+        capture.start();
+      } else {
+        System.out.println("Adding " + slice.getFile().getName() + " to the capture already running for " + recordTarget);
+      }
+    }
+
+    try {
+      return slice.getDone().get();
+    } catch (ExecutionException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Constructor
+   *
+   * @param task the task used to open the input
+   * @param recordTarget string with the information for what should be recorded
+   * @param startTime the time the first program starts
+   * @param endTime the time the recording should stop
+   * @param programEndTime the time the first program actually ends
+   */
+  private ContinuousCapture(GenericRecordTask task, String recordTarget, long startTime, long endTime, long programEndTime) {
+    super("Capture-" + recordTarget);
+    this.recordTarget = recordTarget;
+    this.endTime = endTime;
+    controller = new RecordingController(task, recordTarget, startTime, endTime, programEndTime);
+  }
+
+  /**
+   * Adds the slice for another program to the capture, extending the capture to the end
+   * of the program.  Called while holding the lock for the captures
+   *
+   * @param slice the slice for the program
+   * @param newEndTime the time the recording of the program should stop
+   * @param newProgramEndTime the time the program actually ends
+   * @return false if the capture is stopping and cannot be extended
+   */
+  private boolean add(Slice slice, long newEndTime, long newProgramEndTime) {
+    if (finished) {
+      return false;
+    }
+    synchronized(slices) {
+      if (!controller.extend(newEndTime, newProgramEndTime)) {
+        return false;
+      }
+      endTime = Math.max(endTime, newEndTime);
+      slices.add(slice);
+    }
+    return true;
+  }
+
+  /**
+   * Opens the input for the capture and writes the stream into the slices until the
+   * input is closed at the end of the last program
+   */
+  public void run() {
+    RecordBuffer recordBuffer = null;
+    IdleWindow.recordingStarted();
+    try {
+      InputStream in = controller.open();
+      if (in != null) {
+        // the data is received on a separate thread and written from here. Sources that
+        // put the data straight into a buffer are written from that buffer, otherwise the
+        // stream is read into a ring
+        if (in instanceof RecordSource) {
+          recordBuffer = ((RecordSource) in).getRecordBuffer();
+        } else {
+          RecordRingBuffer ring = new RecordRingBuffer(GenericRecordTask.recordBufferMB*1024*1024);
+          (new ReceiveThread(in, ring)).start();
+          recordBuffer = ring;
+        }
+        while (recordBuffer.drain(this));
+      }
+    } catch (Exception e) {
+      System.out.println("Exception during capture of " + recordTarget + ":" + e);
+    } finally {
+      synchronized(captures) {
+        finished = true;
+        if (captures.get(recordTarget) == this) {
+          captures.remove(recordTarget);
+        }
+      }
+      controller.stop();
+      IdleWindow.recordingEnded();
+      if (recordBuffer != null) {
+        recordBuffer.abort();
+        System.out.println("Recording buffer " + recordBuffer.getStatistics());
+      }
+
+      // anything not already complete is complete now, or never got started
+      synchronized(slices) {
+        for (int i=0;i<slices.size();i++) {
+          slices.get(i).finish();
+        }
+      }
+    }
+  }
+
+  /**
+   * Thread which reads the stream into the buffer so that reading from the tuner is not
+   * held up while the data is being written to disk
+   */
+  class ReceiveThread extends Thread {
+    InputStream input = null;
+    RecordRingBuffer recordBuffer = null;
+
+    public ReceiveThread(InputStream input, RecordRingBuffer recordBuffer){
+      this.input = input;
+      this.recordBuffer = recordBuffer;
+    }
+
+    public void run(){
+      try {
+        recordBuffer.receive(input);
+      } catch (Exception e) {
+        if (System.currentTimeMillis() < getEndTime()) {
+          // this can be ok in some cases as we may have an overlap and the
+          // next recording started, causing this exception
+          System.out.println("Early termination of recording");
+        }
+      } finally {
+        recordBuffer.close();
+      }
+    }
+  }
+
+  /**
+   * Returns the time the capture should stop
+   *
+   * @return the time
+   */
+  private long getEndTime() {
+    synchronized(slices) {
+      return endTime;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void write(byte[] data, int offset, int length, long receiveTime) throws IOException {
+    write(ByteBuffer.wrap(data, offset, length), receiveTime);
+  }
+
+  /**
+   * Passes the next block of the stream on to the slices that cover the time it was received.
+   * A slice starts or ends at the first packet in the first block received once its time is
+   * reached.  The time the block is written is not used as it may have waited in the buffer
+   *
+   * {@inheritDoc}
+   */
+  public void write(ByteBuffer data, long receiveTime) throws IOException {
+    int start = data.position();
+    int end = data.limit();
+    int boundary = -1;
+
+    Slice[] current = null;
+    synchronized(slices) {
+      current = slices.toArray(new Slice[slices.size()]);
+    }
+    for (int i=0;i<current.length;i++) {
+      Slice slice = current[i];
+      if (slice.isFinished()||((!slice.isStarted())&&(receiveTime < slice.getStartTime()))) {
+        continue;
+      }
+
+      if (boundary == -1) {
+        boundary = findPacketStart(data, start, end);
+      }
+      int from = start;
+      int to = end;
+      if (!slice.isStarted()) {
+        from = boundary;
+      }
+      if (receiveTime >= slice.getEndTime()) {
+        to = boundary;
+      }
+      if (to > from) {
+        ByteBuffer part = data.duplicate();
+        part.limit(to);
+        part.position(from);
+        slice.write(part);
+      }
+      if (receiveTime >= slice.getEndTime()) {
+        slice.finish();
+      }
+    }
+    data.position(end);
+  }
+
+  /**
+   * Finds the first packet which starts in a block of the stream
+   *
+   * @param data the buffer holding the block
+   * @param start index of the start of the block
+   * @param end index of the end of the block
+   * @return the index of the sync byte of the packet, or the end of the block if there is none
+   */
+  static int findPacketStart(ByteBuffer data, int start, int end) {
+    for (int i=start;i<end;i++) {
+      if ((data.get(i) == TSAnalyzer.SYNC_BYTE)&&
+          (((i + TS_PACKET_SIZE) >= end)||(data.get(i + TS_PACKET_SIZE) == TSAnalyzer.SYNC_BYTE))) {
+        return i;
+      }
+    }
+    return end;
+  }
+
+  /**
+   * The part of the stream for one recording, written to its own file
+   */
+  public static class Slice {
+    private File file;
+    private long startTime;
+    private long endTime;
+    private long expectedSize;
+    private boolean analyze;
+
+    // only used by the thread writing the capture
+    private RecordWriter out = null;
+    private TSAnalyzer analyzer = null;
+    private boolean started = false;
+    private boolean failed = false;
+    private CompletableFuture<Boolean> done = new CompletableFuture<Boolean>();
+
+    /**
+     * Constructor
+     *
+     * @param file the file for the recording
+     * @param startTime the time to start writing, including any padding before the program
+     * @param endTime the time to stop writing, including any padding after the program
+     * @param expectedSize how big the recording is expected to be, used to reserve the space
+     * @param analyze true if the quality of the stream should be checked as it is written
+     */
+    public Slice(File file, long startTime, long endTime, long expectedSize, boolean analyze) {
+      this.file = file;
+      this.startTime = startTime;
+      this.endTime = endTime;
+      this.expectedSize = expectedSize;
+      this.analyze = analyze;
+    }
+
+    /**
+     * Returns the file for the recording
+     *
+     * @return the file
+     */
+    public File getFile() {
+      return file;
+    }
+
+    /**
+     * Returns the time to start writing
+     *
+     * @return the time
+     */
+    public long getStartTime() {
+      return startTime;
+    }
+
+    /**
+     * Returns the time to stop writing
+     *
+     * @return the time
+     */
+    public long getEndTime() {
+      return endTime;
+    }
+
+    /**
+     * Returns the future which completes once the slice has been written, with true
+     * if any data was written
+     *
+     * @return the future
+     */
+    public CompletableFuture<Boolean> getDone() {
+      return done;
+    }
+
+    /**
+     * Returns whether any data has been written for the slice
+     *
+     * @return true if the slice has been started
+     */
+    boolean isStarted() {
+      return started;
+    }
+
+    /**
+     * Returns whether the slice has been completed
+     *
+     * @return true if the slice is complete
+     */
+    boolean isFinished() {
+      return done.isDone();
+    }
+
+    /**
+     * Writes the next part of the stream, creating the file for the first part.  If the
+     * file cannot be written the slice is complete so that the other slices carry on
+     *
+     * @param data the data to write
+     */
+    void write(ByteBuffer data) {
+      try {
+        if (!started) {
+          started = true;
+          System.out.println("Recording: " + file.getAbsolutePath());
+          out = new RecordWriter(file, expectedSize);
+          if (analyze) {
+            analyzer = new TSAnalyzer(file.getName(), ANALYZER_REPORT_INTERVAL);
+          }
+        }
+        if (analyzer != null) {
+          analyzer.analyze(data);
+        }
+        out.write(data);
+      } catch (IOException e) {
+        System.out.println("Failed to write recording:" + file.getAbsolutePath() + ":" + e);
+        failed = true;
+        finish();
+      }
+    }
+
+    /**
+     * Closes the file for the slice and marks it complete, only the first call has any effect
+     */
+    void finish() {
+      if (done.isDone()) {
+        return;
+      }
+      try {
+        if (out != null){
+          out.close();
+        }
+      } catch (Exception e ){
+        System.out.println("Exception closing output file");
+      }
+
+      if (analyzer != null) {
+        System.out.println("Recording quality " + analyzer.getCounters());
+        try {
+          analyzer.writeQualityFile(file);
+        } catch (Exception e) {
+          System.out.println("Failed to write quality file for:" + file.getAbsolutePath());
+        }
+      }
+      done.complete(started && !failed);
+    }
+  }
+}
@@ -5,17 +5,18 @@
 package com.devrus.mediaserver.recorder;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.text.*;
 import java.util.HashMap;
 
-import com.devrus.mediaserver.clean.Cleaner;
 import com.devrus.mediaserver.livecommon.Channel;
 import com.devrus.mediaserver.scheduler.XMLTVScheduler;
 
 public abstract class GenericRecordTask {
-  private static final int VIDEO_READ_BUFFER_SIZE = 1024*1024;
+  private static final int DEFAULT_RECORD_BUFFER_MB = 16;
+  private static final int DEFAULT_EXPECTED_MBPS = 20; /* a little over the maximum for ATSC */
+  private static final int DEFAULT_TUNE_TIMEOUT = 15; /* in seconds */
+  private static final int DEFAULT_PRE_TUNE = 30; /* in seconds */
   private static final String FILE_TRAILER = ".ts";
   private static final String MOVE_TAG = "move";
 
@@ -24,6 +25,13 @@ public abstract class GenericRecordTask {
   public static String comskipBase = null;
   public static String completeDir = null;
   public static boolean runComskip = true;
+  public static int recordBufferMB = DEFAULT_RECORD_BUFFER_MB;
+  public static boolean analyzeRecordings = true;
+  public static int expectedMbps = DEFAULT_EXPECTED_MBPS;
+  public static int tuneTimeout = DEFAULT_TUNE_TIMEOUT;
+  public static int preTuneSeconds = DEFAULT_PRE_TUNE;
+  public static boolean pidFilter = true;
+  public static String[] audioLanguages = null;
   
   protected static HashMap<String,Channel> channels = new HashMap<String,Channel>();
   
@@ -36,132 +44,64 @@ public abstract class GenericRecordTask {
     channels.put(name, new Channel(name,channel));
   }
   
-  class WatchDog extends Thread {
-    long endTime = 0;
-    InputStream input = null;
-    public WatchDog(long endTime, InputStream input){
-      this.endTime = endTime;
-      this.input = input;
-    }
-    
-    public void run(){
-      while(true){
-        if (System.currentTimeMillis() > endTime) {
-          try {
-            input.close();
-          } catch (Exception e) {};
-          break;
-        }
+  /**
+   * Returns the time the program starts.  The schedule starts the recording a little before
+   * the program so that the tuner can be tuned in advance, and passes the actual start with
+   * the start tag.  Older schedules don't have the tag and start at the start of the program
+   * @param extraInfo the arguments for the recording from the schedule
+   * @return the time the program starts
+   */
+  static long getStartTime(String[] extraInfo){
+    for (int i=4;i<extraInfo.length;i++){
+      if ((extraInfo[i] != null)&&(extraInfo[i].startsWith(XMLTVScheduler.START_TAG))){
         try {
-          Thread.sleep(1000 * 30);
-        } catch (Exception e) {};
+          SimpleDateFormat startFormat = new SimpleDateFormat(XMLTVScheduler.START_FORMAT);
+          return startFormat.parse(extraInfo[i].substring(XMLTVScheduler.START_TAG.length())).getTime();
+        } catch (ParseException e) {
+          System.out.println("Invalid start time:" + extraInfo[i]);
+        }
       }
     }
+    return System.currentTimeMillis();
   }
   
   public void doRecord(String[] extraInfo){
     try {
       boolean move = false;
-      byte[] buffer = new byte[VIDEO_READ_BUFFER_SIZE];
       String showName = extraInfo[0];
       String episodeName = extraInfo[1];
       String recordTarget = extraInfo[2];
       int duration = Integer.parseInt(extraInfo[3]);
-      if (extraInfo.length >4){
-        if ((extraInfo[4] != null)&&(extraInfo[4].compareTo(MOVE_TAG)==0)){
+      for (int i=4;i<extraInfo.length;i++){
+        if ((extraInfo[i] != null)&&(extraInfo[i].compareTo(MOVE_TAG)==0)){
           move = true;
         }
       }
-      SimpleDateFormat dateFormat = new SimpleDateFormat("dd_MMM_yyyy_HH_mm");
-      long endTime = System.currentTimeMillis() + (duration * 60 * 1000);
+      long startTime = getStartTime(extraInfo);
+      long endTime = startTime + (duration * 60 * 1000);
 
-      // get the input stream used to get the content for the show, provided by subclasses
-      InputStream in = null;
-      FileOutputStream out = null;
-      File outputFile = null;
-      try {
-        in = getInputStream(recordTarget, endTime - (XMLTVScheduler.EXTRA_RECORD_TIME)*60*1000);
-        
-        if (in != null){
-          // start watchdog that will kill recording at end recording  
-          (new WatchDog(endTime, in)).start();
-    
-          // generate the OutputStream that we will use to write the file 
-          File directory = new File(recordDir + File.separator + showName);
-          try {directory.mkdirs();} catch (Exception e){};
-          outputFile = new File(directory.getAbsolutePath() + File.separator + episodeName /*+ "_" + dateFormat.format(new Date()) */+ FILE_TRAILER);
-          System.out.println("Recording: " + outputFile.getAbsolutePath());
-          out = new FileOutputStream(outputFile);
-          
-          int buffered = 0;
-          int maxBuffer = buffer.length;
-          while (true) {
-            try {
-              int numRead = in.read(buffer,buffered,maxBuffer-buffered);
-              buffered = buffered + numRead;
-              if (buffered > 128000) {
-                out.write(buffer, 0, buffered);
-                buffered = 0;
-                out.flush();
-              }
-            } catch (Exception e) {
-              out.write(buffer, 0, buffered);
-              out.flush();
-              if (System.currentTimeMillis() < endTime) {
-                // this can be ok in some cases as we may have an overlap and the
-                // next recording started, causing this exception
-                System.out.println("Early termination of recording");
-              }
-              break;
-            }
-          }
-        } else {
-          System.out.println("Failed to record:" + episodeName);
-        }
-      } finally {
-        try {
-          if (out != null){
-            out.close();
-          }
-        } catch (Exception e ){
-          System.out.println("Exception closing output file");
-        }
-        
-        try {
-          if (in != null){
-            in.close();
-          }
-        } catch (Exception e ){
-          System.out.println("Exception closing input");
-        }
+      // generate the file that we will use for the recording
+      File directory = new File(recordDir + File.separator + showName);
+      try {directory.mkdirs();} catch (Exception e){};
+      File outputFile = new File(directory.getAbsolutePath() + File.separator + episodeName /*+ "_" + dateFormat.format(new Date()) */+ FILE_TRAILER);
+      
+      // reserve enough space for the whole recording so that it is not fragmented
+      long expectedSize = ((long) duration) * 60 * expectedMbps * 1000 * 1000 / 8;
+      
+      // the recording is written from the time we tune ahead of the program until the end
+      // of the extra time after it.  If the channel is already being recorded, for example
+      // for the program before this one, we get our part of that capture 
+      ContinuousCapture.Slice slice = new ContinuousCapture.Slice(outputFile, startTime - preTuneSeconds*1000L, 
+                                                                  endTime, expectedSize, analyzeRecordings);
+      if (!ContinuousCapture.record(this, recordTarget, startTime, endTime, 
+                                    endTime - (XMLTVScheduler.EXTRA_RECORD_TIME)*60*1000, slice)) {
+        System.out.println("Failed to record:" + episodeName);
+        return;
       }
       
+      // the rest of the work is done by the post processing workers once the recorder is less busy
       if (runComskip) {
-        // temporary delay, too much was going on for the atom to handle, seeing if delaying until
-        // after recordings complete helps avoid affecting the recordgins.
-        System.out.println("Recording complete, delaying for 4 hours to start comskip: " + outputFile.getAbsolutePath());
-        try {
-          Thread.sleep(1000*60*60*4);
-        } catch (InterruptedException e) {};
-        
-        // now at this point we want to start comskip, we don't need to wait for it to finish
-        if (outputFile != null) {
-          System.out.println("Detecting Commercials: " + outputFile.getAbsolutePath());
-          Process theProcess = Runtime.getRuntime().exec(comskipBase + " \"" + outputFile.getAbsolutePath() + "\"");
-          theProcess.getInputStream().close();
-          theProcess.getErrorStream().close();
-          theProcess.getOutputStream().close();
-          theProcess.waitFor();
-          String[] cleanerArgs = new String[1];
-          cleanerArgs[0] = outputFile.getAbsolutePath();
-          System.out.println("Cleaning Commercials: " + outputFile.getAbsolutePath());
-          Cleaner.main(cleanerArgs);
-          if (move){
-            File currentName = new File(Cleaner.newFileName(outputFile.getAbsolutePath()));
-            currentName.renameTo(new File(completeDir + File.separator + currentName.getName()));
-          }
-          System.out.println("Done: " + outputFile.getAbsolutePath());
-        }
+        PostProcessQueue.add(outputFile, move ? completeDir : null, PostProcessQueue.getPriority(extraInfo));
       }
     } catch (Exception e){
       System.out.println("Exception during recording:" + e);
@@ -173,9 +113,19 @@ public abstract class GenericRecordTask {
   /**
    * returns the InputStream to be used to read the content for the program.  
    * @param recordTarget string with the information for what should be recorded
+   * @param startTime the time the program starts, which may be after the InputStream is requested
    * @param endTime the time the program actually ends (which may be before the recording will stop
    *                as we all an "extra" to allow for clock skew 
    * @return the InputStream that can be used to read the content for the program being recorded
    */
-  abstract InputStream getInputStream(String recordTarget, long endTime) throws Exception;
+  abstract InputStream getInputStream(String recordTarget, long startTime, long endTime) throws Exception;
+  
+  /**
+   * Called when a recording is extended to include the next program on the same channel so
+   * that the source knows the input is needed for longer.  By default nothing needs to be done
+   * @param in the InputStream returned by getInputStream()
+   * @param endTime the time the last program in the recording now ends
+   */
+  void extendInput(InputStream in, long endTime) {
+  }
 }
@@ -15,7 +15,25 @@ public class HDHomeRunServer {
   boolean inUse = false;
   private long useSeq = 0;
   private long endTime = 0;
+  private TunerStream stream = null;
   
+  /**
+   * returns the stream from the tuner while it is being used to record
+   *
+   * @return the stream or null if the tuner is not being used
+   */
+  public TunerStream getStream() {
+    return stream;
+  }
+
+  /**
+   * set the stream from the tuner
+   * @param stream the stream or null when the tuner is released
+   */
+  public void setStream(TunerStream stream) {
+    this.stream = stream;
+  }
+
   /**
    * returns the time this sever should become free
    *
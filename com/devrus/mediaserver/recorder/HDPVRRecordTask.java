@@ -81,9 +81,9 @@ public class HDPVRRecordTask extends GenericRecordTask {
   }
 
   /* (non-Javadoc)
-   * @see com.devrus.mediaserver.recorder.GenericRecordTask#getInputStream(java.lang.String, long)
+   * @see com.devrus.mediaserver.recorder.GenericRecordTask#getInputStream(java.lang.String, long, long)
    */
-  InputStream getInputStream(String recordTarget, long endTime) throws Exception {
+  InputStream getInputStream(String recordTarget, long startTime, long endTime) throws Exception {
     return new RecordInputStream(channels.get(recordTarget).number);
   }
   
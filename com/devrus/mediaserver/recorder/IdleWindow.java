@@ -0,0 +1,161 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.recorder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.sauronsoftware.cron4j.SchedulingPattern;
+
+/**
+ * Decides when the heavy post processing work (comskip, HandBrake) can run without slowing
+ * down recordings.  New work is only started when nothing is being recorded and no recording
+ * is due to start within the guard time.  Work which is already running when a recording
+ * starts is held back while recordings are slow writing to disk, which shows the post
+ * processing is keeping the disk too busy.
+ *
+ * The recordings due to start are taken from the cron file the recorder is scheduled from,
+ * which is read again whenever it changes.
+ */
+public class IdleWindow {
+  // constants
+  private static final int DEFAULT_GUARD = 30; /* in minutes */
+  private static final int DEFAULT_BACKOFF = 15; /* in minutes */
+  private static final String RECORD_TASK_TAG = "#record";
+  private static final String COMMENT = "#";
+  private static final int PATTERN_FIELDS = 5;
+
+  // set when the properties file is read
+  public static int guardMinutes = DEFAULT_GUARD;
+  public static int backoffMinutes = DEFAULT_BACKOFF;
+
+  // what the recorder is doing now
+  private static AtomicInteger activeRecordings = new AtomicInteger(0);
+  private static volatile long lastSlowWrite = 0;
+
+  // the patterns for the recordings in the cron file, read when the file changes
+  private static ArrayList<SchedulingPattern> recordPatterns = new ArrayList<SchedulingPattern>();
+  private static long cronFileModified = 0;
+
+  /**
+   * Called when a recording starts using a tuner
+   */
+  public static void recordingStarted() {
+    activeRecordings.incrementAndGet();
+  }
+
+  /**
+   * Called when a recording is no longer using a tuner
+   */
+  public static void recordingEnded() {
+    if (activeRecordings.decrementAndGet() == 0) {
+      PostProcessQueue.wake();
+    }
+  }
+
+  /**
+   * Called when a write for a recording takes long enough that the disk is struggling to
+   * keep up
+   */
+  public static void slowWrite() {
+    lastSlowWrite = System.currentTimeMillis();
+  }
+
+  /**
+   * Returns the reason post processing should not run now, if there is one
+   *
+   * @return the reason or null if post processing can run
+   */
+  public static String getBusyReason() {
+    long now = System.currentTimeMillis();
+    if (activeRecordings.get() > 0) {
+      return activeRecordings.get() + " recording(s) in progress";
+    }
+    if (isRecordingDue(now, now + guardMinutes*60*1000L)) {
+      return "recording due to start";
+    }
+    return null;
+  }
+
+  /**
+   * Returns whether recordings have been slow writing to disk within the backoff time, in
+   * which case post processing which is running should wait until they keep up again
+   *
+   * @return true if there was a slow write within the backoff time
+   */
+  public static boolean isWriteLatencyHigh() {
+    return (System.currentTimeMillis() - lastSlowWrite) < backoffMinutes*60*1000L;
+  }
+
+  /**
+   * Returns whether any recording in the cron file is due to start in a period of time
+   *
+   * @param from the start of the period
+   * @param to the end of the period
+   * @return true if a recording starts during the period
+   */
+  private static synchronized boolean isRecordingDue(long from, long to) {
+    loadSchedule();
+    // cron entries fire on the minute so checking each minute is enough
+    long minute = (from/(60*1000))*60*1000;
+    for (;minute <= to;minute = minute + 60*1000) {
+      for (int i=0;i<recordPatterns.size();i++) {
+        if (recordPatterns.get(i).match(minute)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the patterns for the recording entries from the cron file if it has changed
+   * since it was last read
+   */
+  private static void loadSchedule() {
+    if (ScheduledRecorder.cronConfig == null) {
+      return;
+    }
+    File cronFile = new File(ScheduledRecorder.cronConfig);
+    if (cronFile.lastModified() == cronFileModified) {
+      return;
+    }
+
+    ArrayList<SchedulingPattern> patterns = new ArrayList<SchedulingPattern>();
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(cronFile));
+      try {
+        String line = reader.readLine();
+        while (line != null) {
+          line = line.trim();
+          if ((!line.startsWith(COMMENT))&&(line.contains(RECORD_TASK_TAG))) {
+            // the pattern is the first five fields of the entry
+            String[] fields = line.split("\\s+");
+            if (fields.length > PATTERN_FIELDS) {
+              String pattern = fields[0];
+              for (int i=1;i<PATTERN_FIELDS;i++) {
+                pattern = pattern + " " + fields[i];
+              }
+              if (SchedulingPattern.validate(pattern)) {
+                patterns.add(new SchedulingPattern(pattern));
+              }
+            }
+          }
+          line = reader.readLine();
+        }
+      } finally {
+        reader.close();
+      }
+      recordPatterns = patterns;
+      cronFileModified = cronFile.lastModified();
+    } catch (IOException e) {
+      System.out.println("Failed to read schedule for post processing:" + e);
+    }
+  }
+}
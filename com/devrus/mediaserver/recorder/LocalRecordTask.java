@@ -4,25 +4,23 @@
 
 package com.devrus.mediaserver.recorder;
 
-import java.io.IOException;
 import java.io.InputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
 
+import com.devrus.mediaserver.hdhomerun.HDHomeRunControl;
 import com.devrus.mediaserver.livecommon.Channel;
+import com.devrus.mediaserver.ts.PidFilter;
 
 public class LocalRecordTask  extends GenericRecordTask {
   public static final String DEFAULT_SERVER_NET_MASK = "10.";
-  private static final int MAX_PACKET_SIZE = 2000;
   private static final int RECEIVE_BUFFER_SIZE = 1024*1024 * 10;
-  private static final int TAKE_SERVER_MILLIS_BEFORE_DONE = 5000;
   String serverNetMask =  DEFAULT_SERVER_NET_MASK;
   static String serverAddress =  null;
   static InetAddress serverAddressInet = null;
@@ -47,90 +45,14 @@ public class LocalRecordTask  extends GenericRecordTask {
     (new LocalRecordTask()).doRecord(extraInfo);
   }
   
-  /**
-   * This class implements the InputStream used to read the stream and return it when
-   * requested by the parent class.  It simply read the UDP packets received on the string
-   * passed in and returns the data through the read() method that must be implemented for
-   * InputStreamds
-   *
-   */
-  class RecordInputStream extends InputStream {
-    DatagramSocket socket = null;
-    HDHomeRunServer server = null;
-    byte buffer[] = new byte[MAX_PACKET_SIZE];
-    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-    byte[] lastRead = null;
-    int lastLength = 0;
-    int lastReadIndex = 0;
-    long useSeq = 0;
-
-    /**
-     * constructor
-     * @param socket the UDP socket from which to read the data to be returned
-     * @param the server that is being used to record 
-     */
-    public RecordInputStream(DatagramSocket socket, HDHomeRunServer server){
-      this.socket = socket;
-      this.server = server;
-      useSeq = server.getUseSeq();
-    }
-
-    /**
-     * return the next byte of data for the InputStream
-     * @returns the next byte of data
-     */
-    public int read() throws IOException {
-      if (lastLength == 0){
-        socket.receive(packet);
-        lastRead = packet.getData();
-        lastLength = packet.getLength();
-        lastReadIndex = 0;
-      }
-      int toReturn = lastRead[lastReadIndex];
-      lastReadIndex++;
-      if (lastReadIndex == lastLength) {
-        lastLength = 0;
-      }
-      return toReturn;
-    }
-    
-    /**
-     * return the next package of data, we assume buffer it big enough for a full packet
-     * @returns the next byte of data
-     */
-    public int read(byte[] buffer, int off, int len) throws IOException {
-      if (lastLength == 0){
-        socket.receive(packet);
-        lastRead = packet.getData();
-        lastLength = packet.getLength();
-        lastReadIndex = 0;
-      }
-      System.arraycopy(lastRead, lastReadIndex, buffer,off, lastLength - lastReadIndex );
-      int amountReturned = lastLength - lastReadIndex;
-      lastLength = 0;
-      return amountReturned;
-    }
-    
-    /**
-     * We override the base InputStream close method so that we can
-     * close the UDP socket when the InputStream is closed.
-     */
-    public void close() {
-      socket.close();
-      releaseServer(server, useSeq);
-      try {
-        super.close();
-      } catch (IOException e){};
-    }
-    
-  }
-  
   /**
    * get a server for a recording
    * @param the channel that the server will be used to record
+   * @param startTime the time the program to be recorded starts
+   * @param endTime the time the program to be recorded ends
    * @return the server to be used for the recording
    */
-  protected static synchronized HDHomeRunServer getFreeServer(String channel, long endTime){
+  protected static synchronized HDHomeRunServer getFreeServer(String channel, long startTime, long endTime){
     HDHomeRunServer serverToReturn = null;
     
     // first look for a free server
@@ -142,29 +64,17 @@ public class LocalRecordTask  extends GenericRecordTask {
       }
     }
     
-    // if we got here then all servers were recording, now see if one is recording
-    // the same channel.  In this case we will allow it to be switched over to the new recording
-    // so that if we don't have enough channels our overlap at the end does not prevent the next
-    // recording from starting
-    if (serverToReturn == null) {
+    // ok no free server.  Once our program has started see if one is in the "extra" we add to the 
+    // end of a program to ensure we don't cut of due to time skew.  The recordings using it are ended. 
+    // Before our program starts we don't cut into the end of the program on the other server
+    if ((serverToReturn == null)&&(System.currentTimeMillis() >= startTime)) {
       for (int i=0; i<servers.size(); i++){
         HDHomeRunServer server = servers.get(i);
-        if (server.getCurrentChannel().equals(channel)){
-          // ok re-used this server as it is currently recording the same channel and we can't have two 
-          // different things on the same channel at the same time
-           serverToReturn = server;
-           break;
-        }
-      }
-    }
-    
-    // ok no free server and none are currently recording the same channel.  See if one is in
-    // the "extra" we add to the end of a program to ensure we don't cut of due to time skew
-    if (serverToReturn == null) {
-      for (int i=0; i<servers.size(); i++){
-        HDHomeRunServer server = servers.get(i);
-        if ((System.currentTimeMillis() + TAKE_SERVER_MILLIS_BEFORE_DONE) >= server.getEndTime()){
+        if (startTime >= server.getEndTime()){
            serverToReturn = server;
+           if (server.getStream() != null) {
+             server.getStream().shutdown();
+           }
            break;
   
         }
@@ -191,15 +101,11 @@ public class LocalRecordTask  extends GenericRecordTask {
     if (server.getUseSeq() == useSeq){
       server.setCurrentChannel(null);
       server.setInUse(false);
+      server.setStream(null);
       
       // now stop the streaming by setting the channel to none
-      String homerunBaseCommand = server.getHomerunBaseCommand();
-      String tuneCommand = " set /" + server.getTuner() + "/channel none ";
-      String command = homerunBaseCommand + " " + tuneCommand;
-      System.out.println(command);
       try {
-        Process theProcess = Runtime.getRuntime().exec(command);
-        theProcess.waitFor();
+        HDHomeRunControl.release(server.getHomerunBaseCommand(), server.getTuner());
       } catch (Exception e) {
         System.out.println(e);
       }
@@ -207,77 +113,115 @@ public class LocalRecordTask  extends GenericRecordTask {
   }
 
   /**
-   * returns the InputStream to be used to read the content for the program.  
+   * returns the InputStream to be used to read the content for the program.  If a tuner is
+   * already recording from the same frequency the stream from that tuner is shared, otherwise 
+   * a free tuner is tuned to the frequency
    * @param recordTarget string with the information for what should be recorded
+   * @param startTime the time the program starts, which may be after the InputStream is requested
    * @param endTime the time the program actually ends (which may be before the recording will stop
    *                as we all an "extra" to allow for clock skew 
    * @return the InputStream that can be used to read the content for the program being recorded
    */
-  InputStream getInputStream(String recordTarget, long endTime) throws Exception {
-    DatagramSocket socket = null;
+  InputStream getInputStream(String recordTarget, long startTime, long endTime) throws Exception {
+    TunerStream stream = null;
+    TunerStream.Subscriber subscriber = null;
+    String channel = channels.get(recordTarget).number;
+    int program = PidFilter.ALL_PROGRAMS;
     
-    // get the server address if it has not yet be obtained. We do this lazily so that the mask can be
-    // set after the LocalRecordTask is created
-    if (serverAddress == null){
-      serverAddressInet = getServerAddress();
-      serverAddress = serverAddressInet.getHostAddress();
+    // if a channel support multiple programs the specific program may be indicated with an
+    // addition of ".X" to the channel were X is the program number. Here we separate
+    // the channel and program if necessary.  The tuner delivers the whole multiplex and
+    // we pick out the program ourselves so that the tuner can be shared with recordings 
+    // of the other programs
+    if (channel.contains(".")) {
+      try { 
+        program = Integer.parseInt(channel.substring(channel.indexOf(".") + 1));
+      } catch (NumberFormatException e) {
+        System.out.println("Invalid program for channel:" + recordTarget + ", recording all programs");
+      }
+      channel = channel.substring(0, channel.indexOf("."));
     }
+    String tuneChannel = "auto:" + channel;
     
-    // create the socket that will be used to receive the stream
-    // let the OS chose the local socket so that we get a different one for each stream
-    socket = new DatagramSocket();
-    socket = new DatagramSocket(new InetSocketAddress(serverAddressInet,0));
-    socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+    // unless it is turned off only the streams we need are kept so that we don't write, 
+    // clean and transcode data nobody will use
+    PidFilter filter = null;
+    if ((program != PidFilter.ALL_PROGRAMS)||(pidFilter)) {
+      filter = new PidFilter(program, pidFilter, audioLanguages);
+    }
     
-    // extract the channel from the record target and determine the homerun instance and tunner that should be used
-    HDHomeRunServer server = getFreeServer(recordTarget,endTime);
-    if (!(null == server)){
-      String homerunBaseCommand = server.getHomerunBaseCommand();
-      String tuner = server.getTuner();
-      String tuneCommand = " set /" + tuner + "/channel auto:";
-      String programCommand = " set /" + tuner + "/program ";
-      String streamCommand = " set /" + tuner + "/target udp://";
-      String channel = channels.get(recordTarget).number;
-      String program = null;
+    synchronized(LocalRecordTask.class) {
+      // get the server address if it has not yet be obtained. We do this lazily so that the mask can be
+      // set after the LocalRecordTask is created
+      if (serverAddress == null){
+        serverAddressInet = getServerAddress();
+        serverAddress = serverAddressInet.getHostAddress();
+      }
       
-      // if a channel support multiple programs the specific program may be indicated with an
-      // addition of ".X" to the channel were X is the program number. Here we separate
-      // the channel and program if necessary
-      if (channel.contains(".")) {
-        try { 
-          program = channel.substring(channel.indexOf(".") + 1);
-          channel = channel.substring(0, channel.indexOf("."));
-        } catch (Exception e) {
+      // share the stream if a tuner is already recording from the frequency
+      for (int i=0; i<servers.size(); i++){
+        HDHomeRunServer server = servers.get(i);
+        if ((server.isInUse())&&(server.getStream() != null)&&(tuneChannel.equals(server.getStream().getTuneChannel()))){
+          subscriber = server.getStream().subscribe(filter);
+          if (subscriber != null) {
+            server.setEndTime(Math.max(endTime, server.getEndTime()));
+            return subscriber;
+          }
+          // the last recording on the stream has just finished, make sure the tuner is free
+          server.getStream().shutdown();
         }
       }
       
-      // tune to the right channel
-      String command = homerunBaseCommand + " " + tuneCommand + channel;
-      System.out.println(command);
-      Process theProcess = Runtime.getRuntime().exec(command);
-      theProcess.waitFor();
-      
-      // if there was a program set it
-      if (null != program) {
-        command = homerunBaseCommand + " " + programCommand + program;
-        System.out.println(command);
-        theProcess = Runtime.getRuntime().exec(command);
-        theProcess.waitFor();
+      // determine the homerun instance and tunner that should be used
+      HDHomeRunServer server = getFreeServer(recordTarget,startTime,endTime);
+      if (null == server){
+        System.out.println("No available server");
+        return null;
       }
       
-      Thread.sleep(1000);
-      
-      // direct the stream to the appropriate server address/port
-      command = homerunBaseCommand + streamCommand + serverAddress + ":" + socket.getLocalPort();
-      System.out.println(command);
-      theProcess = Runtime.getRuntime().exec(command);
-      theProcess.waitFor();
-      
-      // ok create the InputStream from which the data from the turner will be returned
-      return new RecordInputStream(socket,server);
-    } else {
-      System.out.println("No available server");
-      return null;
+      // create the channel that will be used to receive the stream
+      // let the OS chose the local port so that we get a different one for each stream
+      DatagramChannel streamChannel = DatagramChannel.open();
+      try {
+        streamChannel.socket().setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+        streamChannel.socket().bind(new InetSocketAddress(serverAddressInet,0));
+        String target = "udp://" + serverAddress + ":" + streamChannel.socket().getLocalPort();
+        stream = new TunerStream(streamChannel, server, tuneChannel, target, tuneTimeout*1000L);
+      } catch (Exception e) {
+        streamChannel.close();
+        releaseServer(server, server.getUseSeq());
+        throw e;
+      }
+      server.setStream(stream);
+      subscriber = stream.subscribe(filter);
+    }
+    
+    // tune to the right channel and direct the stream to the appropriate server address/port. This
+    // is done outside of the lock so that other recordings can start in the meantime
+    try {
+      stream.tune();
+    } catch (Exception e) {
+      stream.shutdown();
+      throw e;
+    }
+    return subscriber;
+  }
+  
+  /**
+   * Makes sure the tuner used by the recording is not taken for another recording before 
+   * the new end of the recording
+   * @param in the InputStream returned by getInputStream()
+   * @param endTime the time the last program in the recording now ends
+   */
+  void extendInput(InputStream in, long endTime) {
+    if (in instanceof TunerStream.Subscriber) {
+      TunerStream stream = ((TunerStream.Subscriber) in).getStream();
+      synchronized(LocalRecordTask.class) {
+        HDHomeRunServer server = stream.getServer();
+        if (server.getStream() == stream) {
+          server.setEndTime(Math.max(endTime, server.getEndTime()));
+        }
+      }
     }
   }
   
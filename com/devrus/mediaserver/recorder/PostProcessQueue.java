@@ -0,0 +1,691 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.recorder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import com.devrus.mediaserver.clean.Cleaner;
+import com.devrus.mediaserver.clean.DetectAndClean;
+
+/**
+ * Queue of the work to be done on recordings once they are complete: detecting the
+ * commercials, cutting them out, compressing and moving the result to the complete
+ * directory.  Recordings just add a job and a configurable number of workers do the work,
+ * highest priority first.  The work is only started when the IdleWindow says it will not
+ * slow down recordings, and a job stops between stages if that changes.  If recordings are
+ * slow writing to disk while comskip or HandBrake is running, the program is suspended
+ * until they have kept up for the backoff time.
+ *
+ * Each job is kept in its own file in the job directory, which is re-written each time the
+ * job finishes a stage.  If the recorder is restarted the jobs are loaded again and carry on
+ * from the stage they had reached.  A stage which fails is retried after a delay, and once
+ * it has failed too many times the job is left in the directory marked as failed.
+ */
+public class PostProcessQueue {
+  // constants
+  public static final String PRIORITY_TAG = "priority:";
+  public static final int DEFAULT_PRIORITY = 5;
+  private static final int DEFAULT_WORKERS = 1;
+  private static final int DEFAULT_RETRIES = 3;
+  private static final int DEFAULT_DELAY = 0; /* in minutes */
+  private static final long RETRY_DELAY = 10*60*1000;
+  private static final long IDLE_CHECK_INTERVAL = 60*1000;
+  private static final long LATENCY_CHECK_INTERVAL = 5*1000;
+  private static final String SIGNAL_STOP = "-STOP";
+  private static final String SIGNAL_CONTINUE = "-CONT";
+  private static final String JOB_DIR_NAME = ".postprocess";
+  private static final String JOB_FILE_TRAILER = ".job";
+  private static final String TEMP_FILE_TRAILER = ".tmp";
+  private static final String COMPRESSED_TRAILER = ".m4v";
+  private static final int COMSKIP_FOUND_COMMERCIALS = 1;
+
+  // the stages of a job, in the order they are done
+  private static final String STAGE_DETECT = "detect";
+  private static final String STAGE_CLEAN = "clean";
+  private static final String STAGE_COMPRESS = "compress";
+  private static final String STAGE_MOVE = "move";
+  private static final String STAGE_DONE = "done";
+  private static final String STAGE_FAILED = "failed";
+
+  // keys in the job files
+  private static final String RECORDING_KEY = "recording";
+  private static final String STAGE_KEY = "stage";
+  private static final String PRIORITY_KEY = "priority";
+  private static final String MOVE_DIR_KEY = "move_dir";
+  private static final String COMPRESS_KEY = "compress";
+  private static final String ATTEMPTS_KEY = "attempts";
+  private static final String CREATED_KEY = "created";
+  private static final String NOT_BEFORE_KEY = "not_before";
+
+  // set when the properties file is read
+  public static String jobDir = null;
+  public static String comskipBase = null;
+  public static String handbrakeExe = null;
+  public static int workers = DEFAULT_WORKERS;
+  public static int retries = DEFAULT_RETRIES;
+  public static int delayMinutes = DEFAULT_DELAY;
+
+  // the jobs which are not yet done, shared by the workers
+  private static ArrayList<Job> jobs = new ArrayList<Job>();
+  private static boolean started = false;
+  private static long lastId = 0;
+  private static String lastBusyReason = null;
+  private static volatile boolean suspendSupported = true;
+
+  /**
+   * Loads the jobs left from before the recorder was restarted and starts the workers
+   */
+  public static void start() {
+    synchronized(jobs) {
+      if (started) {
+        return;
+      }
+      started = true;
+
+      File directory = getJobDirectory();
+      directory.mkdirs();
+      File[] files = directory.listFiles();
+      for (int i=0;(files != null)&&(i<files.length);i++) {
+        if (files[i].getName().endsWith(TEMP_FILE_TRAILER)) {
+          // left from a crash part way through saving a job, the job file itself is still intact
+          files[i].delete();
+        } else if (files[i].getName().endsWith(JOB_FILE_TRAILER)) {
+          try {
+            Job job = new Job(files[i]);
+            if (!job.getStage().equals(STAGE_FAILED)) {
+              jobs.add(job);
+              System.out.println("Resuming post processing at " + job.getStage() + ": " + job.getRecording());
+            }
+          } catch (IOException e) {
+            System.out.println("Failed to load post processing job:" + files[i].getAbsolutePath());
+          }
+        }
+      }
+    }
+
+    for (int i=0;i<workers;i++) {
+      Thread worker = new Thread("PostProcess-" + i) {
+        public void run() {
+          while(true) {
+            try {
+              runJob(take());
+            } catch (InterruptedException e) {
+              break;
+            } catch (Exception e) {
+              System.out.println("Exception in post processing:" + e);
+              e.printStackTrace();
+            }
+          }
+        }
+      };
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+  /**
+   * Adds a job for a recording which is complete
+   *
+   * @param recording the file for the recording
+   * @param moveDir the directory to move the result to, or null to leave it where it is
+   * @param priority the priority for the job, lower numbers are done first
+   */
+  public static void add(File recording, String moveDir, int priority) {
+    try {
+      Job job = new Job(new File(getJobDirectory(), newId() + JOB_FILE_TRAILER), recording, moveDir, priority);
+      System.out.println("Queued post processing: " + recording.getAbsolutePath());
+      synchronized(jobs) {
+        jobs.add(job);
+        jobs.notifyAll();
+      }
+    } catch (IOException e) {
+      System.out.println("Failed to queue post processing for:" + recording.getAbsolutePath() + ":" + e);
+    }
+  }
+
+  /**
+   * Has the workers check again whether they can run jobs, for example when a recording ends
+   */
+  public static void wake() {
+    synchronized(jobs) {
+      jobs.notifyAll();
+    }
+  }
+
+  /**
+   * Returns the priority for a recording, given by the priority tag in the arguments for the
+   * recording from the schedule
+   *
+   * @param extraInfo the arguments for the recording from the schedule
+   * @return the priority, lower numbers are done first
+   */
+  public static int getPriority(String[] extraInfo) {
+    for (int i=4;i<extraInfo.length;i++) {
+      if ((extraInfo[i] != null)&&(extraInfo[i].startsWith(PRIORITY_TAG))) {
+        try {
+          return Integer.parseInt(extraInfo[i].substring(PRIORITY_TAG.length()));
+        } catch (NumberFormatException e) {
+          System.out.println("Invalid priority:" + extraInfo[i]);
+        }
+      }
+    }
+    return DEFAULT_PRIORITY;
+  }
+
+  /**
+   * Returns the directory holding the job files
+   *
+   * @return the directory
+   */
+  private static File getJobDirectory() {
+    if (jobDir != null) {
+      return new File(jobDir);
+    }
+    return new File(GenericRecordTask.recordDir + File.separator + JOB_DIR_NAME);
+  }
+
+  /**
+   * Returns a new id for a job, used for the name of the job file
+   *
+   * @return the id
+   */
+  private static synchronized long newId() {
+    lastId = Math.max(lastId + 1, System.currentTimeMillis());
+    return lastId;
+  }
+
+  /**
+   * Waits for the next job which is ready to run, which is the one with the highest priority
+   * and then the oldest of the ones whose delay has passed, once post processing will not
+   * get in the way of recordings
+   *
+   * @return the job
+   * @throws InterruptedException if interrupted while waiting
+   */
+  private static Job take() throws InterruptedException {
+    synchronized(jobs) {
+      while(true) {
+        long now = System.currentTimeMillis();
+        long nextReady = Long.MAX_VALUE;
+        Job best = null;
+        for (int i=0;i<jobs.size();i++) {
+          Job job = jobs.get(i);
+          if (job.running) {
+            continue;
+          }
+          if (job.getNotBefore() > now) {
+            nextReady = Math.min(nextReady, job.getNotBefore());
+          } else if ((best == null)||(job.getPriority() < best.getPriority())||
+                     ((job.getPriority() == best.getPriority())&&(job.getCreated() < best.getCreated()))) {
+            best = job;
+          }
+        }
+
+        if (best != null) {
+          String busyReason = IdleWindow.getBusyReason();
+          if (busyReason == null) {
+            lastBusyReason = null;
+            best.running = true;
+            return best;
+          }
+          if (!busyReason.equals(lastBusyReason)) {
+            System.out.println("Post processing waiting, " + busyReason);
+            lastBusyReason = busyReason;
+          }
+          nextReady = Math.min(nextReady, now + IDLE_CHECK_INTERVAL);
+        }
+        if (nextReady == Long.MAX_VALUE) {
+          jobs.wait();
+        } else {
+          jobs.wait(nextReady - now);
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs the remaining stages of a job, saving the job after each one so that it can carry
+   * on from the same point after a restart or once the recorder is idle again
+   *
+   * @param job the job to run
+   */
+  private static void runJob(Job job) {
+    try {
+      while (!job.getStage().equals(STAGE_DONE)) {
+        // leave the rest of the job for the next idle window if a recording has come along
+        String busyReason = IdleWindow.getBusyReason();
+        if (busyReason != null) {
+          System.out.println("Pausing post processing of " + job.getRecording() + ", " + busyReason);
+          break;
+        }
+        
+        boolean ok = false;
+        try {
+          ok = runStage(job);
+        } catch (Exception e) {
+          System.out.println("Exception during " + job.getStage() + " of " + job.getRecording() + ":" + e);
+        }
+
+        if (!ok) {
+          int attempts = job.getAttempts() + 1;
+          job.setAttempts(attempts);
+          if (attempts > retries) {
+            System.out.println("Giving up on " + job.getStage() + " of " + job.getRecording());
+            job.setStage(STAGE_FAILED);
+          } else {
+            System.out.println("Will retry " + job.getStage() + " of " + job.getRecording());
+            job.setNotBefore(System.currentTimeMillis() + RETRY_DELAY*attempts);
+          }
+          job.save();
+          break;
+        }
+
+        job.setStage(nextStage(job));
+        job.setAttempts(0);
+        if (job.getStage().equals(STAGE_DONE)) {
+          job.delete();
+          System.out.println("Done: " + job.getRecording());
+        } else {
+          job.save();
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("Failed to save post processing job for:" + job.getRecording() + ":" + e);
+    } finally {
+      synchronized(jobs) {
+        job.running = false;
+        if (job.getStage().equals(STAGE_DONE)||job.getStage().equals(STAGE_FAILED)) {
+          jobs.remove(job);
+        }
+        jobs.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Returns the stage which follows the current stage of a job, skipping the ones which
+   * are not needed for the job
+   *
+   * @param job the job
+   * @return the next stage
+   */
+  private static String nextStage(Job job) {
+    String stage = job.getStage();
+    if (stage.equals(STAGE_DETECT)) {
+      return STAGE_CLEAN;
+    } else if (stage.equals(STAGE_CLEAN)&&(job.getCompress())) {
+      return STAGE_COMPRESS;
+    } else if ((stage.equals(STAGE_CLEAN)||stage.equals(STAGE_COMPRESS))&&(job.getMoveDir() != null)) {
+      return STAGE_MOVE;
+    }
+    return STAGE_DONE;
+  }
+
+  /**
+   * Runs the current stage of a job.  Each stage checks whether its work has already been
+   * done, which can happen if the recorder stopped after the work but before the job was saved
+   *
+   * @param job the job
+   * @return true if the stage completed
+   * @throws Exception if the stage failed
+   */
+  private static boolean runStage(Job job) throws Exception {
+    String recording = job.getRecording();
+    String cleaned = Cleaner.newFileName(recording);
+    String compressed = Cleaner.removeExtension(recording) + COMPRESSED_TRAILER;
+    String stage = job.getStage();
+
+    if (stage.equals(STAGE_DETECT)) {
+      if (!(new File(recording)).exists()) {
+        return (new File(cleaned)).exists();
+      }
+      File edlxFile = new File(Cleaner.edlxFileName(recording));
+      if (edlxFile.exists()&&(edlxFile.lastModified() >= (new File(recording)).lastModified())) {
+        // comskip already ran before the recorder was restarted
+        return true;
+      }
+      System.out.println("Detecting Commercials: " + recording);
+      Process theProcess = Runtime.getRuntime().exec(comskipBase + " \"" + recording + "\"");
+      DetectAndClean.OutputDrainer.drain(theProcess);
+      // comskip exits with 0 when it finds no commercials and 1 when it finds some
+      int exitValue = waitFor(theProcess, recording);
+      if ((exitValue != 0)&&(exitValue != COMSKIP_FOUND_COMMERCIALS)) {
+        System.out.println("Commercial detection failed with exit value " + exitValue + ": " + recording);
+        // don't let anything comskip left behind make the retry think detection is done
+        edlxFile.delete();
+        return false;
+      }
+      return true;
+    } else if (stage.equals(STAGE_CLEAN)) {
+      if ((new File(recording)).exists()) {
+        String[] cleanerArgs = new String[1];
+        cleanerArgs[0] = recording;
+        System.out.println("Cleaning Commercials: " + recording);
+        Cleaner.main(cleanerArgs);
+      }
+      return (new File(cleaned)).exists();
+    } else if (stage.equals(STAGE_COMPRESS)) {
+      if (!(new File(cleaned)).exists()) {
+        return (new File(compressed)).exists();
+      }
+      String command = DetectAndClean.buildCommand(handbrakeExe, cleaned, compressed);
+      System.out.println(command);
+      Process theProcess = Runtime.getRuntime().exec(command);
+      DetectAndClean.OutputDrainer error = DetectAndClean.OutputDrainer.drain(theProcess);
+      if ((waitFor(theProcess, recording) != 0)||((new File(compressed)).length() == 0)) {
+        System.out.println("Compression failed: " + recording + ", last error output: " + error.getLastLine());
+        return false;
+      }
+      // keep the uncompressed version in case there is a problem with the compressed one
+      return (new File(cleaned)).renameTo(new File(cleaned + ".compressed"));
+    } else if (stage.equals(STAGE_MOVE)) {
+      File result = new File(job.getCompress() ? compressed : cleaned);
+      File target = new File(job.getMoveDir() + File.separator + result.getName());
+      if (!result.exists()) {
+        return target.exists();
+      }
+      return result.renameTo(target);
+    }
+    return false;
+  }
+
+  /**
+   * Waits for comskip or HandBrake to finish.  The program may still be running when a
+   * recording starts, so if recordings are slow writing to disk it is suspended to stop it
+   * competing for the disk, and resumed once they have kept up for the backoff time
+   *
+   * @param theProcess the program
+   * @param recording the recording being processed
+   * @return the exit value of the program
+   * @throws InterruptedException if interrupted while waiting
+   */
+  private static int waitFor(Process theProcess, String recording) throws InterruptedException {
+    boolean suspended = false;
+    try {
+      while (!theProcess.waitFor(LATENCY_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+        boolean slow = IdleWindow.isWriteLatencyHigh();
+        if (slow && !suspended) {
+          // once a stop has been tried the program is resumed, even if kill reported an error
+          suspended = signal(theProcess, SIGNAL_STOP);
+          if (suspended) {
+            System.out.println("Suspending post processing of " + recording + ", recordings are slow writing to disk");
+          }
+        } else if (!slow && suspended) {
+          System.out.println("Resuming post processing of " + recording);
+          signal(theProcess, SIGNAL_CONTINUE);
+          suspended = false;
+        }
+      }
+    } finally {
+      // never leave the program stopped
+      if (suspended) {
+        signal(theProcess, SIGNAL_CONTINUE);
+      }
+    }
+    return theProcess.exitValue();
+  }
+
+  /**
+   * Sends a signal to a program and any programs it started, as comskip and HandBrake
+   * may be run through a script.  Only the ones still running are signalled, as kill fails
+   * for all of them if one has already exited.  Some may still exit before kill gets to
+   * them so its exit value is not used
+   *
+   * @param theProcess the program
+   * @param signal the signal option for kill
+   * @return true if kill was run
+   */
+  private static boolean signal(Process theProcess, String signal) {
+    if (!suspendSupported) {
+      return false;
+    }
+    try {
+      ArrayList<String> command = new ArrayList<String>();
+      command.add("kill");
+      command.add(signal);
+      addIfAlive(command, theProcess.toHandle());
+      Iterator<ProcessHandle> children = theProcess.descendants().iterator();
+      while (children.hasNext()) {
+        addIfAlive(command, children.next());
+      }
+      if (command.size() == 2) {
+        // everything has exited
+        return false;
+      }
+      Process kill = Runtime.getRuntime().exec(command.toArray(new String[command.size()]));
+      DetectAndClean.OutputDrainer.drain(kill);
+      kill.waitFor();
+      return true;
+    } catch (InterruptedException e) {
+      // kill is already running
+      Thread.currentThread().interrupt();
+      return true;
+    } catch (Exception e) {
+      // no kill command on this platform, so post processing just runs on
+      System.out.println("Unable to suspend post processing:" + e);
+      suspendSupported = false;
+    }
+    return false;
+  }
+
+  /**
+   * Adds the pid of a program to a kill command if it is still running
+   *
+   * @param command the kill command
+   * @param handle the program
+   */
+  private static void addIfAlive(ArrayList<String> command, ProcessHandle handle) {
+    if (handle.isAlive()) {
+      command.add(Long.toString(handle.pid()));
+    }
+  }
+
+  /**
+   * One recording to be processed, backed by its job file
+   */
+  static class Job {
+    private File file;
+    private Properties state = new Properties();
+
+    // only changed while holding the lock for the jobs
+    boolean running = false;
+
+    /**
+     * Constructor for a new job, which is saved straight away
+     *
+     * @param file the job file
+     * @param recording the file for the recording
+     * @param moveDir the directory to move the result to, or null
+     * @param priority the priority for the job
+     * @throws IOException if the job cannot be saved
+     */
+    Job(File file, File recording, String moveDir, int priority) throws IOException {
+      this.file = file;
+      long now = System.currentTimeMillis();
+      state.setProperty(RECORDING_KEY, recording.getAbsolutePath());
+      state.setProperty(STAGE_KEY, STAGE_DETECT);
+      state.setProperty(PRIORITY_KEY, Integer.toString(priority));
+      state.setProperty(COMPRESS_KEY, Boolean.toString(handbrakeExe != null));
+      state.setProperty(CREATED_KEY, Long.toString(now));
+      state.setProperty(NOT_BEFORE_KEY, Long.toString(now + delayMinutes*60*1000L));
+      state.setProperty(ATTEMPTS_KEY, "0");
+      if (moveDir != null) {
+        state.setProperty(MOVE_DIR_KEY, moveDir);
+      }
+      file.getParentFile().mkdirs();
+      save();
+    }
+
+    /**
+     * Constructor for a job loaded from its job file
+     *
+     * @param file the job file
+     * @throws IOException if the job file cannot be read
+     */
+    Job(File file) throws IOException {
+      this.file = file;
+      FileInputStream input = new FileInputStream(file);
+      try {
+        state.load(input);
+      } finally {
+        input.close();
+      }
+      if ((state.getProperty(RECORDING_KEY) == null)||(state.getProperty(STAGE_KEY) == null)) {
+        throw new IOException("Incomplete job file");
+      }
+    }
+
+    /**
+     * Writes the job file.  The new contents are written to a temporary file which then
+     * replaces the job file so that a crash leaves either the old or the new job file
+     *
+     * @throws IOException if the job file cannot be written
+     */
+    void save() throws IOException {
+      File temp = new File(file.getAbsolutePath() + TEMP_FILE_TRAILER);
+      FileOutputStream output = new FileOutputStream(temp);
+      try {
+        state.store(output, null);
+        output.getFD().sync();
+      } finally {
+        output.close();
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Removes the job file once the job is done
+     */
+    void delete() {
+      file.delete();
+    }
+
+    /**
+     * return the file for the recording
+     * @return the path of the recording
+     */
+    String getRecording() {
+      return state.getProperty(RECORDING_KEY);
+    }
+
+    /**
+     * return the stage the job has reached
+     * @return the stage
+     */
+    String getStage() {
+      return state.getProperty(STAGE_KEY);
+    }
+
+    /**
+     * set the stage the job has reached
+     * @param stage the stage
+     */
+    void setStage(String stage) {
+      state.setProperty(STAGE_KEY, stage);
+    }
+
+    /**
+     * return the directory to move the result to
+     * @return the directory or null if the result is not moved
+     */
+    String getMoveDir() {
+      return state.getProperty(MOVE_DIR_KEY);
+    }
+
+    /**
+     * return if the recording should be compressed
+     * @return true if the recording should be compressed
+     */
+    boolean getCompress() {
+      return Boolean.parseBoolean(state.getProperty(COMPRESS_KEY));
+    }
+
+    /**
+     * return the priority of the job
+     * @return the priority, lower numbers are done first
+     */
+    int getPriority() {
+      return getInt(PRIORITY_KEY, DEFAULT_PRIORITY);
+    }
+
+    /**
+     * return the number of times the current stage has failed
+     * @return the number of failures
+     */
+    int getAttempts() {
+      return getInt(ATTEMPTS_KEY, 0);
+    }
+
+    /**
+     * set the number of times the current stage has failed
+     * @param attempts the number of failures
+     */
+    void setAttempts(int attempts) {
+      state.setProperty(ATTEMPTS_KEY, Integer.toString(attempts));
+    }
+
+    /**
+     * return the time the job was added
+     * @return the time
+     */
+    long getCreated() {
+      return getLong(CREATED_KEY);
+    }
+
+    /**
+     * return the time before which the job should not run
+     * @return the time
+     */
+    long getNotBefore() {
+      return getLong(NOT_BEFORE_KEY);
+    }
+
+    /**
+     * set the time before which the job should not run
+     * @param time the time
+     */
+    void setNotBefore(long time) {
+      state.setProperty(NOT_BEFORE_KEY, Long.toString(time));
+    }
+
+    /**
+     * Returns a number from the job file
+     *
+     * @param key the key for the number
+     * @param defaultValue the value to use if the number is missing or invalid
+     * @return the number
+     */
+    private int getInt(String key, int defaultValue) {
+      try {
+        return Integer.parseInt(state.getProperty(key));
+      } catch (NumberFormatException e) {
+        return defaultValue;
+      }
+    }
+
+    /**
+     * Returns a time from the job file
+     *
+     * @param key the key for the time
+     * @return the time, 0 if it is missing or invalid
+     */
+    private long getLong(String key) {
+      try {
+        return Long.parseLong(state.getProperty(key));
+      } catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,150 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.recorder;
+
+import java.io.IOException;
+
+import com.devrus.mediaserver.ts.TSAnalyzer;
+
+/**
+ * Buffer between the thread receiving the stream for a recording and the thread writing it
+ * to disk, so that the receive thread can keep reading from the tuner while the disk is busy.
+ * There is exactly one producer and one consumer.  This class keeps the statistics used to
+ * size the buffer, the subclasses decide how the data is held
+ */
+public abstract class RecordBuffer {
+  // constants
+  private static final long STALL_THRESHOLD_NANOS = 100*1000*1000;
+
+  // checks the stream as it is written, if set
+  protected TSAnalyzer analyzer = null;
+
+  // statistics, each is only updated by one side
+  private volatile long highWater = 0;
+  private volatile long producerBlockedNanos = 0;
+  private volatile long writeStallNanos = 0;
+  private volatile long longestWriteNanos = 0;
+
+  /**
+   * Called by the producer once there will be no more data
+   */
+  public abstract void close();
+
+  /**
+   * Writes the next block of data in the buffer to the output, waiting until there is
+   * enough data to make the write worthwhile.  Only to be called by the consumer
+   *
+   * @param out where the data for the recording is written
+   * @return false once the producer has closed the buffer and all of the data has been written
+   * @throws IOException if the write fails
+   */
+  public abstract boolean drain(RecordOutput out) throws IOException;
+
+  /**
+   * Called by the consumer if it stops before all of the data has been written so that
+   * the producer does not wait forever for space
+   */
+  public abstract void abort();
+
+  /**
+   * Returns the size of the buffer
+   *
+   * @return the size of the buffer in bytes
+   */
+  public abstract long getCapacity();
+
+  /**
+   * Sets the analyzer which checks the quality of the stream as it is written, only to be
+   * called before the consumer starts
+   *
+   * @param analyzer the analyzer
+   */
+  public void setAnalyzer(TSAnalyzer analyzer) {
+    this.analyzer = analyzer;
+  }
+
+  /**
+   * Called by the producer with the amount of data waiting to be written each time it adds data
+   *
+   * @param used the number of bytes waiting to be written
+   */
+  protected void recordUsed(long used) {
+    if (used > highWater) {
+      highWater = used;
+    }
+  }
+
+  /**
+   * Called by the producer after it had to wait because the buffer was full
+   *
+   * @param nanos the time waited in nanoseconds
+   */
+  protected void recordBlocked(long nanos) {
+    producerBlockedNanos = producerBlockedNanos + nanos;
+  }
+
+  /**
+   * Called by the consumer after each write
+   *
+   * @param nanos the time the write took in nanoseconds
+   */
+  protected void recordWrite(long nanos) {
+    if (nanos > longestWriteNanos) {
+      longestWriteNanos = nanos;
+    }
+    if (nanos > STALL_THRESHOLD_NANOS) {
+      writeStallNanos = writeStallNanos + nanos;
+      IdleWindow.slowWrite();
+    }
+  }
+
+  /**
+   * Returns the most data that has been held in the buffer waiting to be written
+   *
+   * @return the high water mark in bytes
+   */
+  public long getHighWater() {
+    return highWater;
+  }
+
+  /**
+   * Returns the total time the producer had to wait because the buffer was full
+   *
+   * @return the time in milliseconds
+   */
+  public long getProducerBlockedTime() {
+    return producerBlockedNanos/1000000;
+  }
+
+  /**
+   * Returns the total time spent in writes that took longer than the stall threshold
+   *
+   * @return the time in milliseconds
+   */
+  public long getWriteStallTime() {
+    return writeStallNanos/1000000;
+  }
+
+  /**
+   * Returns the time taken by the longest write
+   *
+   * @return the time in milliseconds
+   */
+  public long getLongestWriteTime() {
+    return longestWriteNanos/1000000;
+  }
+
+  /**
+   * Returns a summary of the statistics for the buffer
+   *
+   * @return the summary
+   */
+  public String getStatistics() {
+    return "high water:" + getHighWater() + " of " + getCapacity() +
+           " bytes, longest write:" + getLongestWriteTime() +
+           "ms, write stall time:" + getWriteStallTime() +
+           "ms, receive blocked time:" + getProducerBlockedTime() + "ms";
+  }
+}
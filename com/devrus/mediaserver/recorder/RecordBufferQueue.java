@@ -0,0 +1,191 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.recorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RecordBuffer for streams that implement RecordSource.  The thread receiving the stream puts
+ * the data straight into direct ByteBuffers which are then passed whole to the consumer and
+ * handed to the writer for the recording, so the data is copied once and nothing is allocated
+ * for each packet.  The receiving thread may be feeding other recordings as well so it never
+ * waits for the writer, data which arrives while all of the ByteBuffers are waiting to be
+ * written is left for the producer to drop.  Each ByteBuffer is passed on with the time its
+ * first data was received.  The ByteBuffers are pooled and re-used by later recordings once
+ * both sides are finished with them
+ */
+public class RecordBufferQueue extends RecordBuffer {
+  // constants
+  public static final int BUFFER_SIZE = 256*1024;
+  private static final int MIN_BUFFERS = 2;
+  private static final long WAIT_MS = 10;
+  
+  // buffers not in use by any recording
+  private static ConcurrentLinkedQueue<ByteBuffer> spareBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+  
+  private Block[] blocks;
+  private ArrayBlockingQueue<Block> freeBlocks;
+  private ArrayBlockingQueue<Block> fullBlocks;
+  private volatile boolean closed = false;
+  private volatile boolean aborted = false;
+  private AtomicInteger sidesDone = new AtomicInteger(0);
+
+  // the block being filled, only used by the producer
+  private Block filling = null;
+  
+  /**
+   * Constructor
+   * 
+   * @param capacity size of the buffer in bytes, rounded down to a whole number of ByteBuffers
+   */
+  public RecordBufferQueue(int capacity) {
+    int numberBuffers = Math.max(MIN_BUFFERS, capacity/BUFFER_SIZE);
+    blocks = new Block[numberBuffers];
+    freeBlocks = new ArrayBlockingQueue<Block>(numberBuffers);
+    fullBlocks = new ArrayBlockingQueue<Block>(numberBuffers);
+    for (int i=0;i<numberBuffers;i++) {
+      ByteBuffer buffer = spareBuffers.poll();
+      if (buffer == null) {
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+      }
+      blocks[i] = new Block(buffer);
+      freeBlocks.add(blocks[i]);
+    }
+  }
+  
+  /**
+   * Returns the ByteBuffer to put the next data into, taking a free one once the last one
+   * has been queued.  The data is added at the position of the ByteBuffer.  Only to be
+   * called by the producer, as soon as the data has been received
+   * 
+   * @return the ByteBuffer or null if all of them are waiting to be written, or the consumer has stopped
+   */
+  public ByteBuffer getFilling() {
+    if ((filling == null)&&(!aborted)) {
+      filling = freeBlocks.poll();
+      if (filling == null) {
+        return null;
+      }
+      filling.buffer.clear();
+      filling.receiveTime = System.currentTimeMillis();
+    }
+    return filling.buffer;
+  }
+  
+  /**
+   * Queues the ByteBuffer being filled for the consumer once there is not enough room left
+   * in it for the next block of data.  Only to be called by the producer
+   * 
+   * @param minimum the room needed for the next block of data
+   */
+  public void filled(int minimum) {
+    if ((filling != null)&&(filling.buffer.remaining() < minimum)) {
+      queueFilling();
+    }
+  }
+  
+  /**
+   * Passes the ByteBuffer being filled to the consumer
+   */
+  private void queueFilling() {
+    filling.buffer.flip();
+    if (filling.buffer.hasRemaining()) {
+      fullBlocks.add(filling);
+      recordUsed(((long) fullBlocks.size())*BUFFER_SIZE);
+    } else {
+      freeBlocks.add(filling);
+    }
+    filling = null;
+  }
+  
+  /**
+   * Queues whatever has been put in the ByteBuffer being filled, then marks the end of the data
+   * 
+   * {@inheritDoc}
+   */
+  public void close() {
+    if (filling != null) {
+      queueFilling();
+    }
+    closed = true;
+    sideDone();
+  }
+  
+  /**
+   * {@inheritDoc}
+   */
+  public void abort() {
+    aborted = true;
+    sideDone();
+  }
+  
+  /**
+   * {@inheritDoc}
+   */
+  public boolean drain(RecordOutput out) throws IOException {
+    Block block = null;
+    try {
+      while ((block = fullBlocks.poll(WAIT_MS, TimeUnit.MILLISECONDS)) == null) {
+        // the producer adds its last buffer before it closes
+        if (closed && fullBlocks.isEmpty()) {
+          return false;
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while waiting for data");
+    }
+    
+    if (analyzer != null) {
+      analyzer.analyze(block.buffer);
+    }
+    long start = System.nanoTime();
+    out.write(block.buffer, block.receiveTime);
+    recordWrite(System.nanoTime() - start);
+    freeBlocks.add(block);
+    return true;
+  }
+  
+  /**
+   * Called once by each side when it is done with the buffers, once both are done the 
+   * buffers can be used by other recordings
+   */
+  private void sideDone() {
+    if (sidesDone.incrementAndGet() == 2) {
+      for (int i=0;i<blocks.length;i++) {
+        spareBuffers.add(blocks[i].buffer);
+      }
+    }
+  }
+  
+  /**
+   * {@inheritDoc}
+   */
+  public long getCapacity() {
+    return ((long) blocks.length)*BUFFER_SIZE;
+  }
+
+  /**
+   * One of the ByteBuffers and the time its first data was received.  The time is set by
+   * the producer before the block is queued for the consumer
+   */
+  private static class Block {
+    ByteBuffer buffer;
+    long receiveTime = 0;
+
+    /**
+     * Constructor
+     *
+     * @param buffer the ByteBuffer for the block
+     */
+    Block(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+}
@@ -0,0 +1,37 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.recorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where a RecordBuffer writes the data for a recording.  The data may have waited in the
+ * buffer for some time, so each block is passed on with the time it was received so that
+ * the recording can be cut by when the data arrived rather than when it was written
+ */
+public interface RecordOutput {
+
+  /**
+   * Adds data to the recording
+   *
+   * @param data array containing the data
+   * @param offset offset of the first byte to write
+   * @param length number of bytes to write
+   * @param receiveTime the time the first byte was received
+   * @throws IOException if the data cannot be written
+   */
+  public void write(byte[] data, int offset, int length, long receiveTime) throws IOException;
+
+  /**
+   * Adds the data between the position and limit of the buffer to the recording, the position
+   * of the buffer is moved to the limit
+   *
+   * @param data the data to write
+   * @param receiveTime the time the first byte was received
+   * @throws IOException if the data cannot be written
+   */
+  public void write(ByteBuffer data, long receiveTime) throws IOException;
+}
@@ -0,0 +1,204 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.recorder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Byte ring used as the RecordBuffer for streams which can only be read through an InputStream.
+ *
+ * The producer reads from the tuner straight into the buffer and the consumer writes from the 
+ * buffer to the file. Positions are absolute byte counts which are only ever updated by one side, 
+ * so no locks are needed. A side that has to wait parks for a short time and the other side 
+ * unparks it when there is something to do.
+ *
+ * The producer also marks where the data received in each interval starts, with the time it
+ * was received.  The consumer never writes past the next mark so each write is passed on with
+ * the time its first byte was received.  If the consumer falls so far behind that there is
+ * no room for another mark, the data goes with the last mark until there is.
+ */
+public class RecordRingBuffer extends RecordBuffer {
+  // constants
+  private static final long WAIT_NANOS = 10*1000*1000;
+  private static final int MIN_WRITE_SIZE = 128000;
+  private static final int MAX_MARKS = 1024;
+  private static final long MARK_INTERVAL_MS = 100;
+
+  private byte[] buffer;
+  private int capacity;
+
+  // head is only updated by the producer and tail only by the consumer
+  private volatile long head = 0;
+  private volatile long tail = 0;
+  private volatile boolean closed = false;
+  private volatile boolean aborted = false;
+  private volatile Thread waitingProducer = null;
+  private volatile Thread waitingConsumer = null;
+
+  // where the data received in each interval starts and when it was received.  A mark is
+  // written by the producer before marksAdded is moved on, and marksUsed, the number of the
+  // mark for the data at the tail, is only moved on by the consumer
+  private long[] markPositions = new long[MAX_MARKS];
+  private long[] markTimes = new long[MAX_MARKS];
+  private volatile long marksAdded = 0;
+  private volatile long marksUsed = 0;
+  private long lastMarkTime = 0;
+
+  /**
+   * Constructor
+   *
+   * @param capacity size of the buffer in bytes
+   */
+  public RecordRingBuffer(int capacity) {
+    this.capacity = capacity;
+    buffer = new byte[capacity];
+  }
+
+  /**
+   * Reads from the input into the buffer until the end of the stream.  Only to be called by the producer
+   *
+   * @param in the stream for the recording
+   * @throws IOException if the read fails or the consumer has stopped
+   */
+  public void receive(InputStream in) throws IOException {
+    while (fill(in) >= 0);
+  }
+
+  /**
+   * Reads the next block of data from the input into the buffer, waiting for space if the
+   * buffer is full.  Only to be called by the producer
+   *
+   * @param in the stream to read from
+   * @return the number of bytes read or -1 at the end of the stream
+   * @throws IOException if the read fails or the consumer has stopped
+   */
+  public int fill(InputStream in) throws IOException {
+    long free = capacity - (head - tail);
+    if (free == 0) {
+      // the writer has fallen behind by a whole buffer, this is the time during which data
+      // from the tuner may be lost
+      long start = System.nanoTime();
+      waitingProducer = Thread.currentThread();
+      try {
+        while ((free = capacity - (head - tail)) == 0) {
+          if (aborted) {
+            throw new IOException("Recording writer stopped");
+          }
+          LockSupport.parkNanos(this, WAIT_NANOS);
+        }
+      } finally {
+        waitingProducer = null;
+        recordBlocked(System.nanoTime() - start);
+      }
+    }
+
+    int index = (int) (head % capacity);
+    int amount = (int) Math.min(free, capacity - index);
+    int numRead = in.read(buffer, index, amount);
+    if (numRead > 0) {
+      long now = System.currentTimeMillis();
+      if (((marksAdded == 0)||((now - lastMarkTime) >= MARK_INTERVAL_MS))&&((marksAdded - marksUsed) < MAX_MARKS)) {
+        int mark = (int) (marksAdded % MAX_MARKS);
+        markPositions[mark] = head;
+        markTimes[mark] = now;
+        marksAdded = marksAdded + 1;
+        lastMarkTime = now;
+      }
+
+      // publish the data only once it has been read in
+      long newHead = head + numRead;
+      head = newHead;
+
+      long used = newHead - tail;
+      recordUsed(used);
+      if (used >= MIN_WRITE_SIZE) {
+        wake(waitingConsumer);
+      }
+    }
+    return numRead;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void close() {
+    closed = true;
+    wake(waitingConsumer);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void abort() {
+    aborted = true;
+    wake(waitingProducer);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public boolean drain(RecordOutput out) throws IOException {
+    long available = head - tail;
+    if ((available < MIN_WRITE_SIZE)&&(!closed)) {
+      waitingConsumer = Thread.currentThread();
+      try {
+        while (((available = head - tail) < MIN_WRITE_SIZE)&&(!closed)) {
+          LockSupport.parkNanos(this, WAIT_NANOS);
+        }
+      } finally {
+        waitingConsumer = null;
+      }
+      // closed may have been set after we read head so read it again
+      available = head - tail;
+    }
+
+    if (available == 0) {
+      return !closed;
+    }
+
+    // find the mark for the data at the tail and stop at the next one
+    long added = marksAdded;
+    while (((marksUsed + 1) < added)&&(markPositions[(int) ((marksUsed + 1) % MAX_MARKS)] <= tail)) {
+      marksUsed = marksUsed + 1;
+    }
+    long receiveTime = markTimes[(int) (marksUsed % MAX_MARKS)];
+    if ((marksUsed + 1) < added) {
+      available = Math.min(available, markPositions[(int) ((marksUsed + 1) % MAX_MARKS)] - tail);
+    }
+
+    int index = (int) (tail % capacity);
+    int amount = (int) Math.min(available, capacity - index);
+    if (analyzer != null) {
+      analyzer.analyze(buffer, index, amount);
+    }
+    long start = System.nanoTime();
+    out.write(buffer, index, amount, receiveTime);
+    recordWrite(System.nanoTime() - start);
+
+    tail = tail + amount;
+    wake(waitingProducer);
+    return true;
+  }
+
+  /**
+   * Wakes up a thread waiting on the buffer
+   *
+   * @param waiting the thread to wake up or null if none is waiting
+   */
+  private void wake(Thread waiting) {
+    if (waiting != null) {
+      LockSupport.unpark(waiting);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getCapacity() {
+    return capacity;
+  }
+}
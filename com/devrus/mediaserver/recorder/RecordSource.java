@@ -0,0 +1,22 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.recorder;
+
+/**
+ * Implemented by the InputStreams returned by GenericRecordTask.getInputStream() whose data
+ * is put straight into a RecordBuffer by the thread receiving it.  When the stream implements
+ * this interface the recording is written from that buffer instead of being read through the
+ * InputStream, so the data is only copied once on its way from the tuner to the file
+ */
+public interface RecordSource {
+  
+  /**
+   * Returns the buffer the data for the recording is put into.  Only one recording may
+   * write from it
+   * 
+   * @return the buffer
+   */
+  public RecordBuffer getRecordBuffer();
+}
@@ -13,7 +13,6 @@ import java.net.URLConnection;
 import java.util.*;
 import java.text.*;
 
-import com.devrus.mediaserver.clean.Cleaner;
 
 public class RecordTask {
   private static final int VIDEO_READ_BUFFER_SIZE = 1024*1024;
@@ -34,82 +33,73 @@ public class RecordTask {
       String episodeName = extraInfo[1];
       String recordTarget = extraInfo[2];
       int duration = Integer.parseInt(extraInfo[3]);
-      if (extraInfo.length >4){
-        if ((extraInfo[4] != null)&&(extraInfo[4].compareTo(MOVE_TAG)==0)){
+      for (int i=4;i<extraInfo.length;i++){
+        if ((extraInfo[i] != null)&&(extraInfo[i].compareTo(MOVE_TAG)==0)){
           move = true;
         }
       }
-      SimpleDateFormat dateFormat = new SimpleDateFormat("dd_MMM_yyyy_HH_mm");
-      long endTime = System.currentTimeMillis() + (duration * 60 * 1000);
-
-      // make sure we start from the beginning
-      try {
-        String cleanRecordTarget = recordTarget + "restart";  
-        URL connection = new URL(cleanRecordTarget);
-        URLConnection urlConnection = connection.openConnection();
-        urlConnection.getInputStream().close();
-        System.out.println("closed clean connection");
-      } catch (Exception e){
-        e.printStackTrace();
-      };
       
-      URL connection = new URL(recordTarget);
-      URLConnection urlConnection = connection.openConnection();
-      InputStream in = urlConnection.getInputStream();
+      // the schedule starts us ahead of the program, there is nothing to tune in advance 
+      // so just wait for the start
+      long startTime = GenericRecordTask.getStartTime(extraInfo);
+      long endTime = startTime + (duration * 60 * 1000);
+      if (startTime > System.currentTimeMillis()) {
+        Thread.sleep(startTime - System.currentTimeMillis());
+      }
+
       File directory = new File(recordDir + File.separator + showName);
       try {directory.mkdirs();} catch (Exception e){};
       File outputFile = new File(directory.getAbsolutePath() + File.separator + episodeName /*+ "_" + dateFormat.format(new Date()) */+ FILE_TRAILER);
-      System.out.println("Recording: " + outputFile.getAbsolutePath());
-      FileOutputStream out = new FileOutputStream(outputFile);
-      while (true){
+      
+      // let the post processing know to keep out of the way while we record
+      IdleWindow.recordingStarted();
+      try {
+        // make sure we start from the beginning
         try {
-          int numRead = in.read(buffer);
-          if (numRead >0){
-            out.write(buffer, 0, numRead);
-            out.flush();
-          }
+          String cleanRecordTarget = recordTarget + "restart";  
+          URL connection = new URL(cleanRecordTarget);
+          URLConnection urlConnection = connection.openConnection();
+          urlConnection.getInputStream().close();
+          System.out.println("closed clean connection");
         } catch (Exception e){
-          System.out.println("Exception received in input stream receive");
           e.printStackTrace();
-          break;
+        };
+      
+        URL connection = new URL(recordTarget);
+        URLConnection urlConnection = connection.openConnection();
+        InputStream in = urlConnection.getInputStream();
+        System.out.println("Recording: " + outputFile.getAbsolutePath());
+        FileOutputStream out = new FileOutputStream(outputFile);
+        while (true){
+          try {
+            int numRead = in.read(buffer);
+            if (numRead >0){
+              out.write(buffer, 0, numRead);
+              out.flush();
+            }
+          } catch (Exception e){
+            System.out.println("Exception received in input stream receive");
+            e.printStackTrace();
+            break;
+          }
+          if (System.currentTimeMillis() > endTime){
+            break;
+          }
         }
-        if (System.currentTimeMillis() > endTime){
-          break;
+        try {
+          out.close();
+          in.close();
+        } catch (Exception e ){
+          System.out.println("Exception closing input/output file");
         }
-      }
-      try {
-        out.close();
-        in.close();
-      } catch (Exception e ){
-        System.out.println("Exception closing input/output file");
+      } finally {
+        IdleWindow.recordingEnded();
       }
       
+      // the rest of the work is done by the post processing workers once the recorder is less busy
       if (runComskip) {
-        // temporary delay, too much was going on for the atom to handle, seeing if delaying until
-        // after recordings complete helps avoid affecting the recordgins.
-        System.out.println("Recording complete, delaying for 4 hours to start comskip: " + outputFile.getAbsolutePath());
-        try {
-          Thread.sleep(1000*60*60*4);
-        } catch (InterruptedException e) {};
-        
-        // now at this point we want to start comskip, we need to wait for it to finish
-        System.out.println("Detecting Commercials: " + outputFile.getAbsolutePath());
-        Process theProcess = Runtime.getRuntime().exec(comskipBase + " \"" + outputFile.getAbsolutePath() + "\"");
-        theProcess.getInputStream().close();
-        theProcess.getErrorStream().close();
-        theProcess.getOutputStream().close();
-        theProcess.waitFor();
-        
-        String[] cleanerArgs = new String[1];
-        cleanerArgs[0] = outputFile.getAbsolutePath();
-        System.out.println("Cleaning Commercials: " + outputFile.getAbsolutePath());
-        Cleaner.main(cleanerArgs);
-        if (move){
-          File currentName = new File(Cleaner.newFileName(outputFile.getAbsolutePath()));
-          currentName.renameTo(new File(completeDir + File.separator + currentName.getName()));
-        }
+        PostProcessQueue.add(outputFile, move ? completeDir : null, PostProcessQueue.getPriority(extraInfo));
       }
-      System.out.println("Done: " + outputFile.getAbsolutePath());
     } catch (Exception e){
       System.out.println("Exception during recording:" + e);
       e.printStackTrace();
@@ -0,0 +1,177 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the file for a recording so that it ends up in as few pieces on the disk as possible,
+ * even when several recordings are running at once.  Space for the recording is reserved up
+ * front in large extents based on how long the recording is expected to be, and the data is
+ * written in large chunks which always start on a chunk boundary.  When the recording is
+ * closed any space reserved past the data actually written is released.
+ *
+ * The space is reserved with fallocate so that the length of the file stays at the amount of
+ * data written.  That way a recording in progress, or one left behind by a crash, never
+ * appears to have a tail of zeros.  Where fallocate is not available space is not reserved.
+ */
+public class RecordWriter {
+  // constants
+  public static final int CHUNK_SIZE = 4*1024*1024;
+  private static final long EXTENT_SIZE = 64*1024*1024;
+  private static final String FALLOCATE = "fallocate";
+  private static final String KEEP_SIZE_OPTION = "--keep-size";
+  private static final String LENGTH_OPTION = "--length";
+
+  // cleared the first time fallocate cannot be run so that we don't keep trying
+  private static volatile boolean fallocateAvailable = true;
+
+  private File theFile;
+  private RandomAccessFile file;
+  private FileChannel channel;
+  private ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+  private long written = 0;
+  private long reserved = 0;
+  private boolean reserve;
+  private boolean reservedAny = false;
+
+  /**
+   * Constructor
+   *
+   * @param theFile the file for the recording, any existing content is replaced
+   * @param expectedSize the size the recording is expected to be, 0 if space should not be
+   *                     reserved up front
+   * @throws IOException if the file cannot be created
+   */
+  public RecordWriter(File theFile, long expectedSize) throws IOException {
+    this.theFile = theFile;
+    file = new RandomAccessFile(theFile, "rw");
+    file.setLength(0);
+    channel = file.getChannel();
+    reserve = (expectedSize > 0)&&fallocateAvailable;
+    if (reserve) {
+      reserveSpace(expectedSize);
+    }
+  }
+
+  /**
+   * Adds data to the recording
+   *
+   * @param data array containing the data
+   * @param offset offset of the first byte to write
+   * @param length number of bytes to write
+   * @throws IOException if the data cannot be written
+   */
+  public void write(byte[] data, int offset, int length) throws IOException {
+    write(ByteBuffer.wrap(data, offset, length));
+  }
+
+  /**
+   * Adds the data between the position and limit of the buffer to the recording, the position
+   * of the buffer is moved to the limit
+   *
+   * @param data the data to write
+   * @throws IOException if the data cannot be written
+   */
+  public void write(ByteBuffer data) throws IOException {
+    while (data.hasRemaining()) {
+      if (data.remaining() <= chunk.remaining()) {
+        chunk.put(data);
+      } else {
+        ByteBuffer part = data.duplicate();
+        part.limit(part.position() + chunk.remaining());
+        chunk.put(part);
+        data.position(part.position());
+      }
+
+      if (!chunk.hasRemaining()) {
+        writeChunk();
+      }
+    }
+  }
+
+  /**
+   * Writes out the data collected in the chunk, reserving more space first if the recording has
+   * run past what was reserved
+   *
+   * @throws IOException if the data cannot be written
+   */
+  private void writeChunk() throws IOException {
+    chunk.flip();
+    if (reserve && ((written + chunk.remaining()) > reserved)) {
+      reserveSpace(written + chunk.remaining());
+    }
+    while (chunk.hasRemaining()) {
+      written = written + channel.write(chunk, written);
+    }
+    chunk.clear();
+  }
+
+  /**
+   * Reserves space for the file without changing its length, rounded up to a whole number of
+   * extents.  If the space cannot be reserved the recording carries on without reserving any more
+   *
+   * @param size the minimum size to reserve
+   */
+  private void reserveSpace(long size) {
+    long newReserved = ((size + EXTENT_SIZE - 1)/EXTENT_SIZE)*EXTENT_SIZE;
+    try {
+      String[] command = new String[] {FALLOCATE, KEEP_SIZE_OPTION, LENGTH_OPTION, Long.toString(newReserved), theFile.getAbsolutePath()};
+      Process theProcess = Runtime.getRuntime().exec(command);
+      theProcess.getInputStream().close();
+      theProcess.getErrorStream().close();
+      theProcess.getOutputStream().close();
+      if (theProcess.waitFor() != 0) {
+        // likely a file system which does not support it
+        System.out.println("Unable to reserve space for:" + theFile.getAbsolutePath());
+        reserve = false;
+        return;
+      }
+      reserved = newReserved;
+      reservedAny = true;
+    } catch (IOException e) {
+      System.out.println("Space for recordings will not be reserved, " + FALLOCATE + " is not available:" + e);
+      fallocateAvailable = false;
+      reserve = false;
+    } catch (InterruptedException e) {
+      reserve = false;
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns the amount of data written to the recording so far
+   *
+   * @return the number of bytes written
+   */
+  public long getWritten() {
+    return written + chunk.position();
+  }
+
+  /**
+   * Writes out any remaining data, cuts the file back to the size of the data written and closes it
+   *
+   * @throws IOException if there is a problem writing or closing the file
+   */
+  public void close() throws IOException {
+    try {
+      if (chunk.position() > 0) {
+        writeChunk();
+      }
+      if (reservedAny) {
+        // a truncate to the current length may leave the space reserved past the end of the
+        // file, so grow the file by a byte and cut it back to make sure that space is released
+        file.setLength(written + 1);
+      }
+      file.setLength(written);
+    } finally {
+      file.close();
+    }
+  }
+}
@@ -0,0 +1,183 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.recorder;
+
+import java.io.InputStream;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks after the start and end of a recording.  The input for the recording is opened
+ * shortly before the program starts, so that the tuner has settled by the time the program
+ * starts, and is closed exactly when the recording ends so that the tuner is released for
+ * the next recording straight away.
+ *
+ * All recordings share one timer thread which closes the inputs, rather than each recording
+ * having its own thread polling for the end.  If no tuner is free when the input is opened
+ * early we try again at the start of the program, by which time a recording which is only
+ * in its extra time can be ended.
+ */
+public class RecordingController {
+
+  // shared by all recordings to close their inputs when they end
+  private static ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+    public Thread newThread(Runnable task) {
+      Thread thread = new Thread(task, "RecordingTimer");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private GenericRecordTask task;
+  private String recordTarget;
+  private long startTime;
+  private long endTime;
+  private long programEndTime;
+
+  private InputStream input = null;
+  private ScheduledFuture<?> stopTask = null;
+  private boolean stopped = false;
+
+  /**
+   * Constructor
+   *
+   * @param task the task used to open the input for the recording
+   * @param recordTarget string with the information for what should be recorded
+   * @param startTime the time the program starts
+   * @param endTime the time the recording should stop
+   * @param programEndTime the time the program actually ends, before the extra time we add
+   */
+  public RecordingController(GenericRecordTask task, String recordTarget, long startTime, long endTime, long programEndTime) {
+    this.task = task;
+    this.recordTarget = recordTarget;
+    this.startTime = startTime;
+    this.endTime = endTime;
+    this.programEndTime = programEndTime;
+  }
+
+  /**
+   * Waits until the configured time before the program starts and then opens the input for
+   * the recording, scheduling it to be closed at the end of the recording.  If there is no
+   * tuner free before the program starts we wait for the start and try again.  The input is
+   * opened on the calling thread so that a slow tune does not hold up the shared timer
+   *
+   * @return the input or null if no input could be opened
+   * @throws Exception if the input could not be opened
+   */
+  public InputStream open() throws Exception {
+    waitUntil(startTime - GenericRecordTask.preTuneSeconds*1000L);
+    long requestedEndTime = getProgramEndTime();
+    InputStream newInput = task.getInputStream(recordTarget, startTime, requestedEndTime);
+    if ((newInput == null)&&(System.currentTimeMillis() < startTime)) {
+      System.out.println("No tuner free for:" + recordTarget + ", trying again at start");
+      waitUntil(startTime);
+      requestedEndTime = getProgramEndTime();
+      newInput = task.getInputStream(recordTarget, startTime, requestedEndTime);
+    }
+
+    synchronized(this) {
+      input = newInput;
+      if ((input != null)&&(!stopped)) {
+        // the recording may have been extended while the input was being opened
+        if (programEndTime != requestedEndTime) {
+          task.extendInput(input, programEndTime);
+        }
+        scheduleStop();
+      }
+    }
+    return newInput;
+  }
+
+  /**
+   * Extends the recording so that it ends later, used when the next program on the same
+   * channel is added to the recording
+   *
+   * @param newEndTime the new time for the recording to stop
+   * @param newProgramEndTime the new time for the last program in the recording to end
+   * @return false if the recording has already stopped and cannot be extended
+   */
+  public synchronized boolean extend(long newEndTime, long newProgramEndTime) {
+    if (stopped) {
+      return false;
+    }
+    endTime = Math.max(endTime, newEndTime);
+    programEndTime = Math.max(programEndTime, newProgramEndTime);
+    if (input != null) {
+      stopTask.cancel(false);
+      scheduleStop();
+      task.extendInput(input, programEndTime);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the time the last program in the recording ends
+   *
+   * @return the time
+   */
+  private synchronized long getProgramEndTime() {
+    return programEndTime;
+  }
+
+  /**
+   * Schedules the input to be closed at the current end time, called while holding the lock
+   */
+  private void scheduleStop() {
+    final long scheduledEnd = endTime;
+    stopTask = timer.schedule(new Runnable() {
+      public void run() {
+        synchronized(RecordingController.this) {
+          // the recording was extended after this was scheduled
+          if (scheduledEnd != endTime) {
+            return;
+          }
+        }
+        stop();
+      }
+    }, Math.max(0, endTime - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Closes the input for the recording, which releases the tuner if no other recording is
+   * sharing it.  Only the first call has any effect so this can be called both when the
+   * recording ends on time and when it ends early
+   */
+  public void stop() {
+    InputStream toClose = null;
+    synchronized(this) {
+      if (stopped) {
+        return;
+      }
+      stopped = true;
+      if (stopTask != null) {
+        stopTask.cancel(false);
+      }
+      toClose = input;
+    }
+
+    if (toClose != null) {
+      try {
+        toClose.close();
+      } catch (Exception e) {
+        System.out.println("Exception closing input");
+      }
+    }
+  }
+
+  /**
+   * Waits until the given time
+   *
+   * @param time the time to wait for, if in the past we return straight away
+   * @throws InterruptedException if interrupted while waiting
+   */
+  private static void waitUntil(long time) throws InterruptedException {
+    long delay = time - System.currentTimeMillis();
+    if (delay > 0) {
+      Thread.sleep(delay);
+    }
+  }
+}
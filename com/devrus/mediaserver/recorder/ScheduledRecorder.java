@@ -21,6 +21,20 @@ public class ScheduledRecorder {
   private static final String SCHEDULE_CONFIG_KEY = "schedule_configs";
   private static final String UPDATE_KEY = "update_on_start";
   private static final String RUNCOMSKIP_KEY = "run_comskip";
+  private static final String RECORD_BUFFER_KEY = "record_buffer_mb";
+  private static final String ANALYZE_RECORDINGS_KEY = "analyze_recordings";
+  private static final String EXPECTED_MBPS_KEY = "record_expected_mbps";
+  private static final String TUNE_TIMEOUT_KEY = "tune_timeout";
+  private static final String PRE_TUNE_KEY = "record_pretune";
+  private static final String PID_FILTER_KEY = "record_pid_filter";
+  private static final String AUDIO_LANGUAGES_KEY = "record_audio_languages";
+  private static final String POSTPROCESS_DIR_KEY = "postprocess_dir";
+  private static final String POSTPROCESS_WORKERS_KEY = "postprocess_workers";
+  private static final String POSTPROCESS_RETRIES_KEY = "postprocess_retries";
+  private static final String POSTPROCESS_DELAY_KEY = "postprocess_delay";
+  private static final String POSTPROCESS_GUARD_KEY = "postprocess_guard";
+  private static final String POSTPROCESS_BACKOFF_KEY = "postprocess_backoff";
+  private static final String HANDBRAKE_KEY = "handbrake_exe";
   private static final String SERVER_FOR_LOCAL_RECORDER = "server";
   private static final String CHANNEL_FOR_LOCAL_RECORDER = "channel";
   
@@ -63,6 +77,7 @@ public class ScheduledRecorder {
       if (configuration.getProperty(COMSKIP_BASE_KEY) != null){
         RecordTask.comskipBase = configuration.getProperty(COMSKIP_BASE_KEY);
         GenericRecordTask.comskipBase = configuration.getProperty(COMSKIP_BASE_KEY);
+        PostProcessQueue.comskipBase = configuration.getProperty(COMSKIP_BASE_KEY);
       }
       
       if (configuration.getProperty(CRON_CONFIG_KEY) != null){
@@ -87,6 +102,114 @@ public class ScheduledRecorder {
         }
       }
       
+      if (configuration.getProperty(RECORD_BUFFER_KEY) != null){
+        try {
+          GenericRecordTask.recordBufferMB = Integer.parseInt(configuration.getProperty(RECORD_BUFFER_KEY));
+        } catch (NumberFormatException e) {
+          System.out.println("Invalid " + RECORD_BUFFER_KEY + " in configuration file");
+        }
+      }
+      
+      if (configuration.getProperty(EXPECTED_MBPS_KEY) != null){
+        try {
+          GenericRecordTask.expectedMbps = Integer.parseInt(configuration.getProperty(EXPECTED_MBPS_KEY));
+        } catch (NumberFormatException e) {
+          System.out.println("Invalid " + EXPECTED_MBPS_KEY + " in configuration file");
+        }
+      }
+      
+      if (configuration.getProperty(TUNE_TIMEOUT_KEY) != null){
+        try {
+          GenericRecordTask.tuneTimeout = Integer.parseInt(configuration.getProperty(TUNE_TIMEOUT_KEY));
+        } catch (NumberFormatException e) {
+          System.out.println("Invalid " + TUNE_TIMEOUT_KEY + " in configuration file");
+        }
+      }
+      
+      // seconds before the program starts that the tuner is tuned, at most the minute the 
+      // schedule starts the recording ahead of the program
+      if (configuration.getProperty(PRE_TUNE_KEY) != null){
+        try {
+          GenericRecordTask.preTuneSeconds = Integer.parseInt(configuration.getProperty(PRE_TUNE_KEY));
+        } catch (NumberFormatException e) {
+          System.out.println("Invalid " + PRE_TUNE_KEY + " in configuration file");
+        }
+      }
+      
+      if (configuration.getProperty(ANALYZE_RECORDINGS_KEY) != null){
+        if (configuration.getProperty(ANALYZE_RECORDINGS_KEY).equals("no")) {
+          GenericRecordTask.analyzeRecordings = false;
+        }
+      }
+      
+      if (configuration.getProperty(PID_FILTER_KEY) != null){
+        if (configuration.getProperty(PID_FILTER_KEY).equals("no")) {
+          GenericRecordTask.pidFilter = false;
+        }
+      }
+      
+      // comma separated list of the languages for the audio to keep, for example eng,fra
+      if (configuration.getProperty(AUDIO_LANGUAGES_KEY) != null){
+        StringTokenizer splitter = new StringTokenizer(configuration.getProperty(AUDIO_LANGUAGES_KEY),",");
+        GenericRecordTask.audioLanguages = new String[splitter.countTokens()];
+        for (int i=0;i<GenericRecordTask.audioLanguages.length;i++) {
+          GenericRecordTask.audioLanguages[i] = splitter.nextToken().trim();
+        }
+      }
+      
+      if (configuration.getProperty(POSTPROCESS_DIR_KEY) != null){
+        PostProcessQueue.jobDir = configuration.getProperty(POSTPROCESS_DIR_KEY);
+      }
+      
+      // recordings are only compressed if HandBrake is configured
+      if (configuration.getProperty(HANDBRAKE_KEY) != null){
+        PostProcessQueue.handbrakeExe = configuration.getProperty(HANDBRAKE_KEY);
+      }
+      
+      if (configuration.getProperty(POSTPROCESS_WORKERS_KEY) != null){
+        try {
+          PostProcessQueue.workers = Integer.parseInt(configuration.getProperty(POSTPROCESS_WORKERS_KEY));
+        } catch (NumberFormatException e) {
+          System.out.println("Invalid " + POSTPROCESS_WORKERS_KEY + " in configuration file");
+        }
+      }
+      
+      if (configuration.getProperty(POSTPROCESS_RETRIES_KEY) != null){
+        try {
+          PostProcessQueue.retries = Integer.parseInt(configuration.getProperty(POSTPROCESS_RETRIES_KEY));
+        } catch (NumberFormatException e) {
+          System.out.println("Invalid " + POSTPROCESS_RETRIES_KEY + " in configuration file");
+        }
+      }
+      
+      // minutes to wait after a recording before post processing it, on top of waiting
+      // for the recorder to be idle
+      if (configuration.getProperty(POSTPROCESS_DELAY_KEY) != null){
+        try {
+          PostProcessQueue.delayMinutes = Integer.parseInt(configuration.getProperty(POSTPROCESS_DELAY_KEY));
+        } catch (NumberFormatException e) {
+          System.out.println("Invalid " + POSTPROCESS_DELAY_KEY + " in configuration file");
+        }
+      }
+      
+      // minutes before a recording starts that post processing stops starting new work
+      if (configuration.getProperty(POSTPROCESS_GUARD_KEY) != null){
+        try {
+          IdleWindow.guardMinutes = Integer.parseInt(configuration.getProperty(POSTPROCESS_GUARD_KEY));
+        } catch (NumberFormatException e) {
+          System.out.println("Invalid " + POSTPROCESS_GUARD_KEY + " in configuration file");
+        }
+      }
+      
+      // minutes running post processing stays suspended after recordings were slow writing to disk
+      if (configuration.getProperty(POSTPROCESS_BACKOFF_KEY) != null){
+        try {
+          IdleWindow.backoffMinutes = Integer.parseInt(configuration.getProperty(POSTPROCESS_BACKOFF_KEY));
+        } catch (NumberFormatException e) {
+          System.out.println("Invalid " + POSTPROCESS_BACKOFF_KEY + " in configuration file");
+        }
+      }
+      
       // get the available server for use with the LocalRecordTask
       int index = 0;
       while(true){
@@ -123,6 +246,7 @@ public class ScheduledRecorder {
       if (update){
         UpdateTask.update(INITIAL_UPDATE_ARGS);
       }
+      PostProcessQueue.start();
       mySched.scheduleFile(new File(cronConfig));
       mySched.start();
       System.out.println("Scheduler started");
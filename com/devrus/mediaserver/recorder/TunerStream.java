@@ -0,0 +1,330 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.recorder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+
+import com.devrus.mediaserver.hdhomerun.HDHomeRunControl;
+import com.devrus.mediaserver.ts.PidFilter;
+import com.devrus.mediaserver.ts.StreamReadyDetector;
+
+/**
+ * Receives the stream from one HDHomeRun tuner and hands it to every recording of the channel
+ * the tuner is tuned to.  Each recording reads from its own Subscriber, so recordings which
+ * overlap on the same channel share the tuner and each gets the data from when it subscribed
+ * until it closes its Subscriber.  Once the last Subscriber is closed the tuner is released.
+ *
+ * The tuner always delivers the full multiplex for the frequency.  A recording of one of the
+ * subchannels on the frequency gets a Subscriber which filters out the other programs, so
+ * recordings of different subchannels on the same frequency can also share the tuner.
+ *
+ * Until the stream can be played the data is also checked for the PAT, PMT and video.  If
+ * the tuner has not delivered any data within the tune timeout it is tuned again, so that a
+ * tuner which did not come up does not leave us recording nothing until the end
+ */
+public class TunerStream extends Thread {
+  // constants
+  private static final int MAX_PACKET_SIZE = 2000;
+  private static final int TS_PACKET_SIZE = 188;
+  private static final int BATCH_SIZE = 256*1024;
+  private static final int MIN_SPACE = 2*TS_PACKET_SIZE;
+
+  private DatagramChannel channel;
+  private Selector selector;
+  private HDHomeRunServer server;
+  private long useSeq;
+  private String tuneChannel;
+  private String tuneTarget;
+  private long tuneTimeout;
+
+  private ArrayList<Subscriber> subscribers = new ArrayList<Subscriber>();
+  private boolean stopping = false;
+  private boolean shutdown = false;
+
+  /**
+   * Constructor
+   *
+   * @param channel the UDP channel the tuner sends the stream to
+   * @param server the server for the tuner, already reserved
+   * @param tuneChannel the channel the tuner is tuned to
+   * @param tuneTarget where the tuner is told to send the stream
+   * @param tuneTimeout how long the tuner has to deliver data before it is tuned again, in milliseconds
+   * @throws IOException if the channel cannot be set up
+   */
+  public TunerStream(DatagramChannel channel, HDHomeRunServer server, String tuneChannel,
+                     String tuneTarget, long tuneTimeout) throws IOException {
+    super("TunerStream-" + server.getTuner());
+    this.channel = channel;
+    this.server = server;
+    this.tuneChannel = tuneChannel;
+    this.tuneTarget = tuneTarget;
+    this.tuneTimeout = tuneTimeout;
+    useSeq = server.getUseSeq();
+    setDaemon(true);
+
+    // the channel is non-blocking so that we can take all of the packets that are waiting
+    // without blocking, the selector is used to wait when there are none
+    channel.configureBlocking(false);
+    selector = Selector.open();
+    channel.register(selector, SelectionKey.OP_READ);
+  }
+
+  /**
+   * Tunes the tuner and starts receiving the stream
+   *
+   * @throws Exception if the tuner could not be tuned
+   */
+  public void tune() throws Exception {
+    HDHomeRunControl.tune(server.getHomerunBaseCommand(), server.getTuner(), tuneChannel, null, tuneTarget);
+    start();
+  }
+
+  /**
+   * Returns the channel the tuner is tuned to
+   *
+   * @return the channel, for example auto:25
+   */
+  public String getTuneChannel() {
+    return tuneChannel;
+  }
+
+  /**
+   * Returns the server for the tuner delivering the stream
+   *
+   * @return the server
+   */
+  public HDHomeRunServer getServer() {
+    return server;
+  }
+
+  /**
+   * Adds a recording to the stream
+   *
+   * @param filter filter for the PIDs to be recorded or null to record the whole multiplex
+   * @return the Subscriber for the recording or null if the stream is stopping
+   */
+  public Subscriber subscribe(PidFilter filter) {
+    synchronized(subscribers) {
+      if (stopping) {
+        return null;
+      }
+      Subscriber subscriber = new Subscriber(filter);
+      subscribers.add(subscriber);
+      System.out.println(server.getTuner() + " now used by " + subscribers.size() + " recording(s)");
+      return subscriber;
+    }
+  }
+
+  /**
+   * Removes a recording from the stream, stopping the stream if it was the last one
+   *
+   * @param subscriber the Subscriber for the recording
+   */
+  private void unsubscribe(Subscriber subscriber) {
+    boolean last = false;
+    synchronized(subscribers) {
+      if (subscribers.remove(subscriber)) {
+        subscriber.end();
+      }
+      if (subscribers.isEmpty()) {
+        stopping = true;
+        last = true;
+      }
+    }
+    if (last) {
+      shutdown();
+    }
+  }
+
+  /**
+   * Stops the stream and releases the tuner.  Any recordings still reading from the stream
+   * see the end of the stream
+   */
+  public void shutdown() {
+    synchronized(subscribers) {
+      if (shutdown) {
+        return;
+      }
+      shutdown = true;
+      stopping = true;
+      for (int i=0;i<subscribers.size();i++) {
+        subscribers.get(i).end();
+      }
+      subscribers.clear();
+    }
+    try {selector.close();} catch (Exception e){/* just ignore*/ }
+    try {channel.close();} catch (Exception e){/* just ignore*/ }
+    LocalRecordTask.releaseServer(server, useSeq);
+  }
+
+  /**
+   * Receives the stream and hands it to the subscribers
+   */
+  public void run() {
+    ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+    StreamReadyDetector readyDetector = new StreamReadyDetector();
+    long readyDeadline = System.currentTimeMillis() + tuneTimeout;
+    try {
+      while (true) {
+        // only wait forever once we know the tuner is delivering the stream
+        long timeout = 0;
+        if (readyDetector != null) {
+          timeout = Math.max(1, readyDeadline - System.currentTimeMillis());
+        }
+        if (selector.select(timeout) > 0) {
+          selector.selectedKeys().clear();
+        } else if (!selector.isOpen()) {
+          break;
+        }
+
+        batch.clear();
+        while ((batch.remaining() >= MAX_PACKET_SIZE)&&(channel.receive(batch) != null));
+        batch.flip();
+
+        if (readyDetector != null) {
+          if (batch.hasRemaining()) {
+            readyDetector.check(batch);
+            if (readyDetector.isReady()) {
+              System.out.println("Stream ready from " + server.getTuner() + " after " + readyDetector.getReady().getNow(0L) + "ms");
+              readyDetector = null;
+            } else if (System.currentTimeMillis() >= readyDeadline) {
+              // the tuner is delivering data so we record whatever it is
+              System.out.println("Stream from " + server.getTuner() + " not playable after " + tuneTimeout/1000 + "s");
+              readyDetector = null;
+            }
+          } else if (System.currentTimeMillis() >= readyDeadline) {
+            System.out.println("No stream from " + server.getTuner() + " after " + tuneTimeout/1000 + "s, tuning again");
+            readyDetector = new StreamReadyDetector();
+            readyDeadline = System.currentTimeMillis() + tuneTimeout;
+            try {
+              HDHomeRunControl.tune(server.getHomerunBaseCommand(), server.getTuner(), tuneChannel, null, tuneTarget);
+            } catch (Exception e) {
+              System.out.println(e);
+            }
+          }
+        }
+
+        if (batch.hasRemaining()) {
+          synchronized(subscribers) {
+            for (int i=0;i<subscribers.size();i++) {
+              subscribers.get(i).deliver(batch.duplicate());
+            }
+          }
+        }
+      }
+    } catch (ClosedSelectorException e) {
+      // shut down while we were waiting
+    } catch (ClosedChannelException e) {
+      // shut down while we were receiving
+    } catch (Exception e) {
+      System.out.println("Exception receiving from " + server.getTuner() + ":" + e);
+    } finally {
+      shutdown();
+    }
+  }
+
+  /**
+   * The stream as seen by one recording.  The data is put straight into the RecordBuffer the
+   * recording is written from, which is only read by the recording, so that a recording which
+   * is slow to write does not hold up the others.  If a recording falls a whole buffer behind
+   * the data it misses is dropped and counted
+   */
+  public class Subscriber extends InputStream implements RecordSource {
+    // the buffer and the filter for the PIDs, only filled by the stream thread while holding
+    // the subscribers lock
+    private RecordBufferQueue queue = new RecordBufferQueue(GenericRecordTask.recordBufferMB*1024*1024);
+    private PidFilter filter;
+    private volatile long dropped = 0;
+
+    /**
+     * Constructor
+     *
+     * @param filter filter for the PIDs to be recorded or null to record the whole multiplex
+     */
+    Subscriber(PidFilter filter) {
+      this.filter = filter;
+    }
+
+    /**
+     * Returns the stream the recording is subscribed to
+     *
+     * @return the stream
+     */
+    public TunerStream getStream() {
+      return TunerStream.this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public RecordBuffer getRecordBuffer() {
+      return queue;
+    }
+
+    /**
+     * Adds data from the tuner to the buffer for the recording, filtering it on the way in
+     *
+     * @param data the data to add, the position is moved to the limit
+     */
+    void deliver(ByteBuffer data) {
+      while (data.hasRemaining()) {
+        ByteBuffer buffer = queue.getFilling();
+        if (buffer == null) {
+          dropped = dropped + data.remaining();
+          return;
+        }
+
+        ByteBuffer part = data.duplicate();
+        if (filter != null) {
+          // the filter can also put out the packet it carried over from the last block
+          part.limit(part.position() + Math.min(part.remaining(), buffer.remaining() - TS_PACKET_SIZE));
+          filter.filter(part, buffer);
+        } else {
+          part.limit(part.position() + Math.min(part.remaining(), buffer.remaining()));
+          buffer.put(part);
+        }
+        data.position(part.position());
+        queue.filled(MIN_SPACE);
+      }
+    }
+
+    /**
+     * Passes whatever is left to be written to the recording followed by the end of the
+     * stream.  Called once the Subscriber has been removed from the stream
+     */
+    void end() {
+      queue.close();
+      if (dropped > 0) {
+        System.out.println("Recording from " + server.getTuner() + " fell behind, dropped " + dropped + " bytes");
+      }
+      if (filter != null) {
+        System.out.println("Recording from " + server.getTuner() + " kept " + filter.getPacketsOut() + " of " + filter.getPacketsIn() + " packets");
+      }
+    }
+
+    /**
+     * The data is only written from the RecordBuffer
+     */
+    public int read() throws IOException {
+      throw new IOException("Recordings from a tuner are written from their RecordBuffer");
+    }
+
+    /**
+     * Removes the recording from the stream, the tuner is released if no other recording
+     * is using it.  Anything already queued can still be read
+     */
+    public void close() {
+      unsubscribe(this);
+    }
+  }
+}
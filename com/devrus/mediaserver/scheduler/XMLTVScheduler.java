@@ -42,6 +42,12 @@ public class XMLTVScheduler {
   private static final String RECORD_TARGET_EXTRA_KEY = "target_extra";
   public static final long EXTRA_RECORD_TIME = 1;
   
+  // recordings are started this many minutes before the program so that the tuner can be 
+  // tuned in advance, the actual start of the program is passed after the start tag
+  public static final long PRE_TUNE_LEAD_TIME = 1;
+  public static final String START_TAG = "start:";
+  public static final String START_FORMAT = "yyyyMMddHHmm";
+  
 
   Hashtable<String,String> channelList;
   Hashtable<String,String> myChannelList;
@@ -160,17 +166,19 @@ public class XMLTVScheduler {
             SimpleDateFormat inFormat = new SimpleDateFormat("yyyyMMddHHmmss Z");
             SimpleDateFormat format = new SimpleDateFormat("m H d M *");
             SimpleDateFormat nameFormat = new SimpleDateFormat("MMddHHmm");
+            SimpleDateFormat startFormat = new SimpleDateFormat(START_FORMAT);
             String start = prog.getAttribute("start");
             String stop = prog.getAttribute("stop");
             Date startTime = inFormat.parse(start);
             Date endTime = inFormat.parse(stop);
             long length = EXTRA_RECORD_TIME + (endTime.getTime() - startTime.getTime())/(60*1000);
+            Date recordTime = new Date(startTime.getTime() - PRE_TUNE_LEAD_TIME*60*1000);
             
             // create title info
             String title = clean(programName);
             String fullTitle = clean(title + nameFormat.format(startTime) + "-" + subTitle );
 
-            listing.append(format.format(startTime) + " \"java:com.devrus.mediaserver.recorder." + recordClass + "#record\" " + title + " " + fullTitle + target + channel + " " + length + " " + targetExtra);
+            listing.append(format.format(recordTime) + " \"java:com.devrus.mediaserver.recorder." + recordClass + "#record\" " + title + " " + fullTitle + target + channel + " " + length + " " + START_TAG + startFormat.format(startTime) + " " + targetExtra);
             listing.append("\n");
           }
         }
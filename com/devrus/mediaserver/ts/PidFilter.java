@@ -0,0 +1,490 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.ts;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Filters an MPEG transport stream down to the PIDs we want to keep.  The PAT is followed to
+ * find the PMTs and the PMTs to find the PIDs for the programs, and only the packets on those
+ * PIDs are kept.  Null packets and anything else not listed in a PMT are dropped.
+ *
+ * When a single program is selected, for example to record one subchannel out of the full
+ * multiplex for a frequency, the PAT is rewritten to list only the program so that players
+ * don't go looking for the others.  When stream selection is on only the video, the audio in
+ * the selected languages and the subtitles are kept from each program, and the PMT is
+ * rewritten to list only those streams.  Nothing is passed through until the PAT and PMT
+ * have been seen.
+ *
+ * Data can be passed in blocks of any size as partial packets are carried over to the next
+ * block.  Only to be called from one thread.
+ */
+public class PidFilter extends TSPacketParser {
+  // constants
+  public static final int ALL_PROGRAMS = -1;
+  private static final int NO_PID = -1;
+  private static final int MAX_STREAMS = 64;
+  private static final int PMT_UNCHANGED = 0;
+  private static final int PMT_REWRITTEN = 1;
+  private static final int PMT_DROPPED = 2;
+  private static final int[] CRC_TABLE = new int[256];
+
+  // stream types and descriptors used to decide which streams to keep
+  private static final int[] AUDIO_STREAM_TYPES = {0x03, 0x04, 0x0F, 0x11, 0x81, 0x87};
+  private static final int PES_PRIVATE_STREAM_TYPE = 0x06;
+  private static final int LANGUAGE_DESCRIPTOR = 0x0A;
+  private static final int[] AUDIO_DESCRIPTORS = {0x6A, 0x7A, 0x81};
+  private static final int[] SUBTITLE_DESCRIPTORS = {0x56, 0x59};
+
+  static {
+    // CRC used for the PSI tables, polynomial 0x04C11DB7 without reflection
+    for (int i=0;i<256;i++) {
+      int crc = i << 24;
+      for (int j=0;j<8;j++) {
+        crc = ((crc & 0x80000000) != 0) ? ((crc << 1) ^ 0x04C11DB7) : (crc << 1);
+      }
+      CRC_TABLE[i] = crc;
+    }
+  }
+
+  // what to keep
+  private int program;
+  private boolean selectStreams;
+  private String[] audioLanguages;
+
+  // the PMTs we are following and the PIDs each of them says to keep.  A PID is kept
+  // while any of the PMTs list it
+  private boolean[] pmtPid = new boolean[NUMBER_PIDS];
+  private int[][] pmtKept = new int[NUMBER_PIDS][];
+  private boolean[] pmtRewritten = new boolean[NUMBER_PIDS];
+  private int[] keepCount = new int[NUMBER_PIDS];
+  private int singlePmtPid = NO_PID;
+
+  // the tables we pass on in place of the originals
+  private byte[] pat = new byte[TS_PACKET_SIZE];
+  private byte[] pmt = new byte[TS_PACKET_SIZE];
+  private int[] streamStart = new int[MAX_STREAMS];
+  private int[] streamLength = new int[MAX_STREAMS];
+  private boolean[] streamAudio = new boolean[MAX_STREAMS];
+  private boolean[] streamKept = new boolean[MAX_STREAMS];
+
+  // where the packets kept are put during a call to filter
+  private ByteBuffer output = null;
+
+  // counters
+  private long packetsIn = 0;
+  private long packetsOut = 0;
+
+  /**
+   * Constructor
+   *
+   * @param program the number of the program to keep, as listed in the PAT, or ALL_PROGRAMS
+   * @param selectStreams true if only the video, audio and subtitles should be kept from each program
+   * @param audioLanguages the ISO 639 codes for the audio to keep, for example eng, or null to keep
+   *                       all audio.  If none of the audio in a program matches all of it is kept
+   */
+  public PidFilter(int program, boolean selectStreams, String[] audioLanguages) {
+    this.program = program;
+    this.selectStreams = selectStreams;
+    this.audioLanguages = audioLanguages;
+  }
+
+  /**
+   * Returns the number of the program being kept
+   *
+   * @return the program number or ALL_PROGRAMS
+   */
+  public int getProgram() {
+    return program;
+  }
+
+  /**
+   * Returns the number of packets passed in
+   *
+   * @return the number of packets
+   */
+  public long getPacketsIn() {
+    return packetsIn;
+  }
+
+  /**
+   * Returns the number of packets passed on
+   *
+   * @return the number of packets
+   */
+  public long getPacketsOut() {
+    return packetsOut;
+  }
+
+  /**
+   * Filters the next block of the stream, the data between the position and the limit of
+   * the input.  The packets kept are added to the output, which must have room for 188 bytes
+   * more than the input.  The position of the input is moved to the limit
+   *
+   * @param in the data to filter
+   * @param out where to put the packets kept
+   */
+  public void filter(ByteBuffer in, ByteBuffer out) {
+    output = out;
+    parse(in);
+    output = null;
+    in.position(in.limit());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  protected void packet(ByteBuffer data, int start) {
+    filterPacket(data, start, output);
+  }
+
+  /**
+   * Decides what to do with one packet
+   *
+   * @param data the buffer holding the packet
+   * @param start index of the sync byte of the packet
+   * @param out where to put the packet if it is kept
+   */
+  private void filterPacket(ByteBuffer data, int start, ByteBuffer out) {
+    packetsIn++;
+    int pid = packetPid(data, start);
+    if (pid == PAT_PID) {
+      if (checkPAT(data, start)) {
+        if (program == ALL_PROGRAMS) {
+          copyPacket(data, start, out);
+        } else {
+          out.put(pat);
+          packetsOut++;
+        }
+      }
+    } else if (pmtPid[pid]) {
+      int result = checkPMT(data, start, pid);
+      if (result == PMT_REWRITTEN) {
+        out.put(pmt);
+        packetsOut++;
+      } else if ((result == PMT_UNCHANGED)&&(pmtKept[pid] != null)) {
+        copyPacket(data, start, out);
+      }
+    } else if (keepCount[pid] > 0) {
+      copyPacket(data, start, out);
+    }
+  }
+
+  /**
+   * Copies a packet to the output
+   *
+   * @param data the buffer holding the packet
+   * @param start index of the sync byte of the packet
+   * @param out where to put the packet
+   */
+  private void copyPacket(ByteBuffer data, int start, ByteBuffer out) {
+    out.put(out.position(), data, start, TS_PACKET_SIZE);
+    out.position(out.position() + TS_PACKET_SIZE);
+    packetsOut++;
+  }
+
+  /**
+   * Finds the PMTs to follow in the PAT and, if we are keeping a single program, builds the
+   * PAT we pass on.  We only look at the part of the table in the first packet, which is all
+   * of it for the streams we get from the tuners
+   *
+   * @param data the buffer holding the packet
+   * @param start index of the sync byte of the packet
+   * @return true if the PAT should be passed on
+   */
+  private boolean checkPAT(ByteBuffer data, int start) {
+    int table = tableStart(data, start, PAT_TABLE_ID, PAT_FIRST_PROGRAM);
+    if (table < 0) {
+      // not the start of the table
+      return (program == ALL_PROGRAMS);
+    }
+
+    int programsEnd = Math.min(entriesEnd(data, table), start + TS_PACKET_SIZE);
+    int newSinglePmtPid = NO_PID;
+    for (int index = table + PAT_FIRST_PROGRAM;(index + PAT_PROGRAM_LENGTH) <= programsEnd;index = index + PAT_PROGRAM_LENGTH) {
+      int nextProgram = patProgram(data, index);
+      int nextPid = patPmtPid(data, index);
+      if ((nextProgram != 0)&&((program == ALL_PROGRAMS)||(nextProgram == program))) {
+        // program 0 points at the network information table
+        pmtPid[nextPid] = true;
+        newSinglePmtPid = nextPid;
+      }
+    }
+    if (program == ALL_PROGRAMS) {
+      return true;
+    }
+    if (newSinglePmtPid == NO_PID) {
+      return false;
+    }
+    if ((singlePmtPid != NO_PID)&&(newSinglePmtPid != singlePmtPid)) {
+      // the program has moved to a different PMT
+      pmtPid[singlePmtPid] = false;
+      setKept(singlePmtPid, null);
+    }
+    singlePmtPid = newSinglePmtPid;
+
+    // header with the original continuity counter, no adaptation field and a pointer of 0.
+    // The table keeps the transport stream id, version and current flag of the original
+    startTable(pat, data, start, PAT_PID);
+    int index = 5;
+    pat[index++] = PAT_TABLE_ID;
+    pat[index++] = (byte) 0xB0;
+    pat[index++] = 13;
+    pat[index++] = data.get(table + 3);
+    pat[index++] = data.get(table + 4);
+    pat[index++] = data.get(table + 5);
+    pat[index++] = 0x00;
+    pat[index++] = 0x00;
+    pat[index++] = (byte) (program >> 8);
+    pat[index++] = (byte) program;
+    pat[index++] = (byte) (0xE0 | (singlePmtPid >> 8));
+    pat[index++] = (byte) singlePmtPid;
+    endTable(pat, index);
+    return true;
+  }
+
+  /**
+   * Picks the PIDs to keep out of a PMT and, if stream selection is on, builds the PMT we
+   * pass on.  If the table does not fit in one packet all of the streams are kept and the
+   * table is passed on as is
+   *
+   * @param data the buffer holding the packet
+   * @param start index of the sync byte of the packet
+   * @param pid the PID the PMT is on
+   * @return PMT_UNCHANGED, PMT_REWRITTEN or PMT_DROPPED
+   */
+  private int checkPMT(ByteBuffer data, int start, int pid) {
+    int end = start + TS_PACKET_SIZE;
+    int table = tableStart(data, start, PMT_TABLE_ID, PMT_HEADER_LENGTH);
+    if (table < 0) {
+      // continuation of a table, it goes with the start of the table
+      return pmtRewritten[pid] ? PMT_DROPPED : PMT_UNCHANGED;
+    }
+
+    int pcrPid = pmtPcrPid(data, table);
+    int firstStream = pmtFirstStream(data, table);
+    int streamsEnd = entriesEnd(data, table);
+    boolean complete = (streamsEnd + 4) <= end;
+    streamsEnd = Math.min(streamsEnd, end);
+
+    // find the streams and decide which ones to keep
+    int streams = 0;
+    boolean anyAudioKept = false;
+    for (int index = firstStream;((index + PMT_STREAM_HEADER_LENGTH) <= streamsEnd)&&(streams < MAX_STREAMS);) {
+      int streamType = streamType(data, index);
+      int infoLength = streamInfoLength(data, index);
+      int infoEnd = Math.min(index + PMT_STREAM_HEADER_LENGTH + infoLength, streamsEnd);
+      streamStart[streams] = index;
+      streamLength[streams] = infoEnd - index;
+      streamAudio[streams] = false;
+      streamKept[streams] = true;
+      if (selectStreams && complete) {
+        if (isVideo(streamType)) {
+          streamKept[streams] = true;
+        } else if (matches(streamType, AUDIO_STREAM_TYPES)||
+                   ((streamType == PES_PRIVATE_STREAM_TYPE)&&(hasDescriptor(data, index + PMT_STREAM_HEADER_LENGTH, infoEnd, AUDIO_DESCRIPTORS)))) {
+          streamAudio[streams] = true;
+          streamKept[streams] = languageSelected(data, index + PMT_STREAM_HEADER_LENGTH, infoEnd);
+          anyAudioKept = anyAudioKept || streamKept[streams];
+        } else if (streamType == PES_PRIVATE_STREAM_TYPE) {
+          streamKept[streams] = hasDescriptor(data, index + PMT_STREAM_HEADER_LENGTH, infoEnd, SUBTITLE_DESCRIPTORS);
+        } else {
+          streamKept[streams] = false;
+        }
+      }
+      streams++;
+      index = index + PMT_STREAM_HEADER_LENGTH + infoLength;
+    }
+
+    // rather than end up with a recording without sound keep all of the audio
+    if (!anyAudioKept) {
+      for (int i=0;i<streams;i++) {
+        if (streamAudio[i]) {
+          streamKept[i] = true;
+        }
+      }
+    }
+
+    int[] kept = new int[streams + 1];
+    int keptCount = 0;
+    if (pcrPid != NULL_PID) {
+      // a program without a PCR says so with the null PID, which we must not keep
+      kept[keptCount++] = pcrPid;
+    }
+    for (int i=0;i<streams;i++) {
+      if (streamKept[i]) {
+        kept[keptCount++] = streamPid(data, streamStart[i]);
+      }
+    }
+    int[] newKept = new int[keptCount];
+    System.arraycopy(kept, 0, newKept, 0, keptCount);
+    setKept(pid, newKept);
+
+    pmtRewritten[pid] = selectStreams && complete;
+    if (!pmtRewritten[pid]) {
+      return PMT_UNCHANGED;
+    }
+
+    // copy the table up to the end of the program info, then the streams we are keeping
+    startTable(pmt, data, start, pid);
+    int index = 5;
+    for (int i=table;i<firstStream;i++) {
+      pmt[index++] = data.get(i);
+    }
+    for (int i=0;i<streams;i++) {
+      if (streamKept[i]) {
+        for (int j=0;j<streamLength[i];j++) {
+          pmt[index++] = data.get(streamStart[i] + j);
+        }
+      }
+    }
+    int newSectionLength = (index - 5) - 3 + 4;
+    pmt[6] = (byte) ((pmt[6] & 0xF0) | (newSectionLength >> 8));
+    pmt[7] = (byte) newSectionLength;
+    endTable(pmt, index);
+    return PMT_REWRITTEN;
+  }
+
+  /**
+   * Checks if the language descriptor for an audio stream is one of the selected languages
+   *
+   * @param data the buffer holding the packet
+   * @param index index of the first descriptor for the stream
+   * @param end index of the end of the descriptors
+   * @return true if the audio should be kept
+   */
+  private boolean languageSelected(ByteBuffer data, int index, int end) {
+    if ((audioLanguages == null)||(audioLanguages.length == 0)) {
+      return true;
+    }
+    while ((index + 2) <= end) {
+      int tag = data.get(index) & 0xFF;
+      int length = data.get(index + 1) & 0xFF;
+      if ((tag == LANGUAGE_DESCRIPTOR)&&(length >= 3)&&((index + 5) <= end)) {
+        byte[] code = new byte[3];
+        for (int i=0;i<3;i++) {
+          code[i] = data.get(index + 2 + i);
+        }
+        String language = new String(code);
+        for (int i=0;i<audioLanguages.length;i++) {
+          if (audioLanguages[i].equalsIgnoreCase(language)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      index = index + 2 + length;
+    }
+
+    // no language given so we can't tell, keep it
+    return true;
+  }
+
+  /**
+   * Checks if the descriptors for a stream include one of the tags given
+   *
+   * @param data the buffer holding the packet
+   * @param index index of the first descriptor for the stream
+   * @param end index of the end of the descriptors
+   * @param tags the tags to look for
+   * @return true if one of the tags was found
+   */
+  private boolean hasDescriptor(ByteBuffer data, int index, int end, int[] tags) {
+    while ((index + 2) <= end) {
+      if (matches(data.get(index) & 0xFF, tags)) {
+        return true;
+      }
+      index = index + 2 + (data.get(index + 1) & 0xFF);
+    }
+    return false;
+  }
+
+  /**
+   * Checks if a value is in a list
+   *
+   * @param value the value
+   * @param list the list
+   * @return true if the value is in the list
+   */
+  private static boolean matches(int value, int[] list) {
+    for (int i=0;i<list.length;i++) {
+      if (list[i] == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Replaces the PIDs kept for a PMT
+   *
+   * @param pid the PID of the PMT
+   * @param kept the PIDs to keep or null for none
+   */
+  private void setKept(int pid, int[] kept) {
+    int[] old = pmtKept[pid];
+    if (old != null) {
+      for (int i=0;i<old.length;i++) {
+        keepCount[old[i]]--;
+      }
+    }
+    pmtKept[pid] = kept;
+    if (kept != null) {
+      for (int i=0;i<kept.length;i++) {
+        keepCount[kept[i]]++;
+      }
+    }
+  }
+
+  /**
+   * Fills in the header for a table we are passing on in place of the original, keeping the
+   * continuity counter of the original packet
+   *
+   * @param packet the packet to fill in
+   * @param data the buffer holding the original packet
+   * @param start index of the sync byte of the original packet
+   * @param pid the PID of the table
+   */
+  private void startTable(byte[] packet, ByteBuffer data, int start, int pid) {
+    for (int i=0;i<TS_PACKET_SIZE;i++) {
+      packet[i] = (byte) 0xFF;
+    }
+    packet[0] = SYNC_BYTE;
+    packet[1] = (byte) (0x40 | (pid >> 8));
+    packet[2] = (byte) pid;
+    packet[3] = (byte) (0x10 | (data.get(start + 3) & 0x0F));
+    packet[4] = 0x00;
+  }
+
+  /**
+   * Adds the CRC to the end of a table we are passing on
+   *
+   * @param packet the packet holding the table
+   * @param index the index just after the end of the table
+   */
+  private void endTable(byte[] packet, int index) {
+    int crc = crc32(packet, 5, index - 5);
+    packet[index++] = (byte) (crc >> 24);
+    packet[index++] = (byte) (crc >> 16);
+    packet[index++] = (byte) (crc >> 8);
+    packet[index++] = (byte) crc;
+  }
+
+  /**
+   * Calculates the CRC for a PSI table
+   *
+   * @param data array holding the table
+   * @param offset offset of the table id
+   * @param length length of the table not including the CRC
+   * @return the CRC
+   */
+  static int crc32(byte[] data, int offset, int length) {
+    int crc = 0xFFFFFFFF;
+    for (int i=offset;i<(offset + length);i++) {
+      crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xFF];
+    }
+    return crc;
+  }
+}
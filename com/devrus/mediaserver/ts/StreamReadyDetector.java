@@ -0,0 +1,142 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.ts;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Watches the start of an MPEG transport stream after a tuner has been tuned and tells us
+ * when the stream can be played.  That is once we have seen the PAT, the PMTs for all of the
+ * programs it lists and then the start of a frame on one of the video streams in those PMTs.
+ * If none of the programs have video the stream is ready as soon as all of the PMTs have been
+ * seen.  A player given the stream from that point on can start showing it straight away.
+ *
+ * Data can be passed in blocks of any size as partial packets are carried over to the next
+ * block.  Only to be called from one thread, the future can be used from any thread.
+ */
+public class StreamReadyDetector extends TSPacketParser {
+  // what we have learned about the stream so far
+  private boolean[] pmtPid = new boolean[NUMBER_PIDS];
+  private boolean[] pmtSeen = new boolean[NUMBER_PIDS];
+  private boolean[] videoPid = new boolean[NUMBER_PIDS];
+  private int pmtsListed = 0;
+  private int pmtsSeen = 0;
+  private boolean anyVideo = false;
+
+  private long startTime = System.currentTimeMillis();
+  private CompletableFuture<Long> ready = new CompletableFuture<Long>();
+
+  /**
+   * Returns the future which completes once the stream is ready to be played.  The value
+   * is the time it took in milliseconds from when the detector was created
+   *
+   * @return the future
+   */
+  public CompletableFuture<Long> getReady() {
+    return ready;
+  }
+
+  /**
+   * Returns whether the stream is ready to be played
+   *
+   * @return true if the stream is ready
+   */
+  public boolean isReady() {
+    return ready.isDone();
+  }
+
+  /**
+   * Checks the next block of the stream, the data between the position and the limit of
+   * the buffer.  The position of the buffer is not changed
+   *
+   * @param data the data to check
+   */
+  public void check(ByteBuffer data) {
+    parse(data);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  protected boolean isDone() {
+    return ready.isDone();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  protected void packet(ByteBuffer data, int start) {
+    int pid = packetPid(data, start);
+    if ((pmtsListed > 0)&&(pmtsSeen == pmtsListed)) {
+      // we only care about the start of frames in packets without errors
+      if (videoPid[pid]&&(unitStart(data, start) >= 0)) {
+        complete();
+      }
+    } else if (pid == PAT_PID) {
+      checkPAT(data, start);
+    } else if (pmtPid[pid]&&(!pmtSeen[pid])) {
+      checkPMT(data, start, pid);
+    }
+  }
+
+  /**
+   * Picks the PIDs for the PMTs out of the PAT
+   *
+   * @param data the buffer holding the packet
+   * @param start index of the sync byte of the packet
+   */
+  private void checkPAT(ByteBuffer data, int start) {
+    int table = tableStart(data, start, PAT_TABLE_ID, PAT_FIRST_PROGRAM);
+    if (table < 0) {
+      return;
+    }
+    int programsEnd = Math.min(entriesEnd(data, table), start + TS_PACKET_SIZE);
+    for (int index = table + PAT_FIRST_PROGRAM;(index + PAT_PROGRAM_LENGTH) <= programsEnd;index = index + PAT_PROGRAM_LENGTH) {
+      // program 0 points at the network information table
+      int pid = patPmtPid(data, index);
+      if ((patProgram(data, index) != 0)&&(!pmtPid[pid])) {
+        pmtPid[pid] = true;
+        pmtsListed++;
+      }
+    }
+  }
+
+  /**
+   * Picks the PIDs for the video streams out of a PMT.  Once all of the PMTs have been seen
+   * the stream is ready to be played straight away if none of the programs have video
+   *
+   * @param data the buffer holding the packet
+   * @param start index of the sync byte of the packet
+   * @param pid the PID the PMT is on
+   */
+  private void checkPMT(ByteBuffer data, int start, int pid) {
+    int table = tableStart(data, start, PMT_TABLE_ID, PMT_HEADER_LENGTH);
+    if (table < 0) {
+      return;
+    }
+    int streamsEnd = Math.min(entriesEnd(data, table), start + TS_PACKET_SIZE);
+    for (int index = pmtFirstStream(data, table);(index + PMT_STREAM_HEADER_LENGTH) <= streamsEnd;) {
+      if (isVideo(streamType(data, index))) {
+        videoPid[streamPid(data, index)] = true;
+        anyVideo = true;
+      }
+      index = index + PMT_STREAM_HEADER_LENGTH + streamInfoLength(data, index);
+    }
+
+    pmtSeen[pid] = true;
+    pmtsSeen++;
+    if ((pmtsSeen == pmtsListed)&&(!anyVideo)) {
+      complete();
+    }
+  }
+
+  /**
+   * Marks the stream as ready to be played
+   */
+  private void complete() {
+    ready.complete(System.currentTimeMillis() - startTime);
+  }
+}
@@ -0,0 +1,311 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.ts;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+
+/**
+ * Checks the quality of an MPEG transport stream as it goes by.  Each 188 byte packet is
+ * checked for the sync byte and the continuity counter for its PID, so that we can tell
+ * when packets have been lost without anybody having to watch the recording.  Data can be
+ * passed in blocks of any size as partial packets are carried over to the next block.
+ *
+ * Only to be called from one thread at a time, the counters can be read from any thread.
+ * Nothing is allocated for each packet so this can keep up with the stream on slow machines.
+ */
+public class TSAnalyzer extends TSPacketParser {
+  // constants
+  public static final String QUALITY_FILE_TRAILER = ".quality";
+  private static final int NO_COUNTER = -1;
+  private static final long SECOND = 1000;
+  private static final int MAX_PROBLEM_SECONDS = 1000;
+
+  // the last continuity counter seen for each PID
+  private int[] lastCounter = new int[NUMBER_PIDS];
+  private boolean[] pidSeen = new boolean[NUMBER_PIDS];
+
+  // counters
+  private volatile long packets = 0;
+  private volatile long bytes = 0;
+  private volatile long syncErrors = 0;
+  private volatile long discontinuities = 0;
+  private volatile long lostPackets = 0;
+  private volatile long transportErrors = 0;
+  private volatile long nullPackets = 0;
+  private volatile int pidCount = 0;
+
+  // bitrate tracking, a second at a time
+  private long secondStart = 0;
+  private long secondBytes = 0;
+  private long secondProblems = 0;
+  private volatile long lastBitrate = 0;
+  private long minBitrate = Long.MAX_VALUE;
+  private long maxBitrate = 0;
+  private long seconds = 0;
+  private long startTime = 0;
+
+  // seconds in which there were problems, for the quality file
+  private StringBuilder problemSeconds = new StringBuilder();
+  private int problemSecondCount = 0;
+
+  // periodic reporting of the counters
+  private String name;
+  private long reportInterval;
+  private long lastReport = 0;
+
+  /**
+   * Constructor
+   *
+   * @param name name used when reporting the counters
+   * @param reportInterval how often to print the counters in milliseconds, 0 for never
+   */
+  public TSAnalyzer(String name, long reportInterval) {
+    this.name = name;
+    this.reportInterval = reportInterval;
+    for (int i=0;i<NUMBER_PIDS;i++) {
+      lastCounter[i] = NO_COUNTER;
+    }
+  }
+
+  /**
+   * Analyzes the next block of the stream
+   *
+   * @param data array containing the data
+   * @param offset offset of the first byte in the array
+   * @param length number of bytes
+   */
+  public void analyze(byte[] data, int offset, int length) {
+    analyze(ByteBuffer.wrap(data, offset, length));
+  }
+
+  /**
+   * Analyzes the next block of the stream, the data between the position and the limit of
+   * the buffer.  The position of the buffer is not changed
+   *
+   * @param data the data to analyze
+   */
+  public void analyze(ByteBuffer data) {
+    long now = System.currentTimeMillis();
+    if (startTime == 0) {
+      startTime = now;
+      secondStart = now;
+      lastReport = now;
+    }
+    while ((now - secondStart) >= SECOND) {
+      endSecond();
+    }
+
+    bytes = bytes + data.remaining();
+    secondBytes = secondBytes + data.remaining();
+    parse(data);
+
+    if ((reportInterval > 0)&&((now - lastReport) >= reportInterval)) {
+      System.out.println(name + " " + getCounters());
+      lastReport = now;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  protected void syncLost() {
+    syncErrors++;
+    secondProblems++;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  protected void packet(ByteBuffer data, int start) {
+    checkPacket(data.get(start + 1), data.get(start + 2), data.get(start + 3),
+                data.get(start + 4), data.get(start + 5));
+  }
+
+  /**
+   * Checks the header of one packet
+   *
+   * @param byte1 the byte after the sync byte
+   * @param byte2 the second byte after the sync byte
+   * @param byte3 the third byte after the sync byte
+   * @param byte4 the first byte of the adaptation field, if there is one
+   * @param byte5 the flags of the adaptation field, if there is one
+   */
+  private void checkPacket(byte byte1, byte byte2, byte byte3, byte byte4, byte byte5) {
+    packets++;
+    if ((byte1 & 0x80) != 0) {
+      transportErrors++;
+      secondProblems++;
+    }
+
+    int pid = ((byte1 & 0x1F) << 8) | (byte2 & 0xFF);
+    if (pid == NULL_PID) {
+      nullPackets++;
+      return;
+    }
+    if (!pidSeen[pid]) {
+      pidSeen[pid] = true;
+      pidCount++;
+    }
+
+    // the counter only goes up for packets with a payload, a repeat of the last counter is
+    // allowed as a duplicate packet
+    int adaptationControl = (byte3 >> 4) & 0x3;
+    int counter = byte3 & 0xF;
+    if ((adaptationControl & 0x1) == 0) {
+      return;
+    }
+    int last = lastCounter[pid];
+    lastCounter[pid] = counter;
+    if ((last == NO_COUNTER)||(counter == last)) {
+      return;
+    }
+    int expected = (last + 1) & 0xF;
+    if (counter != expected) {
+      // the stream can tell us that a jump in the counter is expected
+      boolean indicated = ((adaptationControl & 0x2) != 0)&&(byte4 != 0)&&((byte5 & 0x80) != 0);
+      if (!indicated) {
+        discontinuities++;
+        lostPackets = lostPackets + ((counter - expected) & 0xF);
+        secondProblems++;
+      }
+    }
+  }
+
+  /**
+   * Records the bitrate for the second that just finished, along with any problems seen
+   */
+  private void endSecond() {
+    long bitrate = secondBytes * 8;
+    lastBitrate = bitrate;
+    if (bitrate < minBitrate) {
+      minBitrate = bitrate;
+    }
+    if (bitrate > maxBitrate) {
+      maxBitrate = bitrate;
+    }
+    if ((secondProblems > 0)&&(problemSecondCount < MAX_PROBLEM_SECONDS)) {
+      problemSeconds.append("problem=" + seconds + "," + secondProblems + "," + bitrate + "\n");
+      problemSecondCount++;
+    }
+    seconds++;
+    secondStart = secondStart + SECOND;
+    secondBytes = 0;
+    secondProblems = 0;
+  }
+
+  /**
+   * Returns the number of packets seen
+   *
+   * @return the number of packets
+   */
+  public long getPackets() {
+    return packets;
+  }
+
+  /**
+   * Returns the number of times the sync byte was not where it should have been
+   *
+   * @return the number of sync errors
+   */
+  public long getSyncErrors() {
+    return syncErrors;
+  }
+
+  /**
+   * Returns the number of unexpected jumps in the continuity counters
+   *
+   * @return the number of discontinuities
+   */
+  public long getDiscontinuities() {
+    return discontinuities;
+  }
+
+  /**
+   * Returns the number of packets which the continuity counters say were lost
+   *
+   * @return the estimated number of lost packets
+   */
+  public long getLostPackets() {
+    return lostPackets;
+  }
+
+  /**
+   * Returns the number of packets flagged with the transport error indicator
+   *
+   * @return the number of transport errors
+   */
+  public long getTransportErrors() {
+    return transportErrors;
+  }
+
+  /**
+   * Returns the number of null packets seen
+   *
+   * @return the number of null packets
+   */
+  public long getNullPackets() {
+    return nullPackets;
+  }
+
+  /**
+   * Returns the bitrate for the last full second
+   *
+   * @return the bitrate in bits per second
+   */
+  public long getBitrate() {
+    return lastBitrate;
+  }
+
+  /**
+   * Returns a summary of the counters
+   *
+   * @return the summary
+   */
+  public String getCounters() {
+    return "packets:" + packets + " sync errors:" + syncErrors + " discontinuities:" + discontinuities +
+           " lost packets:" + lostPackets + " transport errors:" + transportErrors +
+           " null packets:" + nullPackets + " bitrate:" + lastBitrate;
+  }
+
+  /**
+   * Writes the quality file for a recording alongside it
+   *
+   * @param recording the file containing the recording
+   * @throws IOException if the quality file cannot be written
+   */
+  public void writeQualityFile(File recording) throws IOException {
+    PrintWriter out = new PrintWriter(new FileWriter(recording.getAbsolutePath() + QUALITY_FILE_TRAILER));
+    try {
+      long averageBitrate = 0;
+      if (seconds > 0) {
+        averageBitrate = (bytes * 8)/Math.max(seconds, 1);
+      }
+      out.println("seconds=" + seconds);
+      out.println("bytes=" + bytes);
+      out.println("packets=" + packets);
+      out.println("sync_errors=" + syncErrors);
+      out.println("discontinuities=" + discontinuities);
+      out.println("lost_packets=" + lostPackets);
+      out.println("transport_errors=" + transportErrors);
+      out.println("null_packets=" + nullPackets);
+      out.println("pids=" + pidCount);
+      out.println("bitrate_min=" + ((seconds > 0) ? minBitrate : 0));
+      out.println("bitrate_max=" + maxBitrate);
+      out.println("bitrate_avg=" + averageBitrate);
+      // second, number of problems, bitrate for each second with problems
+      out.print(problemSeconds.toString());
+      if (secondProblems > 0) {
+        // problems in the last partial second
+        out.println("problem=" + seconds + "," + secondProblems + "," + (secondBytes * 8));
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,309 @@
+// Copyright 2012-2015 the project authors as listed in the AUTHORS file.
+// All rights reserved. Use of this source code is governed by the
+// license that can be found in the LICENSE file.
+
+package com.devrus.mediaserver.ts;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base for the classes which look at an MPEG transport stream a packet at a time.  The stream
+ * can be passed in blocks of any size, the blocks are split into 188 byte packets and the
+ * part of a packet at the end of a block is carried over to the next block.  Also holds the
+ * parsing of the packet headers and of the PAT and PMT shared by the subclasses, so that the
+ * stream is understood the same way everywhere.
+ *
+ * Only the part of a table in the packet which starts it is parsed, which is all of it for
+ * the streams we get from the tuners.
+ */
+public abstract class TSPacketParser {
+  // constants
+  public static final int TS_PACKET_SIZE = 188;
+  public static final byte SYNC_BYTE = 0x47;
+  public static final int NUMBER_PIDS = 8192;
+  public static final int PAT_PID = 0;
+  public static final int NULL_PID = 0x1FFF;
+  public static final int PAT_TABLE_ID = 0x00;
+  public static final int PMT_TABLE_ID = 0x02;
+  public static final int PAT_FIRST_PROGRAM = 8; /* from the table id */
+  public static final int PAT_PROGRAM_LENGTH = 4;
+  public static final int PMT_HEADER_LENGTH = 12; /* from the table id, up to the program info */
+  public static final int PMT_STREAM_HEADER_LENGTH = 5;
+
+  // stream types which carry video
+  private static final int[] VIDEO_STREAM_TYPES = {0x01, 0x02, 0x10, 0x1B, 0x24};
+
+  // part of a packet left over from the last block
+  private byte[] carry = new byte[TS_PACKET_SIZE];
+  private ByteBuffer carryBuffer = ByteBuffer.wrap(carry);
+  private int carryLength = 0;
+
+  /**
+   * Called for each whole packet
+   *
+   * @param data the buffer holding the packet
+   * @param start index of the sync byte of the packet
+   */
+  protected abstract void packet(ByteBuffer data, int start);
+
+  /**
+   * Called when the data does not have a sync byte where the next packet should start, before
+   * looking for the next sync byte
+   */
+  protected void syncLost() {
+  }
+
+  /**
+   * Returns whether the subclass has seen all it needs to, in which case the rest of the
+   * block is not split into packets
+   *
+   * @return true if no more packets are wanted
+   */
+  protected boolean isDone() {
+    return false;
+  }
+
+  /**
+   * Splits the next block of the stream, the data between the position and the limit of the
+   * buffer, into packets.  The position of the buffer is not changed
+   *
+   * @param data the data to split
+   */
+  protected void parse(ByteBuffer data) {
+    int index = data.position();
+    int end = data.limit();
+
+    // finish off the packet left over from the last block
+    if (carryLength > 0) {
+      int amount = Math.min(TS_PACKET_SIZE - carryLength, end - index);
+      data.get(index, carry, carryLength, amount);
+      carryLength = carryLength + amount;
+      index = index + amount;
+      if (carryLength < TS_PACKET_SIZE) {
+        return;
+      }
+      carryLength = 0;
+      packet(carryBuffer, 0);
+    }
+
+    while ((index < end)&&(!isDone())) {
+      if (data.get(index) != SYNC_BYTE) {
+        syncLost();
+        index = findSync(data, index + 1, end);
+        continue;
+      }
+
+      if ((end - index) < TS_PACKET_SIZE) {
+        // keep the start of the packet until the next block arrives
+        carryLength = end - index;
+        data.get(index, carry, 0, carryLength);
+        break;
+      }
+
+      packet(data, index);
+      index = index + TS_PACKET_SIZE;
+    }
+  }
+
+  /**
+   * Looks for the next sync byte, where possible checking that there is another one a packet
+   * later so that we don't lock on to a 0x47 in the middle of a packet
+   *
+   * @param data the data being split
+   * @param index where to start looking
+   * @param end the end of the data
+   * @return the index of the sync byte or end if none was found
+   */
+  private static int findSync(ByteBuffer data, int index, int end) {
+    for (;index < end;index++) {
+      if (data.get(index) == SYNC_BYTE) {
+        if (((index + TS_PACKET_SIZE) >= end)||(data.get(index + TS_PACKET_SIZE) == SYNC_BYTE)) {
+          return index;
+        }
+      }
+    }
+    return end;
+  }
+
+  /**
+   * Reads a 13 bit PID, which is how PIDs are held in packet headers and tables
+   *
+   * @param data the buffer holding the PID
+   * @param index index of the byte holding the top 5 bits
+   * @return the PID
+   */
+  public static int pid(ByteBuffer data, int index) {
+    return ((data.get(index) & 0x1F) << 8) | (data.get(index + 1) & 0xFF);
+  }
+
+  /**
+   * Reads a 12 bit length, which is how section, program info and stream info lengths are held
+   *
+   * @param data the buffer holding the length
+   * @param index index of the byte holding the top 4 bits
+   * @return the length
+   */
+  public static int length12(ByteBuffer data, int index) {
+    return ((data.get(index) & 0x0F) << 8) | (data.get(index + 1) & 0xFF);
+  }
+
+  /**
+   * Returns the PID of a packet
+   *
+   * @param data the buffer holding the packet
+   * @param start index of the sync byte of the packet
+   * @return the PID
+   */
+  public static int packetPid(ByteBuffer data, int start) {
+    return pid(data, start + 1);
+  }
+
+  /**
+   * Returns where the payload of a packet starts, for a packet which starts a new table or
+   * frame and has no transport error
+   *
+   * @param data the buffer holding the packet
+   * @param start index of the sync byte of the packet
+   * @return the index of the payload or -1 if the packet does not start a unit or has no payload
+   */
+  public static int unitStart(ByteBuffer data, int start) {
+    int byte1 = data.get(start + 1) & 0xFF;
+    int byte3 = data.get(start + 3) & 0xFF;
+    if (((byte1 & 0x40) == 0)||((byte1 & 0x80) != 0)||((byte3 & 0x10) == 0)) {
+      return -1;
+    }
+    int payload = start + 4;
+    if ((byte3 & 0x20) != 0) {
+      // skip the adaptation field
+      payload = payload + 1 + (data.get(start + 4) & 0xFF);
+    }
+    if (payload >= (start + TS_PACKET_SIZE)) {
+      return -1;
+    }
+    return payload;
+  }
+
+  /**
+   * Returns where the table starts in a packet which starts a table, following the pointer field
+   *
+   * @param data the buffer holding the packet
+   * @param start index of the sync byte of the packet
+   * @param tableId the table id expected
+   * @param headerLength how much of the table must be in the packet
+   * @return the index of the table id or -1 if the packet does not start that table
+   */
+  public static int tableStart(ByteBuffer data, int start, int tableId, int headerLength) {
+    int payload = unitStart(data, start);
+    if (payload < 0) {
+      return -1;
+    }
+    int table = payload + 1 + (data.get(payload) & 0xFF);
+    if (((table + headerLength) > (start + TS_PACKET_SIZE))||((data.get(table) & 0xFF) != tableId)) {
+      return -1;
+    }
+    return table;
+  }
+
+  /**
+   * Returns the end of the entries in a table, which is just before its CRC
+   *
+   * @param data the buffer holding the table
+   * @param table index of the table id
+   * @return the index just after the last entry, which may be beyond the packet
+   */
+  public static int entriesEnd(ByteBuffer data, int table) {
+    return table + 3 + length12(data, table + 1) - 4;
+  }
+
+  /**
+   * Returns the program number of an entry in the PAT
+   *
+   * @param data the buffer holding the table
+   * @param index index of the entry
+   * @return the program number, 0 for the entry pointing at the network information table
+   */
+  public static int patProgram(ByteBuffer data, int index) {
+    return ((data.get(index) & 0xFF) << 8) | (data.get(index + 1) & 0xFF);
+  }
+
+  /**
+   * Returns the PID of the PMT for an entry in the PAT
+   *
+   * @param data the buffer holding the table
+   * @param index index of the entry
+   * @return the PID
+   */
+  public static int patPmtPid(ByteBuffer data, int index) {
+    return pid(data, index + 2);
+  }
+
+  /**
+   * Returns the PID carrying the PCR for the program in a PMT
+   *
+   * @param data the buffer holding the table
+   * @param table index of the table id
+   * @return the PID, NULL_PID if the program has no PCR
+   */
+  public static int pmtPcrPid(ByteBuffer data, int table) {
+    return pid(data, table + 8);
+  }
+
+  /**
+   * Returns where the first stream is listed in a PMT
+   *
+   * @param data the buffer holding the table
+   * @param table index of the table id
+   * @return the index of the first stream entry
+   */
+  public static int pmtFirstStream(ByteBuffer data, int table) {
+    return table + PMT_HEADER_LENGTH + length12(data, table + 10);
+  }
+
+  /**
+   * Returns the stream type of a stream entry in a PMT
+   *
+   * @param data the buffer holding the table
+   * @param index index of the stream entry
+   * @return the stream type
+   */
+  public static int streamType(ByteBuffer data, int index) {
+    return data.get(index) & 0xFF;
+  }
+
+  /**
+   * Returns the PID of a stream entry in a PMT
+   *
+   * @param data the buffer holding the table
+   * @param index index of the stream entry
+   * @return the PID
+   */
+  public static int streamPid(ByteBuffer data, int index) {
+    return pid(data, index + 1);
+  }
+
+  /**
+   * Returns the length of the descriptors of a stream entry in a PMT
+   *
+   * @param data the buffer holding the table
+   * @param index index of the stream entry
+   * @return the length of the descriptors
+   */
+  public static int streamInfoLength(ByteBuffer data, int index) {
+    return length12(data, index + 3);
+  }
+
+  /**
+   * Returns whether a stream type carries video
+   *
+   * @param streamType the stream type from the PMT
+   * @return true for video
+   */
+  public static boolean isVideo(int streamType) {
+    for (int i=0;i<VIDEO_STREAM_TYPES.length;i++) {
+      if (VIDEO_STREAM_TYPES[i] == streamType) {
+        return true;
+      }
+    }
+    return false;
+  }
+}